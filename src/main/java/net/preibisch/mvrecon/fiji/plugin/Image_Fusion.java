@@ -23,8 +23,11 @@
 package net.preibisch.mvrecon.fiji.plugin;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
@@ -41,6 +44,7 @@ import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
+import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealUnsignedByteConverter;
 import net.imglib2.converter.RealUnsignedShortConverter;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -52,17 +56,23 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionGUI;
 import net.preibisch.mvrecon.fiji.plugin.queryXML.GenericLoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
+import net.preibisch.mvrecon.process.cache.CellCacheManager;
 import net.preibisch.mvrecon.process.export.Calibrateable;
 import net.preibisch.mvrecon.process.export.ImgExport;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.lazy.BlockClassifier;
 import net.preibisch.mvrecon.process.fusion.lazy.LazyAffineFusion;
+import net.preibisch.mvrecon.process.fusion.lazy.LazyFusionTools;
+import net.preibisch.mvrecon.process.fusion.lazy.LazyMultiChannelAffineFusion;
 import net.preibisch.mvrecon.process.fusion.lazy.LazyNonRigidFusion;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.fusion.transformed.nonrigid.NonRigidTools;
 import net.preibisch.mvrecon.process.interestpointregistration.TransformationTools;
@@ -133,8 +143,22 @@ public class Image_Fusion implements PlugIn
 		// one common executerservice
 		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
 
+		// all channels of a timepoint (& illumination) are fused in one pass, each channel group takes its slice
+		final boolean fuseChannelsJointly =
+				fusion.fuseChannelsJointly() &&
+				fusion.getFusionType() == Fusion.AVG &&
+				!fusion.getNonRigidParameters().isActive() &&
+				fusion.getSplittingType() < 2 &&
+				!FusionTools.is2d( groups.stream().flatMap( g -> g.getViews().stream() ).collect( Collectors.toList() ) );
+
+		final HashSet< Group< ViewDescription > > exportedJointly = new HashSet<>();
+
 		for ( final Group< ViewDescription > group : Group.getGroupsSorted( groups ) )
 		{
+			// already written together with the other channels of its timepoint (& illumination)
+			if ( exportedJointly.contains( group ) )
+				continue;
+
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Fusing group " + (++i) + "/" + groups.size() + " (group=" + group + ")" );
 
 			final Pair< Double, String > transformedCal = TransformationTools.computeAverageCalibration( group, spimData.getViewRegistrations() );
@@ -244,6 +268,17 @@ public class Image_Fusion implements PlugIn
 								taskExecutor );
 				*/
 			}
+			else if ( fuseChannelsJointly )
+			{
+				// the exporter writes all channels from the same fused blocks
+				final ArrayList< Group< ViewDescription > > channelGroups = channelGroups( fusion, groups, group );
+
+				if ( !exportChannelsJointly( spimData, fusion, exporter, channelGroups, conv, (RealType & NativeType)type, blocksize ) )
+					return false;
+
+				exportedJointly.addAll( channelGroups );
+				continue;
+			}
 			else
 			{
 				lazy = LazyAffineFusion.init(
@@ -256,6 +291,7 @@ public class Image_Fusion implements PlugIn
 						fusion.useContentBased(), // content based
 						fusion.getInterpolation(), // linear interpolatio
 						fusion.adjustIntensities() ? spimData.getIntensityAdjustments().getIntensityAdjustments() : null,
+						fusion.getFusionType(), // weighted average or single view
 						fusion.getBoundingBox(),
 						(RealType & NativeType)type,
 						blocksize );
@@ -276,6 +312,10 @@ public class Image_Fusion implements PlugIn
 			}
 
 			final String title = getTitle( fusion.getSplittingType(), group );
+
+			// lets the exporter skip blocks without any view and copy blocks covered by a single view (affine only)
+			if ( !fusion.getNonRigidParameters().isActive() )
+				exporter.setBlockClassifier( createBlockClassifier( spimData, fusion, group, registrations, conv, type ) );
 	
 			if ( !exporter.exportImage(
 					lazy,
@@ -309,11 +349,143 @@ public class Image_Fusion implements PlugIn
 		
 		taskExecutor.shutdown();
 
+		CellCacheManager.getInstance().printStatistics();
+
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): DONE." );
 
 		return true;
 	}
 
+	/**
+	 * Creates a classifier for the blocks of a fused image, single-view blocks are read from that view alone without weights.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected static BlockClassifier createBlockClassifier(
+			final SpimData2 spimData,
+			final FusionGUI fusion,
+			final Group< ViewDescription > group,
+			final HashMap< ViewId, AffineTransform3D > registrations,
+			final Converter conv,
+			final Type type )
+	{
+		return new BlockClassifier(
+				group.getViews(),
+				registrations,
+				LazyFusionTools.assembleDimensions( group.getViews(), spimData.getSequenceDescription().getViewDescriptions() ),
+				fusion.getBoundingBox(),
+				viewId ->
+				{
+					final RandomAccessibleInterval< FloatType > single = FusionTools.fuseVirtual(
+							spimData.getSequenceDescription().getImgLoader(),
+							registrations,
+							spimData.getSequenceDescription().getViewDescriptions(),
+							Arrays.asList( viewId ),
+							false,
+							false,
+							fusion.getInterpolation(),
+							fusion.getBoundingBox(),
+							fusion.adjustIntensities() ? spimData.getIntensityAdjustments().getIntensityAdjustments() : null,
+							Fusion.FIRST,
+							null );
+
+					return conv == null ? single : Converters.convertRAI( (RandomAccessibleInterval)single, conv, type );
+				} );
+	}
+
+	/**
+	 * @return all channel groups that share the timepoint (and illumination if split by illumination) with the given group
+	 */
+	protected static ArrayList< Group< ViewDescription > > channelGroups(
+			final FusionGUI fusion,
+			final Collection< Group< ViewDescription > > groups,
+			final Group< ViewDescription > group )
+	{
+		final ViewDescription vd0 = group.iterator().next();
+
+		final ArrayList< Group< ViewDescription > > channelGroups = new ArrayList<>();
+
+		for ( final Group< ViewDescription > g : Group.getGroupsSorted( groups ) )
+		{
+			final ViewDescription vd = g.iterator().next();
+
+			if ( vd.getTimePointId() != vd0.getTimePointId() )
+				continue;
+
+			if ( fusion.getSplittingType() == 1 && vd.getViewSetup().getIllumination().getId() != vd0.getViewSetup().getIllumination().getId() )
+				continue;
+
+			channelGroups.add( g );
+		}
+
+		return channelGroups;
+	}
+
+	/**
+	 * Fuses the channel groups in one lazy 4d image and exports a 3d slice for each of them, so that every
+	 * block is fused once for all channels.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected static boolean exportChannelsJointly(
+			final SpimData2 spimData,
+			final FusionGUI fusion,
+			final ImgExport exporter,
+			final List< Group< ViewDescription > > channelGroups,
+			final Converter conv,
+			final RealType type,
+			final int[] blocksize )
+	{
+		final ArrayList< Set< ViewDescription > > channelViews = new ArrayList<>();
+		final HashSet< ViewId > allViews = new HashSet<>();
+
+		for ( final Group< ViewDescription > g : channelGroups )
+		{
+			channelViews.add( g.getViews() );
+			allViews.addAll( g.getViews() );
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Fusing " + channelGroups.size() + " channel(s) jointly." );
+
+		final HashMap< ViewId, AffineTransform3D > registrations =
+				TransformVirtual.adjustAllTransforms(
+						allViews,
+						spimData.getViewRegistrations().getViewRegistrations(),
+						fusion.getAnisotropyFactor(),
+						fusion.getDownsampling() );
+
+		final RandomAccessibleInterval lazy4d = LazyMultiChannelAffineFusion.init(
+				conv,
+				spimData.getSequenceDescription().getImgLoader(),
+				channelViews,
+				registrations,
+				spimData.getSequenceDescription().getViewDescriptions(),
+				fusion.useBlending(),
+				fusion.useContentBased(),
+				fusion.getInterpolation(),
+				fusion.adjustIntensities() ? spimData.getIntensityAdjustments().getIntensityAdjustments() : null,
+				fusion.getBoundingBox(),
+				(RealType & NativeType)type,
+				blocksize );
+
+		final ArrayList< RandomAccessibleInterval > slices = new ArrayList<>();
+		final ArrayList< String > titles = new ArrayList<>();
+
+		for ( int c = 0; c < channelGroups.size(); ++c )
+		{
+			slices.add( Views.hyperSlice( lazy4d, 3, c ) );
+			titles.add( getTitle( fusion.getSplittingType(), channelGroups.get( c ) ) );
+
+			exporter.setBlockClassifier( createBlockClassifier( spimData, fusion, channelGroups.get( c ), registrations, conv, type ) );
+		}
+
+		return exporter.exportImages(
+				(List)slices,
+				fusion.getBoundingBox(),
+				fusion.getDownsampling(),
+				fusion.getAnisotropyFactor(),
+				titles,
+				channelGroups );
+	}
+
 	public static double[] determineInputBitDepth( final Iterable< ? extends ViewDescription > group, final SpimData2 spimData )
 	{
 		SetupImgLoader< ? > loader = spimData.getSequenceDescription().getImgLoader().getSetupImgLoader( group.iterator().next().getViewSetupId() );
@@ -64,6 +64,7 @@ import net.preibisch.mvrecon.process.export.ImgExport;
 import net.preibisch.mvrecon.process.export.OpenSeaDragon;
 import net.preibisch.mvrecon.process.export.Save3dTIFF;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
 import net.preibisch.mvrecon.process.fusion.intensityadjust.IntensityAdjustmentTools;
 import net.preibisch.mvrecon.process.interestpointregistration.TransformationTools;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
@@ -72,7 +73,8 @@ public class FusionGUI implements FusionExportInterface
 {
 	//public static int defaultCache = 2;
 	public static int[] cellDim = new int[]{ 10, 10, 10 };
-	public static int maxCacheSize = Integer.MAX_VALUE;
+	// if > 0, the maximal number of cells per cached image, all cells share the global budget of CellCacheManager
+	public static int maxCacheSize = -1;
 
 	public static double defaultDownsampling = 1.0;
 	public static int defaultBB = 0;
@@ -80,6 +82,9 @@ public class FusionGUI implements FusionExportInterface
 	public static String[] interpolationTypes = new String[]{ "Nearest Neighbor", "Linear Interpolation" };
 	public static int defaultInterpolation = 1;
 
+	public static String[] fusionTypes = new String[]{ "Weighted average", "First view only (lowest index)", "Closest view only (nearest center)" };
+	public static int defaultFusionType = 0;
+
 	public static String[] pixelTypes1 = new String[]{ "32-bit floating point", "16-bit unsigned integer", "8-bit unsigned integer" };
 	public static int defaultPixelType = 0;
 
@@ -97,6 +102,7 @@ public class FusionGUI implements FusionExportInterface
 
 	public static boolean defaultUseBlending = true;
 	public static boolean defaultUseContentBased = false;
+	public static boolean defaultFuseChannelsJointly = false;
 	public static boolean defaultAdjustIntensities = false;
 	public static boolean defaultPreserveAnisotropy = false;
 
@@ -107,6 +113,7 @@ public class FusionGUI implements FusionExportInterface
 	protected int interpolation = defaultInterpolation;
 	protected int boundingBox = defaultBB;
 	protected int pixelType = defaultPixelType;
+	protected int fusionType = defaultFusionType;
 	protected int defineMinMax = defaultDefineMinMax;
 	protected double min = defaultMin;
 	protected double max = defaultMax;
@@ -115,6 +122,7 @@ public class FusionGUI implements FusionExportInterface
 	protected double downsampling = defaultDownsampling;
 	protected boolean useBlending = defaultUseBlending;
 	protected boolean useContentBased = defaultUseContentBased;
+	protected boolean fuseChannelsJointly = defaultFuseChannelsJointly;
 	protected boolean adjustIntensities = defaultAdjustIntensities;
 	protected boolean preserveAnisotropy = defaultPreserveAnisotropy;
 	protected double avgAnisoF;
@@ -192,6 +200,19 @@ public class FusionGUI implements FusionExportInterface
 	}
 	public int getInterpolation() { return interpolation; }
 
+	/**
+	 * @return how to combine overlapping views (weighted average, or a single view per pixel)
+	 */
+	public Fusion getFusionType()
+	{
+		if ( fusionType == 1 )
+			return Fusion.FIRST;
+		else if ( fusionType == 2 )
+			return Fusion.CLOSEST;
+		else
+			return Fusion.AVG;
+	}
+
 	@Override
 	public int getPixelType() { return pixelType; }
 
@@ -210,6 +231,8 @@ public class FusionGUI implements FusionExportInterface
 
 	public boolean useContentBased() { return useContentBased; }
 
+	public boolean fuseChannelsJointly() { return fuseChannelsJointly; }
+
 	public boolean adjustIntensities() { return adjustIntensities; }
 
 	@Override
@@ -316,6 +339,7 @@ public class FusionGUI implements FusionExportInterface
 		downsampleField = PluginHelper.isHeadless() ? null : (TextField)gd.getNumericFields().lastElement();
 
 		gd.addChoice( "Interpolation", interpolationTypes, interpolationTypes[ defaultInterpolation ] );
+		gd.addChoice( "Fusion_type", fusionTypes, fusionTypes[ defaultFusionType ] );
 
 		gd.addChoice( "Pixel_type", pixelTypes1, pixelTypes1[ defaultPixelType ] );
 		pixelTypeChoice = PluginHelper.isHeadless() ? null : (Choice)gd.getChoices().lastElement();
@@ -341,6 +365,7 @@ public class FusionGUI implements FusionExportInterface
 		gd.addCheckbox( "Blend images smoothly", defaultUseBlending );
 		gd.addCheckbox( "Use content based fusion (warning, slow)", defaultUseContentBased );
 		contentbasedCheckbox = PluginHelper.isHeadless() ? null : (Checkbox)gd.getCheckboxes().lastElement();
+		gd.addCheckbox( "Fuse_all_channels_of_a_timepoint_in_one_pass (affine only)", defaultFuseChannelsJointly );
 
 		if ( hasIntensityAdjustments )
 			gd.addCheckbox( "Adjust_image_intensities (only use with 32-bit output)", defaultAdjustIntensities );
@@ -414,6 +439,7 @@ public class FusionGUI implements FusionExportInterface
 			downsampling = Double.NaN;
 
 		interpolation = defaultInterpolation = gd.getNextChoiceIndex();
+		fusionType = defaultFusionType = gd.getNextChoiceIndex();
 		pixelType = defaultPixelType = gd.getNextChoiceIndex();
 		//defineMinMax = defaultDefineMinMax = gd.getNextBoolean();
 		//cacheType = defaultCache = gd.getNextChoiceIndex();
@@ -426,6 +452,7 @@ public class FusionGUI implements FusionExportInterface
 
 		useBlending = defaultUseBlending = gd.getNextBoolean();
 		useContentBased = defaultUseContentBased = gd.getNextBoolean();
+		fuseChannelsJointly = defaultFuseChannelsJointly = gd.getNextBoolean();
 		if ( hasIntensityAdjustments )
 			adjustIntensities = defaultAdjustIntensities = gd.getNextBoolean();
 		else
@@ -471,10 +498,12 @@ public class FusionGUI implements FusionExportInterface
 			IOFunctions.println( "Max: " + maxIntensity() );
 		}
 		IOFunctions.println( "Interpolation: " + interpolationTypes[ getInterpolation() ] );
+		IOFunctions.println( "Fusion type: " + fusionTypes[ fusionType ] );
 		//IOFunctions.println( "CacheType: " + FusionTools.imgDataTypeChoice[ getCacheType() ] );
 		IOFunctions.println( "Blending: " + useBlending );
 		IOFunctions.println( "Adjust intensities: " + adjustIntensities );
 		IOFunctions.println( "Content-based: " + useContentBased );
+		IOFunctions.println( "Fuse channels jointly: " + fuseChannelsJointly );
 		IOFunctions.println( "AnisotropyFactor: " + avgAnisoF );
 		IOFunctions.println( "Split by: " + splittingTypes[ getSplittingType() ] );
 		IOFunctions.println( "Image Export: " + imgExportDescriptions[ imgExport ] );
@@ -296,7 +296,7 @@ public class MultiResolutionTools
 		{
 			final RandomAccessibleInterval< FloatType > cachedImg = FusionTools.cacheRandomAccessibleInterval(
 					virtualImg.getA(),
-					FusionGUI.maxCacheSize,
+					maxCacheSize,
 					new FloatType(),
 					FusionGUI.cellDim );
 
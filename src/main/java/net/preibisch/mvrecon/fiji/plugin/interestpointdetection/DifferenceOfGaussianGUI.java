@@ -45,8 +45,10 @@ import net.preibisch.mvrecon.process.cuda.CUDATools;
 import net.preibisch.mvrecon.process.cuda.NativeLibraryTools;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.interestpointdetection.InterestPointTools;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoG;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGParameters;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.TiledDoG;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
 public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericDialogAppender
@@ -63,6 +65,8 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 		"GPU approximate (Nvidia CUDA via JNA)",
 		"GPU accurate (Nvidia CUDA via JNA)" };
 	public static int defaultComputationChoiceIndex = 0;
+	public static boolean defaultTiledDetection = false;
+	public static boolean defaultOverlappingOnly = false;
 
 	double sigma;
 	double threshold;
@@ -70,6 +74,8 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 	boolean findMax;
 
 	double percentGPUMem = defaultUseGPUMem;
+	boolean tiled = false;
+	boolean overlappingOnly = false;
 
 	/**
 	 * CUDA device
@@ -118,6 +124,10 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 		dog.deviceCUDA = this.deviceCUDA;
 		dog.accurateCUDA = this.accurateCUDA;
 		dog.percentGPUMem = this.percentGPUMem;
+		dog.tileSize = ( this.tiled && this.cuda == null ) ? TiledDoG.defaultTileSize : null;
+
+		if ( this.overlappingOnly )
+			dog.overlapIntervals = InterestPointTools.overlappingIntervals( spimData, SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) );
 
 		dog.limitDetections = this.limitDetections;
 		dog.maxDetections = this.maxDetections;
@@ -125,6 +135,8 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 
 		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
 
+		dog.downsampleXYPerView = new HashMap<>();
+
 		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
 		{
 			// make sure not everything crashes if one file is missing
@@ -133,17 +145,14 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 				if ( !vd.isPresent() )
 					continue;
 
-				dog.toProcess.clear();
-				dog.toProcess.add( vd );
-
 				// downsampleXY == 0 : a bit less then z-resolution
 				// downsampleXY == -1 : a bit more then z-resolution
 				if ( downsampleXYIndex < 1 )
-					dog.downsampleXY = DownsampleTools.downsampleFactor( downsampleXYIndex, downsampleZ, vd.getViewSetup().getVoxelSize() );
+					dog.downsampleXYPerView.put( vd, DownsampleTools.downsampleFactor( downsampleXYIndex, downsampleZ, vd.getViewSetup().getVoxelSize() ) );
 				else
-					dog.downsampleXY = downsampleXYIndex;
+					dog.downsampleXYPerView.put( vd, downsampleXYIndex );
 
-				DoG.addInterestPoints( interestPoints, dog );
+				dog.toProcess.add( vd );
 			}
 			catch ( Exception  e )
 			{
@@ -153,6 +162,9 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 			}
 		}
 
+		// all views of the timepoint at once, each one is isolated from failures of the others
+		DoG.addInterestPoints( interestPoints, dog );
+
 		return interestPoints;
 	}
 
@@ -274,13 +286,16 @@ public class DifferenceOfGaussianGUI extends DifferenceOfGUI implements GenericD
 	protected void addAddtionalParameters( final GenericDialog gd )
 	{
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationChoiceIndex ] );
-		
+		gd.addCheckbox( "Tiled_detection (bounded memory for large views, CPU only)", defaultTiledDetection );
+		gd.addCheckbox( "Only_detect_in_overlapping_regions (using current registrations)", defaultOverlappingOnly );
 	}
 
 	@Override
 	protected boolean queryAdditionalParameters( final GenericDialog gd )
 	{
 		final int computationTypeIndex = defaultComputationChoiceIndex = gd.getNextChoiceIndex();
+		tiled = defaultTiledDetection = gd.getNextBoolean();
+		overlappingOnly = defaultOverlappingOnly = gd.getNextBoolean();
 
 		if ( computationTypeIndex == 1 )
 			accurateCUDA = false;
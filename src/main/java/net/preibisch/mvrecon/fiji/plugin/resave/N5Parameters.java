@@ -30,25 +30,22 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
-import org.janelia.saalfeldlab.n5.Bzip2Compression;
 import org.janelia.saalfeldlab.n5.Compression;
-import org.janelia.saalfeldlab.n5.GzipCompression;
-import org.janelia.saalfeldlab.n5.Lz4Compression;
-import org.janelia.saalfeldlab.n5.RawCompression;
-import org.janelia.saalfeldlab.n5.XzCompression;
 
 import bdv.export.ExportMipmapInfo;
 import bdv.export.ProposeMipmaps;
 import fiji.util.gui.GenericDialogPlus;
 import mpicbg.spim.data.sequence.ViewSetup;
 import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.export.CompressionTools;
 
 public class N5Parameters
 {
-	public static String[] compressions = new String[]{ "Bzip2", "Gzip", "Lz4", "Raw (no compression)", "Xz" };
+	public static String[] compressions = CompressionTools.compressions;
 	public static int defaultBlockSize = 64;
 	public static int defaultBlockSizeXY = 128;
 	public static int defaultCompression = 1;
+	public static int defaultCompressionLevel = -1;
 	public static int defaultNumThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
 
 	public File xmlFile, n5File;
@@ -64,6 +61,7 @@ public class N5Parameters
 
 	public boolean setFinishedAttributeInN5 = true; // required if double-checking that all ViewId were written
 	final public static String finishedAttrib = "saved_completely"; // required if double-checking that all ViewId were written
+	public boolean resume = false; // skip ViewIds that have the finished attribute set
 
 	public static N5Parameters getParamtersIJ(
 			final String xmlFileName,
@@ -98,6 +96,7 @@ public class N5Parameters
 			gdp.addMessage( "N5 saving options", new Font( Font.SANS_SERIF, Font.BOLD, 13 ) );
 
 		gdp.addChoice( "Compression", compressions, compressions[ defaultCompression ] );
+		gdp.addNumericField( "Compression_level (-1 = default of the codec)", defaultCompressionLevel, 0 );
 		gdp.addStringField( "Subsampling_factors", ProposeMipmaps.getArrayString( autoMipmapSettings.getExportResolutions() ), 40 );
 		gdp.addStringField( "N5_block_sizes", ProposeMipmaps.getArrayString( autoMipmapSettings.getSubdivisions() ), 40 );
 
@@ -120,6 +119,7 @@ public class N5Parameters
 			return null;
 
 		final int compression = defaultCompression = gdp.getNextChoiceIndex();
+		final int compressionLevel = defaultCompressionLevel = (int)Math.round( gdp.getNextNumber() );
 
 		final String subsampling = gdp.getNextString();
 		final String chunkSizes = gdp.getNextString();
@@ -140,16 +140,7 @@ public class N5Parameters
 			n5params.saveData = gdp.getNextBoolean();
 		}
 
-		if ( compression == 0 ) // "Bzip2", "Gzip", "Lz4", "Raw (no compression)", "Xz"
-			n5params.compression = new Bzip2Compression();
-		else if ( compression == 1 )
-			n5params.compression = new GzipCompression();
-		else if ( compression == 2 )
-			n5params.compression = new Lz4Compression();
-		else if ( compression == 4 )
-			n5params.compression = new XzCompression();
-		else
-			n5params.compression = new RawCompression();
+		n5params.compression = CompressionTools.createCompression( compression, compressionLevel );
 
 		final int[][] resolutions = PluginHelper.parseResolutionsString( subsampling );
 		final int[][] subdivisions = PluginHelper.parseResolutionsString( chunkSizes );
@@ -35,12 +35,8 @@ import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
-import org.janelia.saalfeldlab.n5.Bzip2Compression;
-import org.janelia.saalfeldlab.n5.GzipCompression;
-import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.RawCompression;
-import org.janelia.saalfeldlab.n5.XzCompression;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -63,6 +59,7 @@ import net.preibisch.mvrecon.fiji.plugin.queryXML.LoadParseQueryXML;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.headless.resave.HeadlessParseQueryXML;
+import net.preibisch.mvrecon.process.export.CompressionTools;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
 public class Resave_N5 implements PlugIn
@@ -123,23 +120,46 @@ public class Resave_N5 implements PlugIn
 
 			final Map< Integer, ExportMipmapInfo > proposedMipmaps = n5Params.proposedMipmaps;
 
+			// when resuming, skip the views that were completely written before
+			final List< ViewId > vidsToWrite;
+
+			if ( n5Params.resume && n5Params.n5File.exists() )
+			{
+				final N5FSReader n5 = new N5FSReader( n5Params.n5File.getAbsolutePath() );
+
+				vidsToWrite = vidsToResave.stream().filter( vid ->
+				{
+					final String pathName = BdvN5Format.getPathName( vid.getViewSetupId(), vid.getTimePointId() );
+					return !n5.exists( pathName ) || !Boolean.TRUE.equals( n5.getAttribute( pathName, N5Parameters.finishedAttrib, Boolean.class ) );
+				} ).collect( Collectors.< ViewId >toList() );
+
+				progressWriter.out().println( "Resuming, " + ( vidsToResave.size() - vidsToWrite.size() ) + " of " + vidsToResave.size() + " views are already saved." );
+			}
+			else
+			{
+				vidsToWrite = new ArrayList<>( vidsToResave );
+			}
+
 			try
 			{
-				WriteSequenceToN5.writeN5File(
-						sdReduced.getSequenceDescription(),
-						proposedMipmaps,
-						n5Params.compression, //new GzipCompression()
-						n5Params.n5File,
-						new bdv.export.ExportScalePyramid.DefaultLoopbackHeuristic(),
-						null,
-						n5Params.numCellCreatorThreads, // Runtime.getRuntime().availableProcessors()
-						progressWriter );
+				if ( vidsToWrite.size() > 0 )
+				{
+					WriteSequenceToN5.writeN5File(
+							Resave_HDF5.reduceSpimData2( sdReduced, vidsToWrite ).getSequenceDescription(),
+							proposedMipmaps,
+							n5Params.compression, //new GzipCompression()
+							n5Params.n5File,
+							new bdv.export.ExportScalePyramid.DefaultLoopbackHeuristic(),
+							null,
+							n5Params.numCellCreatorThreads, // Runtime.getRuntime().availableProcessors()
+							progressWriter );
+				}
 
 				if ( n5Params.setFinishedAttributeInN5 )
 				{
 					final N5FSWriter n5 = new N5FSWriter( n5Params.n5File.getAbsolutePath() );
 
-					for (ViewId vid : vidsToResave)
+					for (ViewId vid : vidsToWrite)
 						n5.setAttribute( BdvN5Format.getPathName( vid.getViewSetupId(), vid.getTimePointId() ), N5Parameters.finishedAttrib, true);
 				}
 			}
@@ -185,9 +205,13 @@ public class Resave_N5 implements PlugIn
 		private String outputContainerPath = null;
 
 		@Option(name = "-c", aliases = { "--compression" }, required = false,
-				usage = "Compression options bzip2, gzip, lz4, raw, xz (default: gzip)")
+				usage = "Compression options bzip2, gzip, lz4, raw, xz, blosc (default: gzip)")
 		private String compression = "gzip";
 
+		@Option(name = "-cl", aliases = { "--compressionLevel" }, required = false,
+				usage = "Compression level (gzip: 1-9, bzip2: 1-9, xz: 0-9, blosc: 0-9), ignored for lz4 and raw (default: -1, the default of the codec)")
+		private int compressionLevel = -1;
+
 		@Option(name = "-t", aliases = { "--numThreads" }, required = false,
 				usage = "Number of threads used for saving, must be >= 1 (default: 1)")
 		private int numThreads = 1;
@@ -216,6 +240,10 @@ public class Resave_N5 implements PlugIn
 				usage = "skips setting a finish attribute after writing each View to the N5 (default: false)")
 		private boolean noFinishAttribute = false;
 
+		@Option(name = "-r", aliases = { "--resume" }, required = false,
+				usage = "skips views that are marked as completely written in an existing N5 (requires the finish attribute, default: false)")
+		private boolean resume = false;
+
 		public Arguments( final String... args ) throws IllegalArgumentException
 		{
 			final CmdLineParser parser = new CmdLineParser( this );
@@ -245,23 +273,16 @@ public class Resave_N5 implements PlugIn
 			n5params.saveData = !this.isNoResaveData();
 			n5params.saveXML = !this.isNoResaveXML();
 
-			if ( this.getCompression().toLowerCase().trim().equals( "bzip2" ) ) // "Bzip2", "Gzip", "Lz4", "Raw (no compression)", "Xz"
-				n5params.compression = new Bzip2Compression();
-			else if ( this.getCompression().toLowerCase().trim().equals( "gzip" ) )
-				n5params.compression = new GzipCompression();
-			else if ( this.getCompression().toLowerCase().trim().equals( "lz4" ) )
-				n5params.compression = new Lz4Compression();
-			else if ( this.getCompression().toLowerCase().trim().equals( "xz" ) )
-				n5params.compression = new XzCompression();
-			else if ( this.getCompression().toLowerCase().trim().equals( "raw" ) )
-				n5params.compression = new RawCompression();
-			else
+			n5params.compression = CompressionTools.createCompression( this.getCompression(), this.getCompressionLevel() );
+
+			if ( n5params.compression == null )
 			{
 				IOFunctions.println( "Cannot parse compression argument: " + this.getCompression() );
 				return null;
 			}
 
 			n5params.setFinishedAttributeInN5 = !this.isNoFinishAttrib();
+			n5params.resume = this.isResume();
 			n5params.numCellCreatorThreads = Math.max( 1, this.getNumThreads() );
 
 			if ( this.getSubsampling() == null && this.getBlocksize() == null )
@@ -365,11 +386,21 @@ public class Resave_N5 implements PlugIn
 			return compression;
 		}
 
+		public int getCompressionLevel()
+		{
+			return compressionLevel;
+		}
+
 		public int getNumThreads()
 		{
 			return numThreads;
 		}
 
+		public boolean isResume()
+		{
+			return resume;
+		}
+
 		public boolean isNoResaveData()
 		{
 			return noResaveData;
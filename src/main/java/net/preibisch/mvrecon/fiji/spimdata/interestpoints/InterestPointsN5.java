@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataType;
 import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
@@ -51,6 +52,7 @@ import net.preibisch.legacy.io.IOFunctions;
 public class InterestPointsN5 extends InterestPoints
 {
 	public static int defaultBlockSize = 300_000;
+	public static Compression defaultCompression = new GzipCompression();
 	public static final String baseN5 = "interestpoints.n5";
 
 	final String n5path;
@@ -167,14 +169,14 @@ public class InterestPointsN5 extends InterestPoints
 						new long[] {0},
 						new int[] {1},
 						DataType.UINT64,
-						new GzipCompression());
+						defaultCompression);
 
 				n5Writer.createDataset(
 						locDataset,
 						new long[] {0},
 						new int[] {1},
 						DataType.FLOAT64,
-						new GzipCompression());
+						defaultCompression);
 
 				return true;
 			}
@@ -205,8 +207,8 @@ public class InterestPointsN5 extends InterestPoints
 			final RandomAccessibleInterval< DoubleType > locData =
 					Views.interval( loc, new long[] { 0, 0 }, new long[] { n - 1, list.size() - 1 } );
 
-			N5Utils.save( idData, n5Writer, idDataset, new int[] { 1, defaultBlockSize }, new GzipCompression() );
-			N5Utils.save( locData, n5Writer, locDataset, new int[] { (int)locData.dimension( 0 ), defaultBlockSize }, new GzipCompression() );
+			N5Utils.save( idData, n5Writer, idDataset, new int[] { 1, defaultBlockSize }, defaultCompression );
+			N5Utils.save( locData, n5Writer, locDataset, new int[] { (int)locData.dimension( 0 ), defaultBlockSize }, defaultCompression );
 
 			n5Writer.close();
 
@@ -306,7 +308,7 @@ public class InterestPointsN5 extends InterestPoints
 			final RandomAccessibleInterval< UnsignedLongType > corrIdData =
 					Views.interval( corrId, new long[] { 0, 0 }, new long[] { 2, list.size() - 1 } );
 
-			N5Utils.save( corrIdData, n5Writer, corrDataset, new int[] { 1, defaultBlockSize }, new GzipCompression() );
+			N5Utils.save( corrIdData, n5Writer, corrDataset, new int[] { 1, defaultBlockSize }, defaultCompression );
 
 			/*
 			n5Writer.createDataset(
@@ -314,7 +316,7 @@ public class InterestPointsN5 extends InterestPoints
 					new long[] {1},
 					new int[] {1},
 					DataType.OBJECT,
-					new GzipCompression());
+					defaultCompression);
 
 			final DatasetAttributes datasetAttributes = n5Writer.getDatasetAttributes(dataset);
 
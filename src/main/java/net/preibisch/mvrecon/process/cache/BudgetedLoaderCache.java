@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.cache;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.ref.WeakRefLoaderCache;
+
+/**
+ * A {@link WeakRefLoaderCache} whose values are kept alive by the global LRU of a {@link CellCacheManager},
+ * i.e. a value stays in memory as long as it is among the most recently used values (by size) of all caches.
+ *
+ * @author Stephan Preibisch
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BudgetedLoaderCache< K, V > extends WeakRefLoaderCache< K, V >
+{
+	final CellCacheManager manager;
+	final long maxEntries;
+
+	// the cells held by the manager, only modified by the manager (synchronized)
+	final ConcurrentHashMap< Object, CellCacheManager.Entry > entries = new ConcurrentHashMap<>();
+	final ArrayDeque< CellCacheManager.Entry > queue = new ArrayDeque<>();
+
+	/**
+	 * @param manager - the manager that decides how long values are kept
+	 * @param maxEntries - if &gt; 0, at most this many values of this cache are kept by the manager
+	 */
+	public BudgetedLoaderCache( final CellCacheManager manager, final long maxEntries )
+	{
+		this.manager = manager;
+		this.maxEntries = maxEntries;
+	}
+
+	@Override
+	public V get( final K key, final CacheLoader< ? super K, ? extends V > loader ) throws ExecutionException
+	{
+		final V cached = getIfPresent( key );
+
+		// fast path without any lock
+		if ( cached != null )
+		{
+			manager.hit();
+			manager.touch( this, key, cached );
+
+			return cached;
+		}
+
+		// might have been loaded by another thread in the meantime
+		final V value = super.get( key, loader );
+
+		manager.miss();
+		manager.add( this, key, value );
+
+		return value;
+	}
+
+	/**
+	 * Releases all values of this cache from the global LRU (they are collected once nobody references them).
+	 */
+	public void release()
+	{
+		manager.removeAll( this );
+	}
+
+	public CellCacheManager getManager() { return manager; }
+	public long getMaxEntries() { return maxEntries; }
+}
@@ -0,0 +1,337 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.cache;
+
+import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * One global, byte-budgeted LRU for the cells of all cached images (lazy fusion, content-based weights,
+ * deconvolution inputs, flatfield correction, interactive multiresolution, ...).
+ *
+ * The cells themselves live in {@link BudgetedLoaderCache}s that only hold weak references; this class
+ * keeps strong references to the most recently used cells until their summed size exceeds the budget.
+ * Cells that drop out of the LRU are not referenced anymore and are collected by the next GC (unless
+ * somebody is still using them), so memory is bounded by the budget instead of relying on soft references.
+ *
+ * The LRU is approximated with the clock (second chance) algorithm: a cache hit only sets a flag of the cell
+ * without any lock, the queues are only modified (synchronized) when a cell is loaded. Each cache with a limited
+ * number of cells has its own queue, so enforcing the limit never scans the cells of other caches.
+ *
+ * @author Stephan Preibisch
+ */
+public class CellCacheManager
+{
+	// by default use up to half of the available memory (-Xmx) for cached cells
+	public static double defaultMemoryFraction = 0.5;
+
+	private static CellCacheManager instance;
+
+	/**
+	 * @return the global cache manager, created with defaultMemoryFraction of the maximal heap size on first use
+	 */
+	public static synchronized CellCacheManager getInstance()
+	{
+		if ( instance == null )
+			instance = new CellCacheManager( Math.round( Runtime.getRuntime().maxMemory() * defaultMemoryFraction ) );
+
+		return instance;
+	}
+
+	/**
+	 * A strongly held cell, it is in the global queue and (if its cache is limited) in the queue of its cache.
+	 * Removed entries stay in the queues until they are polled or the queues are compacted.
+	 */
+	protected static class Entry
+	{
+		final BudgetedLoaderCache< ?, ? > owner;
+		final Object key;
+		final Object value;
+		final long bytes;
+
+		// set by every hit, cleared when the clock passes
+		volatile boolean referenced = false;
+
+		// guarded by the manager
+		boolean removed = false;
+
+		Entry( final BudgetedLoaderCache< ?, ? > owner, final Object key, final Object value, final long bytes )
+		{
+			this.owner = owner;
+			this.key = key;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	// the eldest entry is the next candidate for eviction
+	private final ArrayDeque< Entry > clock = new ArrayDeque<>();
+
+	private long maxBytes;
+	private long bytes = 0;
+	private int numCells = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxBytes - the memory budget for all strongly held cells
+	 */
+	public CellCacheManager( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Creates a new cache that participates in this LRU.
+	 *
+	 * @param maxEntries - if &gt; 0, at most this many cells of this cache are held (in addition to the global budget)
+	 * @param <K> - key type
+	 * @param <V> - value type
+	 * @return the new cache
+	 */
+	public < K, V > BudgetedLoaderCache< K, V > createCache( final long maxEntries )
+	{
+		return new BudgetedLoaderCache<>( this, maxEntries );
+	}
+
+	public < K, V > BudgetedLoaderCache< K, V > createCache()
+	{
+		return createCache( -1 );
+	}
+
+	/**
+	 * Marks a cell as recently used, called for every cache hit (no lock). A cell that was weakly reachable
+	 * but not held anymore is added again.
+	 */
+	protected void touch( final BudgetedLoaderCache< ?, ? > owner, final Object key, final Object value )
+	{
+		final Entry e = owner.entries.get( key );
+
+		if ( e == null )
+			add( owner, key, value );
+		else if ( !e.referenced )
+			e.referenced = true;
+	}
+
+	/**
+	 * Adds a cell that was just loaded and evicts cells if its cache holds too many cells or the budget is exceeded.
+	 */
+	protected synchronized void add( final BudgetedLoaderCache< ?, ? > owner, final Object key, final Object value )
+	{
+		// added by another thread in the meantime
+		if ( owner.entries.containsKey( key ) )
+			return;
+
+		final Entry entry = new Entry( owner, key, value, sizeOf( value ) );
+
+		owner.entries.put( key, entry );
+		clock.add( entry );
+		bytes += entry.bytes;
+		++numCells;
+
+		if ( owner.maxEntries > 0 )
+		{
+			owner.queue.add( entry );
+
+			// the cache holds more cells than it is allowed to, remove its least recently used one
+			while ( owner.entries.size() > owner.maxEntries && owner.entries.size() > 1 )
+				remove( nextVictim( owner.queue, entry ) );
+
+			compact( owner.queue, owner.entries.size() );
+		}
+
+		// keep at least the cell that was just added
+		while ( bytes > maxBytes && numCells > 1 )
+			remove( nextVictim( clock, entry ) );
+
+		compact( clock, numCells );
+	}
+
+	/**
+	 * @param queue - the queue, must contain at least one live entry other than keep
+	 * @param keep - the entry that must not be removed
+	 * @return the first entry of the queue that was not used since the clock passed it the last time
+	 */
+	private static Entry nextVictim( final ArrayDeque< Entry > queue, final Entry keep )
+	{
+		while ( true )
+		{
+			final Entry e = queue.poll();
+
+			if ( e.removed )
+				continue;
+
+			if ( e == keep )
+			{
+				queue.add( e );
+			}
+			else if ( e.referenced )
+			{
+				// second chance
+				e.referenced = false;
+				queue.add( e );
+			}
+			else
+			{
+				return e;
+			}
+		}
+	}
+
+	/**
+	 * Drops the removed entries once they make up more than half of a queue.
+	 */
+	private static void compact( final ArrayDeque< Entry > queue, final int numLive )
+	{
+		if ( queue.size() > 2 * numLive + 64 )
+			queue.removeIf( e -> e.removed );
+	}
+
+	private void remove( final Entry e )
+	{
+		e.removed = true;
+		e.owner.entries.remove( e.key, e );
+		bytes -= e.bytes;
+		--numCells;
+		evictions.increment();
+	}
+
+	/**
+	 * Releases all cells of one cache.
+	 */
+	protected synchronized void removeAll( final BudgetedLoaderCache< ?, ? > owner )
+	{
+		for ( final Entry e : owner.entries.values() )
+		{
+			e.removed = true;
+			bytes -= e.bytes;
+			--numCells;
+		}
+
+		owner.entries.clear();
+		owner.queue.clear();
+
+		compact( clock, numCells );
+	}
+
+	protected void hit() { hits.increment(); }
+	protected void miss() { misses.increment(); }
+
+	/**
+	 * Releases all cells, they will be recomputed (or reloaded) when requested again.
+	 */
+	public synchronized void clear()
+	{
+		// same as removeAll() for every cache
+		final HashSet< BudgetedLoaderCache< ?, ? > > owners = new HashSet<>();
+
+		for ( final Entry e : clock )
+		{
+			e.removed = true;
+			owners.add( e.owner );
+		}
+
+		for ( final BudgetedLoaderCache< ?, ? > owner : owners )
+		{
+			owner.entries.clear();
+			owner.queue.clear();
+		}
+
+		clock.clear();
+		bytes = 0;
+		numCells = 0;
+	}
+
+	/**
+	 * @param maxBytes - the new memory budget, cells are evicted when the next cell is added
+	 */
+	public synchronized void setMaxBytes( final long maxBytes ) { this.maxBytes = maxBytes; }
+
+	public synchronized long getMaxBytes() { return maxBytes; }
+	public synchronized long getBytes() { return bytes; }
+	public synchronized int getNumCells() { return numCells; }
+
+	public long getHits() { return hits.sum(); }
+	public long getMisses() { return misses.sum(); }
+	public long getEvictions() { return evictions.sum(); }
+
+	public void resetStatistics()
+	{
+		hits.reset();
+		misses.reset();
+		evictions.reset();
+	}
+
+	public void printStatistics()
+	{
+		final long h = getHits();
+		final long m = getMisses();
+
+		IOFunctions.println(
+				"Cell cache: " + getNumCells() + " cells, " + ( getBytes() / ( 1024 * 1024 ) ) + "/" + ( getMaxBytes() / ( 1024 * 1024 ) ) + " MB, " +
+				"hits=" + h + ", misses=" + m + ", evictions=" + getEvictions() +
+				( h + m > 0 ? ", hit rate=" + ( 100 * h / ( h + m ) ) + "%" : "" ) );
+	}
+
+	/**
+	 * @param value - a cached value
+	 * @return the size of its data in bytes if it is a {@link Cell} backed by a primitive array, otherwise 1
+	 */
+	public static long sizeOf( final Object value )
+	{
+		if ( Cell.class.isInstance( value ) )
+		{
+			final Object data = ((Cell< ? >)value).getData();
+
+			if ( ArrayDataAccess.class.isInstance( data ) )
+			{
+				final Object array = ((ArrayDataAccess< ? >)data).getCurrentStorageArray();
+
+				if ( array != null && array.getClass().isArray() )
+					return Math.max( 1, (long)Array.getLength( array ) * bytesPerElement( array.getClass().getComponentType() ) );
+			}
+		}
+
+		return 1;
+	}
+
+	protected static int bytesPerElement( final Class< ? > c )
+	{
+		if ( c == byte.class || c == boolean.class )
+			return 1;
+		else if ( c == short.class || c == char.class )
+			return 2;
+		else if ( c == int.class || c == float.class )
+			return 4;
+		else
+			return 8;
+	}
+}
@@ -33,29 +33,30 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.downsampling.lazy.LazyDownsample;
 import net.preibisch.mvrecon.process.downsampling.lazy.LazyDownsample2x;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLib2;
 
 public class Downsample
 {
+	/**
+	 * Lazily downsamples the input by integer factors in one step (see {@link LazyDownsample})
+	 *
+	 * @param input - the input
+	 * @param downsampleFactors - the factor per dimension (missing dimensions are not downsampled)
+	 * @param <T> - the type
+	 * @return the downsampled image (zero-min)
+	 */
 	public static < T extends RealType<T> & NativeType<T> > RandomAccessibleInterval< T > downsample(
-			RandomAccessibleInterval< T > input,
+			final RandomAccessibleInterval< T > input,
 			final long[] downsampleFactors )
 	{
-		long dsx = downsampleFactors[0];
-		long dsy = downsampleFactors[1];
-		long dsz = (downsampleFactors.length > 2) ? downsampleFactors[ 2 ] : 1;
+		final long[] factors = new long[ input.numDimensions() ];
 
-		for ( ;dsx > 1; dsx /= 2 )
-			input = Downsample.simple2x( input, new boolean[]{ true, false, false } );
+		for ( int d = 0; d < factors.length; ++d )
+			factors[ d ] = d < downsampleFactors.length ? Math.max( 1, downsampleFactors[ d ] ) : 1;
 
-		for ( ;dsy > 1; dsy /= 2 )
-			input = Downsample.simple2x( input, new boolean[]{ false, true, false } );
-
-		for ( ;dsz > 1; dsz /= 2 )
-			input = Downsample.simple2x( input, new boolean[]{ false, false, true } );
-
-		return input;
+		return LazyDownsample.init( input, Util.getTypeFromInterval( input ), factors, DoGImgLib2.blockSize );
 	}
 
 	public static < T extends RealType< T >& NativeType<T> > RandomAccessibleInterval< T > simple2x( final RandomAccessibleInterval<T> input )
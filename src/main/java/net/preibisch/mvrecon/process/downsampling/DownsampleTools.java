@@ -532,17 +532,11 @@ public class DownsampleTools
 			mipMapTransform.concatenate( additonalDS );
 		}
 
-		if ( !transformOnly )
+		if ( !transformOnly && ( dsx > 1 || dsy > 1 || dsz > 1 ) )
 		{
 			// note: every pixel is read exactly once, therefore caching the virtual input would not give any advantages
-			for ( ;dsx > 1; dsx /= 2 )
-				input = Downsample.simple2x( input, new boolean[]{ true, false, false } );
-
-			for ( ;dsy > 1; dsy /= 2 )
-				input = Downsample.simple2x( input, new boolean[]{ false, true, false } );
-
-			for ( ;dsz > 1; dsz /= 2 )
-				input = Downsample.simple2x( input, new boolean[]{ false, false, true } );
+			// (one lazy image for all dimensions, no intermediate caches)
+			input = Downsample.downsample( input, new long[] { dsx, dsy, dsz } );
 		}
 
 		return input;
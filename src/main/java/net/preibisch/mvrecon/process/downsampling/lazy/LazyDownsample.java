@@ -0,0 +1,284 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.downsampling.lazy;
+
+import java.util.function.Consumer;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import util.Lazy;
+
+/**
+ * Lazy N-dimensional box downsampling by arbitrary integer factors per dimension. Output pixel x is centered at input
+ * pixel min + f*x (like {@link LazyDownsample2x}, so the same downsampling transform applies): an odd factor averages
+ * f pixels, an even factor averages f+1 pixels with half weights at both ends (for f=2 this is the [0.5 1 0.5]/2 of
+ * LazyDownsample2x).
+ *
+ * Each cell reads its input once, reducing dimension 0 while reading and all other dimensions on a float buffer, so
+ * there are no intermediate (cached) images when downsampling in several dimensions and by more than 2x.
+ *
+ * @author preibisch
+ * @param <T> type of input and output
+ */
+public class LazyDownsample<T extends RealType<T> & NativeType<T>> implements Consumer<RandomAccessibleInterval<T>>
+{
+	final private RandomAccessible<T> source;
+	final private long[] sourceMin;
+	final private long[] factors;
+	final private int[] radius;
+	final private double[][] weights;
+
+	/**
+	 * @param source - the (extended) input
+	 * @param sourceMin - the min of the input interval
+	 * @param factors - the downsampling factor per dimension
+	 */
+	public LazyDownsample(
+			final RandomAccessible<T> source,
+			final long[] sourceMin,
+			final long[] factors )
+	{
+		this.source = source;
+		this.sourceMin = sourceMin;
+		this.factors = factors;
+
+		final int n = factors.length;
+
+		this.radius = new int[ n ];
+		this.weights = new double[ n ][];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final int f = (int)factors[ d ];
+
+			radius[ d ] = f / 2;
+			weights[ d ] = new double[ 2 * radius[ d ] + 1 ];
+
+			for ( int k = 0; k < weights[ d ].length; ++k )
+				weights[ d ][ k ] = 1.0 / f;
+
+			if ( f % 2 == 0 )
+			{
+				weights[ d ][ 0 ] *= 0.5;
+				weights[ d ][ weights[ d ].length - 1 ] *= 0.5;
+			}
+		}
+	}
+
+	// Note: the output RAI is a cell of a zero-min CachedCellImage
+	@Override
+	public void accept( final RandomAccessibleInterval<T> output )
+	{
+		final int n = output.numDimensions();
+
+		final long[] inMin = new long[ n ];
+		final int[] inSize = new int[ n ];
+		final int[] outSize = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			outSize[ d ] = (int)output.dimension( d );
+			inMin[ d ] = sourceMin[ d ] + factors[ d ] * output.min( d ) - radius[ d ];
+			inSize[ d ] = (int)( factors[ d ] * ( outSize[ d ] - 1 ) ) + 2 * radius[ d ] + 1;
+		}
+
+		// dimension 0: read the lines from the input and reduce them right away
+		final int[] size = inSize.clone();
+		size[ 0 ] = outSize[ 0 ];
+
+		float[] buffer = new float[ numElements( size ) ];
+		final double[] line = new double[ max( inSize ) ];
+		final int[] pos = new int[ n ];
+
+		final RandomAccess< T > ra = source.randomAccess();
+		int index = 0;
+
+		do
+		{
+			ra.setPosition( inMin[ 0 ], 0 );
+
+			for ( int d = 1; d < n; ++d )
+				ra.setPosition( inMin[ d ] + pos[ d ], d );
+
+			for ( int i = 0; i < inSize[ 0 ]; ++i )
+			{
+				line[ i ] = ra.get().getRealDouble();
+				ra.fwd( 0 );
+			}
+
+			for ( int x = 0; x < outSize[ 0 ]; ++x )
+				buffer[ index++ ] = (float)reduce( line, x, (int)factors[ 0 ], weights[ 0 ] );
+		}
+		while ( next( pos, size, 0 ) );
+
+		// all other dimensions on the buffer
+		for ( int d = 1; d < n; ++d )
+		{
+			if ( factors[ d ] == 1 )
+				continue;
+
+			final int[] newSize = size.clone();
+			newSize[ d ] = outSize[ d ];
+
+			final int[] stride = strides( size );
+			final int[] newStride = strides( newSize );
+			final float[] newBuffer = new float[ numElements( newSize ) ];
+
+			for ( int e = 0; e < n; ++e )
+				pos[ e ] = 0;
+
+			do
+			{
+				int in = 0, out = 0;
+
+				for ( int e = 0; e < n; ++e )
+				{
+					in += pos[ e ] * stride[ e ];
+					out += pos[ e ] * newStride[ e ];
+				}
+
+				for ( int i = 0; i < size[ d ]; ++i, in += stride[ d ] )
+					line[ i ] = buffer[ in ];
+
+				for ( int x = 0; x < newSize[ d ]; ++x, out += newStride[ d ] )
+					newBuffer[ out ] = (float)reduce( line, x, (int)factors[ d ], weights[ d ] );
+			}
+			while ( next( pos, size, d ) );
+
+			buffer = newBuffer;
+			size[ d ] = newSize[ d ];
+		}
+
+		// the buffer is in flat iteration order of the cell
+		final Cursor< T > cursor = Views.flatIterable( output ).cursor();
+
+		for ( int i = 0; cursor.hasNext(); ++i )
+			cursor.next().setReal( buffer[ i ] );
+	}
+
+	/**
+	 * @return output pixel x of a line (the input line starts radius pixels before the center of output pixel 0)
+	 */
+	private static double reduce( final double[] line, final int x, final int f, final double[] w )
+	{
+		double sum = 0;
+
+		for ( int k = 0, i = x * f; k < w.length; ++k, ++i )
+			sum += w[ k ] * line[ i ];
+
+		return sum;
+	}
+
+	/**
+	 * moves to the next position (odometer over all dimensions except skip), returns false when done
+	 */
+	private static boolean next( final int[] pos, final int[] size, final int skip )
+	{
+		for ( int d = 0; d < pos.length; ++d )
+		{
+			if ( d == skip )
+				continue;
+
+			if ( ++pos[ d ] < size[ d ] )
+				return true;
+
+			pos[ d ] = 0;
+		}
+
+		return false;
+	}
+
+	private static int[] strides( final int[] size )
+	{
+		final int[] stride = new int[ size.length ];
+		int s = 1;
+
+		for ( int d = 0; d < size.length; ++d )
+		{
+			stride[ d ] = s;
+			s *= size[ d ];
+		}
+
+		return stride;
+	}
+
+	private static int numElements( final int[] size )
+	{
+		long numElements = 1;
+
+		for ( final int s : size )
+			numElements *= s;
+
+		if ( numElements > Integer.MAX_VALUE )
+			throw new RuntimeException( "Cell too large for downsampling: " + numElements + " pixels." );
+
+		return (int)numElements;
+	}
+
+	private static int max( final int[] values )
+	{
+		int max = 0;
+
+		for ( final int v : values )
+			max = Math.max( max, v );
+
+		return max;
+	}
+
+	/**
+	 * Convenient set up of the lazy downsampling
+	 *
+	 * @param input - the input (will be extended by border pixels)
+	 * @param type - the type
+	 * @param factors - the downsampling factor per dimension (the output has floor(dim/f) pixels, at least one)
+	 * @param blockSize - the cell size of the output
+	 * @param <T> - the type
+	 * @return the downsampled image (zero-min)
+	 */
+	public static final <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> init(
+			final RandomAccessibleInterval< T > input,
+			final T type,
+			final long[] factors,
+			final int[] blockSize )
+	{
+		final long[] dim = new long[ input.numDimensions() ];
+
+		for ( int d = 0; d < dim.length; ++d )
+			dim[ d ] = Math.max( 1, input.dimension( d ) / factors[ d ] );
+
+		final LazyDownsample< T > downsampling =
+				new LazyDownsample<>(
+						Views.extendBorder( input ),
+						input.minAsLongArray(),
+						factors );
+
+		return Lazy.process( new FinalInterval( dim ), blockSize, type.createVariable(), AccessFlags.setOf(), downsampling );
+	}
+}
@@ -0,0 +1,424 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
+import util.Grid;
+
+/**
+ * Writes a 3D image as an uncompressed BigTIFF (one IFD per z-slice) while it is computed. The image is
+ * processed in slabs of z-slices: a slab is fused in parallel (in blocks), and written while the next slab
+ * is fused. Strip offsets are known once a slice is written, the IFDs are written at the end of the file
+ * and linked to the header. Thus the memory needed is two slabs, independent of the size of the volume.
+ *
+ * The ImageJ description (number of slices, calibration) is written as well, BigTIFFs can be opened with
+ * Bio-Formats.
+ *
+ * @author preibisch
+ */
+public class BigTiffWriter
+{
+	public static int stripSize = 1024 * 1024; // bytes per strip (approximately)
+
+	// TIFF tags
+	final static int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258,
+			COMPRESSION = 259, PHOTOMETRIC = 262, IMAGE_DESCRIPTION = 270, STRIP_OFFSETS = 273, SAMPLES_PER_PIXEL = 277,
+			ROWS_PER_STRIP = 278, STRIP_BYTE_COUNTS = 279, X_RESOLUTION = 282, Y_RESOLUTION = 283, RESOLUTION_UNIT = 296,
+			SAMPLE_FORMAT = 339;
+
+	// TIFF types
+	final static int ASCII = 2, SHORT = 3, LONG = 4, RATIONAL = 5, LONG8 = 16;
+
+	/**
+	 * @param img - the image (3D), UnsignedByteType, UnsignedShortType or FloatType (all others are written as float)
+	 * @param fileName - the file
+	 * @param slabDepth - number of z-slices that are fused at once
+	 * @param calibration - pixel width, height and depth (can be null)
+	 * @param origin - the origin as stored in ImageJ's calibration (can be null)
+	 * @param unit - the unit of the calibration
+	 * @param <T> - pixel type
+	 * @return true if successful
+	 */
+	public static < T extends RealType< T > & NativeType< T > > boolean write(
+			final RandomAccessibleInterval< T > img,
+			final String fileName,
+			final int slabDepth,
+			final double[] calibration,
+			final double[] origin,
+			final String unit )
+	{
+		final RandomAccessibleInterval< T > input = Views.zeroMin( img );
+		final T type = Views.iterable( input ).firstElement();
+
+		final int width = (int)input.dimension( 0 );
+		final int height = (int)input.dimension( 1 );
+		final int depth = input.numDimensions() > 2 ? (int)input.dimension( 2 ) : 1;
+
+		final int bytesPerPixel, sampleFormat;
+
+		if ( type instanceof UnsignedByteType )
+		{
+			bytesPerPixel = 1;
+			sampleFormat = 1;
+		}
+		else if ( type instanceof UnsignedShortType )
+		{
+			bytesPerPixel = 2;
+			sampleFormat = 1;
+		}
+		else
+		{
+			bytesPerPixel = 4;
+			sampleFormat = 3;
+		}
+
+		final long sliceBytes = (long)width * height * bytesPerPixel;
+
+		if ( sliceBytes > Integer.MAX_VALUE )
+		{
+			IOFunctions.println( "A single slice is larger than 2GB, cannot save '" + fileName + "'." );
+			return false;
+		}
+
+		final int rowsPerStrip = Math.max( 1, Math.min( height, stripSize / ( width * bytesPerPixel ) ) );
+		final int slab = Math.max( 1, Math.min( depth, slabDepth ) );
+
+		final ExecutorService fusionService = Threads.createFixedExecutorService();
+		final ExecutorService writeService = Threads.createFixedExecutorService( 1 );
+
+		try ( final FileChannel channel = FileChannel.open( Paths.get( fileName ),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) )
+		{
+			// header, the offset of the first IFD is written at the end
+			final ByteBuffer header = buffer( 16 );
+			header.put( (byte)'I' ).put( (byte)'I' ).putShort( (short)43 ).putShort( (short)8 ).putShort( (short)0 ).putLong( 0 );
+			header.flip();
+			channel.write( header, 0 );
+
+			final long[] sliceOffsets = new long[ depth ];
+			Future< ? > writing = null;
+			long offset = 16;
+
+			for ( int z0 = 0; z0 < depth; z0 += slab )
+			{
+				final int slabSize = Math.min( slab, depth - z0 );
+				final byte[][] slices = fuseSlab( input, z0, slabSize, width, height, bytesPerPixel, fusionService );
+
+				// write the previous slab first
+				if ( writing != null )
+					writing.get();
+
+				final long slabOffset = offset;
+				final int firstSlice = z0;
+
+				writing = writeService.submit( () ->
+				{
+					try
+					{
+						for ( int i = 0; i < slices.length; ++i )
+						{
+							sliceOffsets[ firstSlice + i ] = slabOffset + i * sliceBytes;
+							writeFully( channel, ByteBuffer.wrap( slices[ i ] ), sliceOffsets[ firstSlice + i ] );
+						}
+					}
+					catch ( IOException e )
+					{
+						throw new RuntimeException( e );
+					}
+				} );
+
+				offset += slabSize * sliceBytes;
+
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": fused slices " + z0 + "-" + ( z0 + slabSize - 1 ) + " of " + depth );
+			}
+
+			if ( writing != null )
+				writing.get();
+
+			// IFDs at the end of the file
+			final String description = imageJDescription( depth, calibration, origin, unit );
+			long previousNext = 8; // position of the offset that points to the next IFD (first: in the header)
+
+			for ( int z = 0; z < depth; ++z )
+			{
+				final String ifdDescription = z == 0 ? description : null;
+				final ByteBuffer ifd = ifd( offset, width, height, bytesPerPixel, sampleFormat, rowsPerStrip, sliceOffsets[ z ], ifdDescription, calibration );
+
+				// the out-of-line values are stored before the IFD, the links have to point to the entry count
+				final long nextPosition = offset + ifd.limit() - 8;
+				final long entryPosition = nextPosition - numEntries( ifdDescription, calibration ) * 20 - 8;
+
+				writeFully( channel, ifd, offset );
+				writeFully( channel, (ByteBuffer)buffer( 8 ).putLong( entryPosition ).flip(), previousNext );
+
+				previousNext = nextPosition;
+				offset += ifd.limit();
+			}
+		}
+		catch ( IOException | InterruptedException | ExecutionException e )
+		{
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": ERROR: Cannot save file '"+ fileName + "':" + e );
+			return false;
+		}
+		finally
+		{
+			fusionService.shutdown();
+			writeService.shutdown();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Fuses a slab of z-slices in parallel (blocks of 256x256 pixels) into little-endian byte arrays.
+	 */
+	protected static < T extends RealType< T > > byte[][] fuseSlab(
+			final RandomAccessibleInterval< T > input,
+			final int z0,
+			final int slabSize,
+			final int width,
+			final int height,
+			final int bytesPerPixel,
+			final ExecutorService service ) throws InterruptedException, ExecutionException
+	{
+		final byte[][] slices = new byte[ slabSize ][ width * height * bytesPerPixel ];
+		final boolean is3d = input.numDimensions() > 2;
+
+		final List< Future< ? > > futures = new ArrayList<>();
+
+		for ( final long[][] block : Grid.create( new long[] { width, height, slabSize }, new int[] { 256, 256, 1 } ) )
+		{
+			futures.add( service.submit( () ->
+			{
+				final int x0 = (int)block[ 0 ][ 0 ], y0 = (int)block[ 0 ][ 1 ], z = (int)block[ 0 ][ 2 ];
+				final int w = (int)block[ 1 ][ 0 ], h = (int)block[ 1 ][ 1 ];
+
+				final RandomAccessibleInterval< T > interval;
+
+				if ( is3d )
+					interval = Views.hyperSlice( Views.interval( input, new FinalInterval( new long[] { x0, y0, z0 + z }, new long[] { x0 + w - 1, y0 + h - 1, z0 + z } ) ), 2, z0 + z );
+				else
+					interval = Views.interval( input, Intervals.createMinSize( x0, y0, w, h ) );
+
+				final ByteBuffer slice = ByteBuffer.wrap( slices[ z ] ).order( ByteOrder.LITTLE_ENDIAN );
+				final Cursor< T > cursor = Views.flatIterable( interval ).cursor();
+
+				for ( int y = y0; y < y0 + h; ++y )
+				{
+					int i = ( y * width + x0 ) * bytesPerPixel;
+
+					for ( int x = 0; x < w; ++x, i += bytesPerPixel )
+					{
+						final T v = cursor.next();
+
+						if ( bytesPerPixel == 1 )
+							slice.put( i, (byte)(int)v.getRealFloat() );
+						else if ( bytesPerPixel == 2 )
+							slice.putShort( i, (short)(int)v.getRealFloat() );
+						else
+							slice.putFloat( i, v.getRealFloat() );
+					}
+				}
+			} ) );
+		}
+
+		for ( final Future< ? > future : futures )
+			future.get();
+
+		return slices;
+	}
+
+	/**
+	 * Creates one IFD including the values that do not fit into the entries, which are stored before the IFD.
+	 */
+	protected static ByteBuffer ifd(
+			final long position,
+			final int width,
+			final int height,
+			final int bytesPerPixel,
+			final int sampleFormat,
+			final int rowsPerStrip,
+			final long sliceOffset,
+			final String description,
+			final double[] calibration )
+	{
+		final int numStrips = ( height + rowsPerStrip - 1 ) / rowsPerStrip;
+		final byte[] descriptionBytes = description == null ? null : ( description + "\0" ).getBytes( StandardCharsets.US_ASCII );
+		final int numEntries = numEntries( description, calibration );
+
+		// out-of-line values: strip offsets, strip byte counts, description, resolutions
+		final int extraSize = ( numStrips > 1 ? 16 * numStrips : 0 ) + ( descriptionBytes != null && descriptionBytes.length > 8 ? descriptionBytes.length : 0 );
+		final ByteBuffer buffer = buffer( extraSize + 8 + numEntries * 20 + 8 );
+
+		long stripOffsetsPosition = -1, stripByteCountsPosition = -1, descriptionPosition = -1;
+
+		if ( numStrips > 1 )
+		{
+			stripOffsetsPosition = position + buffer.position();
+			for ( int s = 0; s < numStrips; ++s )
+				buffer.putLong( sliceOffset + (long)s * rowsPerStrip * width * bytesPerPixel );
+
+			stripByteCountsPosition = position + buffer.position();
+			for ( int s = 0; s < numStrips; ++s )
+				buffer.putLong( (long)Math.min( rowsPerStrip, height - s * rowsPerStrip ) * width * bytesPerPixel );
+		}
+
+		if ( descriptionBytes != null && descriptionBytes.length > 8 )
+		{
+			descriptionPosition = position + buffer.position();
+			buffer.put( descriptionBytes );
+		}
+
+		// the entries, sorted by tag
+		buffer.putLong( numEntries );
+		entry( buffer, NEW_SUBFILE_TYPE, LONG, 1, 0 );
+		entry( buffer, IMAGE_WIDTH, LONG, 1, width );
+		entry( buffer, IMAGE_LENGTH, LONG, 1, height );
+		entry( buffer, BITS_PER_SAMPLE, SHORT, 1, bytesPerPixel * 8 );
+		entry( buffer, COMPRESSION, SHORT, 1, 1 );
+		entry( buffer, PHOTOMETRIC, SHORT, 1, 1 );
+
+		if ( descriptionBytes != null )
+		{
+			if ( descriptionPosition == -1 )
+			{
+				buffer.putShort( (short)IMAGE_DESCRIPTION ).putShort( (short)ASCII ).putLong( descriptionBytes.length );
+				buffer.put( descriptionBytes );
+				buffer.put( new byte[ 8 - descriptionBytes.length ] );
+			}
+			else
+			{
+				entry( buffer, IMAGE_DESCRIPTION, ASCII, descriptionBytes.length, descriptionPosition );
+			}
+		}
+
+		entry( buffer, STRIP_OFFSETS, LONG8, numStrips, numStrips > 1 ? stripOffsetsPosition : sliceOffset );
+		entry( buffer, SAMPLES_PER_PIXEL, SHORT, 1, 1 );
+		entry( buffer, ROWS_PER_STRIP, LONG, 1, rowsPerStrip );
+		entry( buffer, STRIP_BYTE_COUNTS, LONG8, numStrips, numStrips > 1 ? stripByteCountsPosition : (long)height * width * bytesPerPixel );
+
+		if ( calibration != null )
+		{
+			// pixels per unit as a rational (same as ImageJ)
+			buffer.putShort( (short)X_RESOLUTION ).putShort( (short)RATIONAL ).putLong( 1 ).putInt( 1000000 ).putInt( (int)Math.round( calibration[ 0 ] * 1000000 ) );
+			buffer.putShort( (short)Y_RESOLUTION ).putShort( (short)RATIONAL ).putLong( 1 ).putInt( 1000000 ).putInt( (int)Math.round( calibration[ 1 ] * 1000000 ) );
+		}
+
+		entry( buffer, RESOLUTION_UNIT, SHORT, 1, 1 );
+		entry( buffer, SAMPLE_FORMAT, SHORT, 1, sampleFormat );
+
+		// next IFD, linked later
+		buffer.putLong( 0 );
+
+		buffer.flip();
+
+		return buffer;
+	}
+
+	/**
+	 * @param description - the image description (can be null)
+	 * @param calibration - the calibration (can be null)
+	 * @return the number of entries of an IFD
+	 */
+	protected static int numEntries( final String description, final double[] calibration )
+	{
+		return ( description == null ? 12 : 13 ) + ( calibration == null ? 0 : 2 );
+	}
+
+	protected static void entry( final ByteBuffer buffer, final int tag, final int type, final long count, final long value )
+	{
+		buffer.putShort( (short)tag ).putShort( (short)type ).putLong( count );
+
+		// values are left-aligned in the 8 bytes
+		if ( type == SHORT && count == 1 )
+			buffer.putShort( (short)value ).putShort( (short)0 ).putInt( 0 );
+		else if ( type == LONG && count == 1 )
+			buffer.putInt( (int)value ).putInt( 0 );
+		else
+			buffer.putLong( value );
+	}
+
+	/**
+	 * @return the description that ImageJ uses to open the file as a calibrated stack
+	 */
+	protected static String imageJDescription( final int depth, final double[] calibration, final double[] origin, final String unit )
+	{
+		final StringBuilder description = new StringBuilder();
+
+		description.append( "ImageJ=1.54f\n" );
+		description.append( "images=" + depth + "\n" );
+		description.append( "slices=" + depth + "\n" );
+
+		if ( calibration != null )
+		{
+			description.append( "unit=" + unit + "\n" );
+			description.append( "spacing=" + calibration[ 2 ] + "\n" );
+		}
+
+		if ( origin != null )
+		{
+			description.append( "xorigin=" + origin[ 0 ] + "\n" );
+			description.append( "yorigin=" + origin[ 1 ] + "\n" );
+			description.append( "zorigin=" + origin[ 2 ] + "\n" );
+		}
+
+		description.append( "loop=false\n" );
+
+		return description.toString();
+	}
+
+	protected static ByteBuffer buffer( final int size )
+	{
+		return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+
+	protected static void writeFully( final FileChannel channel, final ByteBuffer buffer, long position ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.export.ExportN5API.StorageType;
+
+/**
+ * A bitmap that records which blocks of a dataset were completely written. It is flushed to a file next to the
+ * dataset periodically, so an interrupted export can be resumed by skipping the blocks that are done. Flushing
+ * merges with the bitmap on disk under a file lock, thus several processes can work on the same dataset.
+ *
+ * @author preibisch
+ */
+public class BlockManifest
+{
+	public static String manifestFileName = "blocks-done.bitmap";
+	public static long defaultFlushIntervalMillis = 30 * 1000;
+	public static long defaultWaitTimeoutMillis = 60 * 60 * 1000; // give up waiting if no other process finished a block for that long
+
+	final File file;
+	final long[] numBlocks;
+	final int numBlocksTotal;
+	final int[] blockSize;
+	final BitSet done;
+
+	long lastFlush = System.currentTimeMillis();
+	boolean changed = false;
+
+	/**
+	 * Creates the manifest of a dataset. When resuming it loads the blocks that are already done (if the file exists),
+	 * otherwise an existing file is outdated (e.g. the HDF5 next to it was replaced) and deleted.
+	 *
+	 * @param file - the manifest file
+	 * @param dimensions - the dimensions of the dataset
+	 * @param blockSize - the blocksize of the dataset
+	 * @param resume - load the blocks that are done from an existing file
+	 */
+	public BlockManifest( final File file, final long[] dimensions, final int[] blockSize, final boolean resume )
+	{
+		this.file = file;
+		this.blockSize = blockSize;
+		this.numBlocks = new long[ dimensions.length ];
+
+		long numBlocksTotal = 1;
+
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			numBlocks[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			numBlocksTotal *= numBlocks[ d ];
+		}
+
+		if ( numBlocksTotal > Integer.MAX_VALUE )
+			throw new RuntimeException( "Too many blocks for a manifest: " + numBlocksTotal );
+
+		this.numBlocksTotal = (int)numBlocksTotal;
+		this.done = new BitSet( this.numBlocksTotal );
+
+		if ( resume )
+			reload();
+		else
+			reset();
+	}
+
+	/**
+	 * @param containerPath - the path of the N5/ZARR/HDF5 container
+	 * @param dataset - the dataset
+	 * @param storageType - the container type
+	 * @return the manifest file, inside the dataset directory for N5/ZARR, in a directory next to the HDF5 file otherwise
+	 */
+	public static File manifestFile( final String containerPath, final String dataset, final StorageType storageType )
+	{
+		if ( storageType == StorageType.HDF5 )
+			return new File( new File( containerPath + "-manifest", dataset ), manifestFileName );
+		else
+			return new File( new File( containerPath, dataset ), manifestFileName );
+	}
+
+	public synchronized boolean isDone( final long[] gridPosition )
+	{
+		return done.get( index( gridPosition ) );
+	}
+
+	/**
+	 * @param offset - offset of a compute block (in pixels)
+	 * @param size - size of a compute block (in pixels)
+	 * @return true if all blocks of the compute block are done
+	 */
+	public synchronized boolean isDone( final long[] offset, final long[] size )
+	{
+		final long[][] range = gridRange( offset, size );
+		final long[] g = range[ 0 ].clone();
+
+		do
+		{
+			if ( !done.get( index( g ) ) )
+				return false;
+		}
+		while ( next( g, range[ 0 ], range[ 1 ] ) );
+
+		return true;
+	}
+
+	public synchronized boolean isComplete()
+	{
+		return done.cardinality() == numBlocksTotal;
+	}
+
+	public synchronized int numDone()
+	{
+		return done.cardinality();
+	}
+
+	public int numBlocks()
+	{
+		return numBlocksTotal;
+	}
+
+	public void setDone( final long[] gridPosition )
+	{
+		synchronized ( this )
+		{
+			done.set( index( gridPosition ) );
+			changed = true;
+		}
+
+		flushIfDue();
+	}
+
+	/**
+	 * Marks all blocks of a compute block as done.
+	 *
+	 * @param offset - offset of the compute block (in pixels)
+	 * @param size - size of the compute block (in pixels)
+	 */
+	public void setDone( final long[] offset, final long[] size )
+	{
+		synchronized ( this )
+		{
+			final long[][] range = gridRange( offset, size );
+			final long[] g = range[ 0 ].clone();
+
+			do
+			{
+				done.set( index( g ) );
+			}
+			while ( next( g, range[ 0 ], range[ 1 ] ) );
+
+			changed = true;
+		}
+
+		flushIfDue();
+	}
+
+	protected void flushIfDue()
+	{
+		if ( System.currentTimeMillis() - lastFlush > defaultFlushIntervalMillis )
+			flush();
+	}
+
+	/**
+	 * Merges with the manifest on disk (blocks written by other processes) and writes it.
+	 */
+	public synchronized void flush()
+	{
+		lastFlush = System.currentTimeMillis();
+
+		if ( !changed )
+			return;
+
+		try
+		{
+			Files.createDirectories( file.getParentFile().toPath() );
+
+			final Path lockPath = new File( file.getAbsolutePath() + ".lock" ).toPath();
+
+			try ( final FileChannel channel = FileChannel.open( lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+				  final FileLock lock = channel.lock() )
+			{
+				merge();
+
+				final Path tmp = new File( file.getAbsolutePath() + ".tmp" ).toPath();
+
+				try ( final DataOutputStream out = new DataOutputStream( Files.newOutputStream( tmp ) ) )
+				{
+					final long[] words = done.toLongArray();
+
+					out.writeInt( numBlocksTotal );
+					out.writeInt( words.length );
+
+					for ( final long word : words )
+						out.writeLong( word );
+				}
+
+				Files.move( tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+
+			changed = false;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to write manifest '" + file + "': " + e );
+		}
+	}
+
+	/**
+	 * Adds the blocks that are recorded as done on disk (e.g. by other processes).
+	 */
+	public synchronized void reload()
+	{
+		try
+		{
+			merge();
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to read manifest '" + file + "': " + e );
+		}
+	}
+
+	/**
+	 * Forgets all blocks and deletes the file.
+	 */
+	public synchronized void reset()
+	{
+		done.clear();
+		changed = false;
+
+		try
+		{
+			if ( Files.deleteIfExists( file.toPath() ) )
+				IOFunctions.println( "Deleted outdated manifest '" + file + "'." );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to delete outdated manifest '" + file + "', blocks would be skipped: " + e, e );
+		}
+	}
+
+	/**
+	 * Waits until all blocks are done, e.g. written by other processes.
+	 *
+	 * @param pollMillis - how often to check the manifest on disk
+	 * @param timeoutMillis - give up if no block was finished for that long (e.g. another process failed)
+	 * @return true if all blocks are done, false if it timed out
+	 */
+	public boolean waitUntilComplete( final long pollMillis, final long timeoutMillis )
+	{
+		reload();
+
+		int lastNumDone = numDone();
+		long lastProgress = System.currentTimeMillis();
+
+		while ( !isComplete() )
+		{
+			if ( numDone() != lastNumDone )
+			{
+				lastNumDone = numDone();
+				lastProgress = System.currentTimeMillis();
+			}
+			else if ( System.currentTimeMillis() - lastProgress > timeoutMillis )
+			{
+				IOFunctions.println( "No other process finished a block of '" + file.getParent() + "' for " + ( timeoutMillis / 1000 ) + " s, giving up (" + numDone() + "/" + numBlocksTotal + " blocks done)." );
+				return false;
+			}
+
+			IOFunctions.println( "Waiting for other processes, " + numDone() + "/" + numBlocksTotal + " blocks of '" + file.getParent() + "' done." );
+
+			try
+			{
+				Thread.sleep( pollMillis );
+			}
+			catch ( final InterruptedException e )
+			{
+				throw new RuntimeException( e );
+			}
+
+			reload();
+		}
+
+		return true;
+	}
+
+	protected void merge() throws IOException
+	{
+		if ( !file.exists() )
+			return;
+
+		try ( final DataInputStream in = new DataInputStream( Files.newInputStream( file.toPath() ) ) )
+		{
+			if ( in.readInt() != numBlocksTotal )
+				throw new IOException( "manifest was written for a different dataset size." );
+
+			final long[] words = new long[ in.readInt() ];
+
+			for ( int i = 0; i < words.length; ++i )
+				words[ i ] = in.readLong();
+
+			done.or( BitSet.valueOf( words ) );
+		}
+	}
+
+	protected long[][] gridRange( final long[] offset, final long[] size )
+	{
+		final long[] min = new long[ offset.length ];
+		final long[] max = new long[ offset.length ];
+
+		for ( int d = 0; d < offset.length; ++d )
+		{
+			min[ d ] = offset[ d ] / blockSize[ d ];
+			max[ d ] = ( offset[ d ] + size[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		return new long[][] { min, max };
+	}
+
+	protected static boolean next( final long[] g, final long[] min, final long[] max )
+	{
+		for ( int d = 0; d < g.length; ++d )
+		{
+			if ( ++g[ d ] <= max[ d ] )
+				return true;
+
+			g[ d ] = min[ d ];
+		}
+
+		return false;
+	}
+
+	protected int index( final long[] gridPosition )
+	{
+		long index = 0;
+
+		for ( int d = gridPosition.length - 1; d >= 0; --d )
+			index = index * numBlocks[ d ] + gridPosition[ d ];
+
+		return (int)index;
+	}
+}
@@ -0,0 +1,475 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.iterator.IntervalIterator;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Decouples computing blocks from compressing and writing them. The threads that compute (fuse) the blocks
+ * call {@link #submit(RandomAccessibleInterval, String, long[], Consumer)}, which fills the cells and puts
+ * them into a bounded queue. A pool of compression threads serializes them with {@link DefaultBlockWriter}
+ * into a second bounded queue, and a (small) pool of writer threads stores them. If a queue is full, the
+ * threads in front of it wait, so the memory used is bounded by the queue sizes.
+ *
+ * Only N5 (also sharded) blocks can be serialized separately from writing, since their file layout is
+ * known. For ZARR and HDF5 the writer threads compress and write the blocks through the {@link N5Writer}.
+ *
+ * The depths of both queues are sampled for every block and reported periodically and at the end, as well
+ * as how long each stage waited for the others, i.e. which stage limits the throughput.
+ *
+ * @author preibisch
+ */
+public class BlockWritePipeline
+{
+	public static long reportInterval = 60 * 1000;
+
+	final N5Writer n5;
+	final String basePath;
+	final boolean encode;
+
+	final BlockingQueue< Task > compressionQueue, writeQueue;
+	final Thread[] compressionThreads, writerThreads;
+	final ConcurrentHashMap< String, DatasetAttributes > attributes = new ConcurrentHashMap<>();
+	final AtomicReference< Throwable > error = new AtomicReference<>();
+
+	// metrics
+	final AtomicLong numBlocks = new AtomicLong(), numEmpty = new AtomicLong(), numSamples = new AtomicLong();
+	final AtomicLong compressionQueueSum = new AtomicLong(), writeQueueSum = new AtomicLong();
+	final AtomicLong compressionQueueMax = new AtomicLong(), writeQueueMax = new AtomicLong();
+	final AtomicLong encodedBytes = new AtomicLong();
+	final AtomicLong submitWait = new AtomicLong(), compressionWait = new AtomicLong(), writerWait = new AtomicLong();
+	final AtomicLong compressionBusy = new AtomicLong(), writerBusy = new AtomicLong();
+	final AtomicLong lastReport = new AtomicLong( System.currentTimeMillis() );
+
+	final long startTime = System.currentTimeMillis();
+
+	/**
+	 * @param n5 - the writer
+	 * @param basePath - the path of the container
+	 * @param numCompressionThreads - number of threads that serialize and compress blocks (only used for N5)
+	 * @param numWriterThreads - number of threads that write blocks
+	 * @param queueSize - capacity of each queue (in blocks)
+	 */
+	public BlockWritePipeline(
+			final N5Writer n5,
+			final String basePath,
+			final int numCompressionThreads,
+			final int numWriterThreads,
+			final int queueSize )
+	{
+		this.n5 = n5;
+		this.basePath = basePath;
+		this.encode = n5 instanceof N5ShardedFSWriter || n5.getClass() == N5FSWriter.class;
+
+		this.compressionQueue = new ArrayBlockingQueue<>( Math.max( 1, queueSize ) );
+		this.writeQueue = new ArrayBlockingQueue<>( Math.max( 1, queueSize ) );
+
+		this.compressionThreads = new Thread[ encode ? Math.max( 1, numCompressionThreads ) : 0 ];
+		this.writerThreads = new Thread[ Math.max( 1, numWriterThreads ) ];
+
+		for ( int i = 0; i < compressionThreads.length; ++i )
+		{
+			compressionThreads[ i ] = new Thread( this::compress, "BlockWritePipeline-compress-" + i );
+			compressionThreads[ i ].setDaemon( true );
+			compressionThreads[ i ].start();
+		}
+
+		for ( int i = 0; i < writerThreads.length; ++i )
+		{
+			writerThreads[ i ] = new Thread( this::write, "BlockWritePipeline-write-" + i );
+			writerThreads[ i ].setDaemon( true );
+			writerThreads[ i ].start();
+		}
+
+		IOFunctions.println(
+				"Writing blocks with " + ( encode ? compressionThreads.length + " compression thread(s) and " : "" ) +
+				writerThreads.length + " writer thread(s), queue size=" + Math.max( 1, queueSize ) + "." );
+	}
+
+	/**
+	 * Splits a computed block into the blocks of the dataset and queues them for writing, blocks that are
+	 * all zero are not written. Computes the pixels in the calling thread and waits if the queue is full.
+	 *
+	 * @param source - the block (zero-min)
+	 * @param dataset - the dataset
+	 * @param gridOffset - the grid position of the first dataset block in source
+	 * @param onWritten - called with the grid position once a dataset block is on disk or recorded as empty (can be null)
+	 * @param <T> - pixel type
+	 */
+	public < T extends RealType< T > & NativeType< T > > void submit(
+			final RandomAccessibleInterval< T > source,
+			final String dataset,
+			final long[] gridOffset,
+			final Consumer< long[] > onWritten )
+	{
+		final DatasetAttributes datasetAttributes = attributes.computeIfAbsent( dataset, d -> n5.getDatasetAttributes( d ) );
+		final int[] blockSize = datasetAttributes.getBlockSize();
+		final int n = blockSize.length;
+
+		final long[] numBlocks = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numBlocks[ d ] = ( source.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final IntervalIterator it = new IntervalIterator( numBlocks );
+		final long[] position = new long[ n ];
+
+		while ( it.hasNext() )
+		{
+			it.fwd();
+			it.localize( position );
+
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			final long[] gridPosition = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = position[ d ] * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ], source.dimension( d ) ) - 1;
+				gridPosition[ d ] = gridOffset[ d ] + position[ d ];
+			}
+
+			final DataBlock< ? > block =
+					CompressionTools.createDataBlock( Views.interval( source, min, max ), datasetAttributes.getDataType(), gridPosition );
+
+			if ( block == null )
+				markEmpty( dataset, datasetAttributes, gridPosition, onWritten );
+			else
+			{
+				put( encode ? compressionQueue : writeQueue, new Task( dataset, datasetAttributes, block, onWritten ), submitWait );
+			}
+		}
+
+		sample();
+	}
+
+	/**
+	 * Records the dataset blocks of a computed block that is not submitted, because it is empty (all zero) or
+	 * already done (when resuming). A sharded dataset needs them to know when a shard is complete.
+	 *
+	 * @param dataset - the dataset
+	 * @param dimensions - the size of the computed block
+	 * @param gridOffset - the grid position of the first dataset block in the computed block
+	 * @param empty - true if the block is empty, false if its dataset blocks are already on disk
+	 * @param onWritten - called with the grid position once an empty dataset block is recorded (can be null)
+	 */
+	public void skip( final String dataset, final long[] dimensions, final long[] gridOffset, final boolean empty, final Consumer< long[] > onWritten )
+	{
+		final DatasetAttributes datasetAttributes = attributes.computeIfAbsent( dataset, d -> n5.getDatasetAttributes( d ) );
+		final int[] blockSize = datasetAttributes.getBlockSize();
+		final int n = blockSize.length;
+
+		final long[] numBlocks = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numBlocks[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		final IntervalIterator it = new IntervalIterator( numBlocks );
+
+		while ( it.hasNext() )
+		{
+			it.fwd();
+
+			final long[] gridPosition = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				gridPosition[ d ] = gridOffset[ d ] + it.getLongPosition( d );
+
+			if ( empty )
+				markEmpty( dataset, datasetAttributes, gridPosition, onWritten );
+			else if ( n5 instanceof N5ShardedFSWriter )
+				((N5ShardedFSWriter)n5).markUnchanged( dataset, datasetAttributes, gridPosition );
+		}
+	}
+
+	protected void markEmpty( final String dataset, final DatasetAttributes datasetAttributes, final long[] gridPosition, final Consumer< long[] > onWritten )
+	{
+		numEmpty.incrementAndGet();
+
+		if ( n5 instanceof N5ShardedFSWriter )
+			((N5ShardedFSWriter)n5).markEmpty( dataset, datasetAttributes, gridPosition, onWritten );
+		else if ( onWritten != null )
+			onWritten.accept( gridPosition );
+	}
+
+	/**
+	 * Waits until all queued blocks are written and stops the threads. Must be called once after the last
+	 * block was submitted.
+	 *
+	 * @throws RuntimeException if writing any of the blocks failed
+	 */
+	public void finish()
+	{
+		try
+		{
+			for ( int i = 0; i < compressionThreads.length; ++i )
+				compressionQueue.put( Task.POISON );
+
+			for ( final Thread thread : compressionThreads )
+				thread.join();
+
+			for ( int i = 0; i < writerThreads.length; ++i )
+				writeQueue.put( Task.POISON );
+
+			for ( final Thread thread : writerThreads )
+				thread.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while waiting for the blocks to be written.", e );
+		}
+
+		printStatistics();
+
+		if ( error.get() != null )
+			throw new RuntimeException( "Failed to write blocks: " + error.get(), error.get() );
+	}
+
+	protected void compress()
+	{
+		while ( true )
+		{
+			final Task task = take( compressionQueue, compressionWait );
+
+			if ( task == Task.POISON )
+				return;
+
+			final long t = System.nanoTime();
+
+			try
+			{
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				DefaultBlockWriter.writeBlock( out, task.attributes, task.block );
+				task.encoded = out.toByteArray();
+				encodedBytes.addAndGet( task.encoded.length );
+			}
+			catch ( final Throwable e )
+			{
+				fail( task, e );
+				continue;
+			}
+			finally
+			{
+				compressionBusy.addAndGet( System.nanoTime() - t );
+			}
+
+			put( writeQueue, task, compressionWait );
+		}
+	}
+
+	protected void write()
+	{
+		while ( true )
+		{
+			final Task task = take( writeQueue, writerWait );
+
+			if ( task == Task.POISON )
+				return;
+
+			final long t = System.nanoTime();
+
+			try
+			{
+				if ( task.encoded != null && n5 instanceof N5ShardedFSWriter )
+				{
+					// blocks of sharded datasets are only on disk once their shard is written, which calls onWritten
+					((N5ShardedFSWriter)n5).writeEncodedBlock( task.dataset, task.attributes, task.block.getGridPosition(), task.encoded, task.onWritten );
+				}
+				else
+				{
+					if ( task.encoded == null )
+						n5.writeBlock( task.dataset, task.attributes, task.block );
+					else
+						writeBlockFile( basePath, task.dataset, task.block.getGridPosition(), task.encoded );
+
+					if ( task.onWritten != null )
+						task.onWritten.accept( task.block.getGridPosition() );
+				}
+
+				numBlocks.incrementAndGet();
+			}
+			catch ( final Throwable e )
+			{
+				fail( task, e );
+			}
+			finally
+			{
+				writerBusy.addAndGet( System.nanoTime() - t );
+			}
+		}
+	}
+
+	/**
+	 * Writes a serialized block to its file in an N5 filesystem container (the default N5 layout,
+	 * i.e. dataset/x/y/z).
+	 *
+	 * @param basePath - the path of the container
+	 * @param dataset - the dataset
+	 * @param gridPosition - the position of the block
+	 * @param data - the block serialized with {@link DefaultBlockWriter}
+	 */
+	public static void writeBlockFile( final String basePath, final String dataset, final long[] gridPosition, final byte[] data )
+	{
+		Path path = Paths.get( basePath, dataset );
+
+		for ( final long p : gridPosition )
+			path = path.resolve( Long.toString( p ) );
+
+		try
+		{
+			Files.createDirectories( path.getParent() );
+			Files.write( path, data );
+		}
+		catch ( final IOException e )
+		{
+			throw new N5Exception.N5IOException( "Failed to write block '" + path + "'", e );
+		}
+	}
+
+	protected void fail( final Task task, final Throwable e )
+	{
+		IOFunctions.println( "Error writing block " + Arrays.toString( task.block.getGridPosition() ) + " of '" + task.dataset + "': " + e );
+		error.compareAndSet( null, e );
+	}
+
+	protected static void put( final BlockingQueue< Task > queue, final Task task, final AtomicLong waitTime )
+	{
+		final long t = System.nanoTime();
+
+		try
+		{
+			queue.put( task );
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while queueing block.", e );
+		}
+
+		waitTime.addAndGet( System.nanoTime() - t );
+	}
+
+	protected static Task take( final BlockingQueue< Task > queue, final AtomicLong waitTime )
+	{
+		final long t = System.nanoTime();
+
+		try
+		{
+			return queue.take();
+		}
+		catch ( final InterruptedException e )
+		{
+			return Task.POISON;
+		}
+		finally
+		{
+			waitTime.addAndGet( System.nanoTime() - t );
+		}
+	}
+
+	protected void sample()
+	{
+		final int c = compressionQueue.size();
+		final int w = writeQueue.size();
+
+		numSamples.incrementAndGet();
+		compressionQueueSum.addAndGet( c );
+		writeQueueSum.addAndGet( w );
+		compressionQueueMax.accumulateAndGet( c, Math::max );
+		writeQueueMax.accumulateAndGet( w, Math::max );
+
+		final long now = System.currentTimeMillis();
+		final long last = lastReport.get();
+
+		if ( now - last > reportInterval && lastReport.compareAndSet( last, now ) )
+			IOFunctions.println(
+					"(" + ( now - startTime ) / 1000 + " s): " + numBlocks.get() + " blocks written, queued for " +
+					( encode ? "compression: " + c + "/" + ( c + compressionQueue.remainingCapacity() ) + ", for " : "" ) +
+					"writing: " + w + "/" + ( w + writeQueue.remainingCapacity() ) );
+	}
+
+	public void printStatistics()
+	{
+		final long samples = Math.max( 1, numSamples.get() );
+
+		IOFunctions.println( "Pipeline: " + numBlocks.get() + " blocks written, " + numEmpty.get() + " empty blocks skipped" +
+				( encode ? ", " + encodedBytes.get() / ( 1024 * 1024 ) + " MB after compression." : "." ) );
+
+		if ( encode )
+			IOFunctions.println( "Compression queue depth: avg=" + String.format( "%.1f", (double)compressionQueueSum.get() / samples ) +
+					", max=" + compressionQueueMax.get() + "; compression threads busy " + compressionBusy.get() / 1000000 +
+					" ms, waiting " + compressionWait.get() / 1000000 + " ms (in total)." );
+
+		IOFunctions.println( "Write queue depth: avg=" + String.format( "%.1f", (double)writeQueueSum.get() / samples ) +
+				", max=" + writeQueueMax.get() + "; writer threads busy " + writerBusy.get() / 1000000 +
+				" ms, waiting " + writerWait.get() / 1000000 + " ms (in total)." );
+
+		IOFunctions.println( "Computing threads waited " + submitWait.get() / 1000000 +
+				" ms (in total) for full queues (if high, compression or writing limits the throughput)." );
+	}
+
+	protected static class Task
+	{
+		static final Task POISON = new Task( null, null, null, null );
+
+		final String dataset;
+		final DatasetAttributes attributes;
+		final DataBlock< ? > block;
+		final Consumer< long[] > onWritten;
+
+		byte[] encoded = null;
+
+		public Task( final String dataset, final DatasetAttributes attributes, final DataBlock< ? > block, final Consumer< long[] > onWritten )
+		{
+			this.dataset = dataset;
+			this.attributes = attributes;
+			this.block = block;
+			this.onWritten = onWritten;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.blosc.BloscCompression;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.export.ExportN5API.StorageType;
+
+/**
+ * The compression codecs that can be selected for writing N5/ZARR/HDF5 (fusion export, resaving, interest points),
+ * and a benchmark that compresses a sample of blocks with every codec.
+ *
+ * @author preibisch
+ */
+public class CompressionTools
+{
+	// do not change the order, the index is stored in the default values of the dialogs
+	public static String[] compressions = new String[]{ "Bzip2", "Gzip", "Lz4", "Raw (no compression)", "Xz", "Blosc (lz4, shuffle)" };
+
+	public static final int BZIP2 = 0, GZIP = 1, LZ4 = 2, RAW = 3, XZ = 4, BLOSC = 5;
+
+	/**
+	 * @param compression - index into {@link #compressions}
+	 * @param level - the compression level (Gzip: 1-9, Bzip2: block size 1-9, Xz: preset 0-9, Blosc: 0-9), ignored for Lz4 and Raw, -1 means default
+	 * @return the compression
+	 */
+	public static Compression createCompression( final int compression, final int level )
+	{
+		if ( compression == BZIP2 )
+			return level < 0 ? new Bzip2Compression() : new Bzip2Compression( Math.max( 1, Math.min( 9, level ) ) );
+		else if ( compression == GZIP )
+			return level < 0 ? new GzipCompression() : new GzipCompression( Math.max( 1, Math.min( 9, level ) ) );
+		else if ( compression == LZ4 )
+			return new Lz4Compression();
+		else if ( compression == XZ )
+			return level < 0 ? new XzCompression() : new XzCompression( Math.min( 9, level ) );
+		else if ( compression == BLOSC )
+			return new BloscCompression( "lz4", level < 0 ? 5 : Math.min( 9, level ), BloscCompression.SHUFFLE, 0, 1 );
+		else
+			return new RawCompression();
+	}
+
+	/**
+	 * @param name - bzip2, gzip, lz4, raw, xz or blosc (case-insensitive)
+	 * @param level - the compression level, see {@link #createCompression(int, int)}
+	 * @return the compression or null if the name is unknown
+	 */
+	public static Compression createCompression( final String name, final int level )
+	{
+		final int index = index( name );
+
+		if ( index < 0 )
+			return null;
+		else
+			return createCompression( index, level );
+	}
+
+	/**
+	 * @param name - bzip2, gzip, lz4, raw, xz or blosc (case-insensitive)
+	 * @return index into {@link #compressions}, -1 if unknown
+	 */
+	public static int index( final String name )
+	{
+		final String n = name.toLowerCase().trim();
+
+		for ( int i = 0; i < compressions.length; ++i )
+			if ( compressions[ i ].toLowerCase().startsWith( n ) )
+				return i;
+
+		return -1;
+	}
+
+	/**
+	 * @param compression - index into {@link #compressions}
+	 * @param storageType - the container type
+	 * @return if the container type can store this compression
+	 */
+	public static boolean isSupported( final int compression, final StorageType storageType )
+	{
+		if ( storageType == StorageType.HDF5 )
+			return compression == GZIP || compression == RAW;
+		else if ( storageType == StorageType.ZARR )
+			return compression == GZIP || compression == RAW || compression == BZIP2 || compression == BLOSC;
+		else
+			return true;
+	}
+
+	/**
+	 * Compresses and decompresses a random sample of non-empty blocks of an image with every codec supported
+	 * by the container type and prints throughput (MB/s of uncompressed data) and compression ratio.
+	 *
+	 * @param img - the image (e.g. the virtually fused image, only the sampled blocks are computed)
+	 * @param blockSize - the blocksize of the dataset
+	 * @param numBlocks - how many blocks to sample
+	 * @param level - the compression level, see {@link #createCompression(int, int)}
+	 * @param dataType - UINT8, UINT16 or FLOAT32
+	 * @param storageType - the container type
+	 */
+	public static < T extends RealType< T > & NativeType< T > > void benchmark(
+			final RandomAccessibleInterval< T > img,
+			final int[] blockSize,
+			final int numBlocks,
+			final int level,
+			final DataType dataType,
+			final StorageType storageType )
+	{
+		final int n = img.numDimensions();
+		final long[] numGridBlocks = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			numGridBlocks[ d ] = ( img.dimension( d ) + blockSize[ d ] - 1 ) / blockSize[ d ];
+
+		IOFunctions.println( "Benchmarking compression on " + numBlocks + " random non-empty blocks ... " );
+
+		final Random rnd = new Random( 352 );
+		final ArrayList< DataBlock< ? > > blocks = new ArrayList<>();
+
+		for ( int i = 0; i < numBlocks * 10 && blocks.size() < numBlocks; ++i )
+		{
+			final long[] gridPosition = new long[ n ];
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				gridPosition[ d ] = (long)( rnd.nextDouble() * numGridBlocks[ d ] );
+				min[ d ] = img.min( d ) + gridPosition[ d ] * blockSize[ d ];
+				max[ d ] = Math.min( img.max( d ), min[ d ] + blockSize[ d ] - 1 );
+			}
+
+			final DataBlock< ? > block = createDataBlock( Views.interval( img, new FinalInterval( min, max ) ), dataType, gridPosition );
+
+			if ( block != null )
+				blocks.add( block );
+		}
+
+		if ( blocks.size() == 0 )
+		{
+			IOFunctions.println( "No non-empty blocks found, cannot benchmark." );
+			return;
+		}
+
+		long rawBytes = 0;
+		for ( final DataBlock< ? > block : blocks )
+			rawBytes += (long)block.getNumElements() * bytesPerElement( dataType );
+
+		final double rawMB = rawBytes / ( 1024.0 * 1024.0 );
+
+		for ( int c = 0; c < compressions.length; ++c )
+		{
+			if ( !isSupported( c, storageType ) )
+				continue;
+
+			try
+			{
+				final DatasetAttributes attributes =
+						new DatasetAttributes( img.dimensionsAsLongArray(), blockSize, dataType, createCompression( c, level ) );
+
+				long compressedBytes = 0, compressTime = 0, decompressTime = 0;
+
+				for ( final DataBlock< ? > block : blocks )
+				{
+					final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+					long t = System.nanoTime();
+					DefaultBlockWriter.writeBlock( out, attributes, block );
+					compressTime += System.nanoTime() - t;
+
+					final byte[] compressed = out.toByteArray();
+					compressedBytes += compressed.length;
+
+					t = System.nanoTime();
+					DefaultBlockReader.readBlock( new ByteArrayInputStream( compressed ), attributes, block.getGridPosition() );
+					decompressTime += System.nanoTime() - t;
+				}
+
+				IOFunctions.println(
+						compressions[ c ] + ": ratio=" + round( (double)rawBytes / compressedBytes ) +
+						", compression=" + round( rawMB / ( compressTime / 1e9 ) ) + " MB/s" +
+						", decompression=" + round( rawMB / ( decompressTime / 1e9 ) ) + " MB/s" );
+			}
+			catch ( Throwable e )
+			{
+				// e.g. the native blosc library is not available
+				IOFunctions.println( compressions[ c ] + ": not available (" + e + ")" );
+			}
+		}
+	}
+
+	/**
+	 * @param block - the block
+	 * @param dataType - UINT8, UINT16 or FLOAT32
+	 * @param gridPosition - the grid position of the block
+	 * @return a DataBlock holding a copy of the data, or null if all pixels are 0
+	 */
+	public static < T extends RealType< T > & NativeType< T > > DataBlock< ? > createDataBlock(
+			final RandomAccessibleInterval< T > block,
+			final DataType dataType,
+			final long[] gridPosition )
+	{
+		final int[] size = new int[ block.numDimensions() ];
+		for ( int d = 0; d < size.length; ++d )
+			size[ d ] = (int)block.dimension( d );
+
+		final int numElements = (int)Intervals.numElements( block );
+		final Cursor< T > cursor = Views.flatIterable( block ).cursor();
+		boolean empty = true;
+
+		if ( dataType == DataType.UINT16 )
+		{
+			final short[] data = new short[ numElements ];
+			for ( int i = 0; i < numElements; ++i )
+				if ( ( data[ i ] = (short)(int)cursor.next().getRealDouble() ) != 0 )
+					empty = false;
+
+			return empty ? null : new ShortArrayDataBlock( size, gridPosition, data );
+		}
+		else if ( dataType == DataType.UINT8 )
+		{
+			final byte[] data = new byte[ numElements ];
+			for ( int i = 0; i < numElements; ++i )
+				if ( ( data[ i ] = (byte)(int)cursor.next().getRealDouble() ) != 0 )
+					empty = false;
+
+			return empty ? null : new ByteArrayDataBlock( size, gridPosition, data );
+		}
+		else if ( dataType == DataType.FLOAT32 )
+		{
+			final float[] data = new float[ numElements ];
+			for ( int i = 0; i < numElements; ++i )
+				if ( ( data[ i ] = cursor.next().getRealFloat() ) != 0 )
+					empty = false;
+
+			return empty ? null : new FloatArrayDataBlock( size, gridPosition, data );
+		}
+		else
+		{
+			throw new RuntimeException( "Unsupported pixel type: " + dataType );
+		}
+	}
+
+	public static int bytesPerElement( final DataType dataType )
+	{
+		if ( dataType == DataType.UINT8 || dataType == DataType.INT8 )
+			return 1;
+		else if ( dataType == DataType.UINT16 || dataType == DataType.INT16 )
+			return 2;
+		else if ( dataType == DataType.UINT64 || dataType == DataType.INT64 || dataType == DataType.FLOAT64 )
+			return 8;
+		else
+			return 4;
+	}
+
+	private static double round( final double value )
+	{
+		return Math.round( value * 100 ) / 100.0;
+	}
+}
@@ -0,0 +1,384 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
+
+/**
+ * Writes a (large) 2D ARGB image as a DeepZoom (OpenSeaDragon) pyramid. The image is rendered in bands of
+ * one tile row (in parallel), the tiles are encoded and written by a pool of threads, and every level is
+ * computed from the rows of the level above while they are in memory (2x2 averaging), so no level is read
+ * back from disk. Each level only keeps the rows of one tile row (plus overlap), and the number of tiles
+ * waiting to be encoded is bounded, thus the memory does not depend on the image size (only its width).
+ *
+ * The layout is the same as written by pyramidio's ScalablePyramidBuilder with a DirectoryArchiver:
+ * name.dzi and name_files/level/column_row.format
+ *
+ * @author preibisch
+ */
+public class DeepZoomWriter
+{
+	final RandomAccessibleInterval< ARGBType > img;
+	final File directory;
+	final String name, format;
+	final int tileSize, overlap, width, height, maxLevel, maxTilesInFlight;
+
+	final ExecutorService renderService, encodeService;
+	final Semaphore tilesInFlight;
+	final AtomicReference< Throwable > error = new AtomicReference<>();
+
+	final Level[] levels;
+
+	/**
+	 * @param img - the image (2D)
+	 * @param directory - the output directory
+	 * @param name - the name of the dataset
+	 * @param format - the tile format (jpg or png)
+	 * @param tileSize - the tile size
+	 * @param overlap - the tile overlap
+	 * @param numThreads - the number of threads for rendering and for encoding
+	 */
+	public DeepZoomWriter(
+			final RandomAccessibleInterval< ARGBType > img,
+			final File directory,
+			final String name,
+			final String format,
+			final int tileSize,
+			final int overlap,
+			final int numThreads )
+	{
+		this.img = Views.zeroMin( img );
+		this.directory = directory;
+		this.name = name;
+		this.format = format;
+		this.tileSize = tileSize;
+		this.overlap = overlap;
+		this.width = (int)img.dimension( 0 );
+		this.height = (int)img.dimension( 1 );
+		this.maxLevel = (int)Math.ceil( Math.log( Math.max( width, height ) ) / Math.log( 2 ) );
+
+		this.renderService = Threads.createFixedExecutorService( numThreads );
+		this.encodeService = Threads.createFixedExecutorService( numThreads );
+		this.maxTilesInFlight = 4 * numThreads;
+		this.tilesInFlight = new Semaphore( maxTilesInFlight );
+
+		this.levels = new Level[ maxLevel + 1 ];
+
+		int w = width, h = height;
+
+		for ( int level = maxLevel; level >= 0; --level )
+		{
+			levels[ level ] = new Level( level, w, h );
+			w = ( w + 1 ) / 2;
+			h = ( h + 1 ) / 2;
+		}
+	}
+
+	public void write() throws IOException
+	{
+		try
+		{
+			writeDescriptor();
+
+			for ( int y0 = 0; y0 < height; y0 += tileSize )
+			{
+				final int numRows = Math.min( tileSize, height - y0 );
+				levels[ maxLevel ].add( renderBand( y0, numRows ), numRows );
+			}
+
+			// the odd rows that are left
+			for ( int level = maxLevel; level > 0; --level )
+				levels[ level ].flush();
+
+			// wait for all tiles
+			tilesInFlight.acquire( maxTilesInFlight );
+			tilesInFlight.release( maxTilesInFlight );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			throw new IOException( "Failed to render DeepZoom pyramid: " + e, e );
+		}
+		finally
+		{
+			renderService.shutdown();
+			encodeService.shutdown();
+		}
+
+		if ( error.get() != null )
+			throw new IOException( "Failed to write tiles: " + error.get(), error.get() );
+	}
+
+	protected void writeDescriptor() throws IOException
+	{
+		directory.mkdirs();
+
+		try ( final PrintWriter out = new PrintWriter( new File( directory, name + ".dzi" ), "UTF-8" ) )
+		{
+			out.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+			out.println( "<Image TileSize=\"" + tileSize + "\" Overlap=\"" + overlap + "\" Format=\"" + format + "\" xmlns=\"http://schemas.microsoft.com/deepzoom/2008\">" );
+			out.println( "  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>" );
+			out.println( "</Image>" );
+		}
+	}
+
+	/**
+	 * Renders rows [y0, y0 + numRows) of the full resolution image in parallel (one task per tile column).
+	 */
+	protected int[] renderBand( final int y0, final int numRows ) throws InterruptedException, ExecutionException
+	{
+		final int[] band = new int[ width * numRows ];
+		final List< Future< ? > > futures = new ArrayList<>();
+
+		for ( int x0 = 0; x0 < width; x0 += tileSize )
+		{
+			final int x = x0;
+			final int w = Math.min( tileSize, width - x0 );
+
+			futures.add( renderService.submit( () ->
+			{
+				final Cursor< ARGBType > cursor = Views.flatIterable( Views.interval( img,
+						new FinalInterval( new long[] { x, y0 }, new long[] { x + w - 1, y0 + numRows - 1 } ) ) ).cursor();
+
+				for ( int y = 0; y < numRows; ++y )
+					for ( int i = y * width + x, j = 0; j < w; ++j, ++i )
+						band[ i ] = cursor.next().get();
+			} ) );
+		}
+
+		for ( final Future< ? > future : futures )
+			future.get();
+
+		return band;
+	}
+
+	/**
+	 * Averages 2x2 pixels (per channel), at the border only the existing pixels.
+	 */
+	protected static int[] downsample( final int[] rows, final int width, final int numRows, final int outWidth )
+	{
+		final int outRows = ( numRows + 1 ) / 2;
+		final int[] out = new int[ outWidth * outRows ];
+
+		for ( int y = 0; y < outRows; ++y )
+		{
+			final int y1 = 2 * y;
+			final int y2 = Math.min( 2 * y + 1, numRows - 1 );
+
+			for ( int x = 0; x < outWidth; ++x )
+			{
+				final int x1 = 2 * x;
+				final int x2 = Math.min( 2 * x + 1, width - 1 );
+
+				final int v1 = rows[ y1 * width + x1 ], v2 = rows[ y1 * width + x2 ], v3 = rows[ y2 * width + x1 ], v4 = rows[ y2 * width + x2 ];
+
+				out[ y * outWidth + x ] = ARGBType.rgba(
+						( ARGBType.red( v1 ) + ARGBType.red( v2 ) + ARGBType.red( v3 ) + ARGBType.red( v4 ) + 2 ) / 4,
+						( ARGBType.green( v1 ) + ARGBType.green( v2 ) + ARGBType.green( v3 ) + ARGBType.green( v4 ) + 2 ) / 4,
+						( ARGBType.blue( v1 ) + ARGBType.blue( v2 ) + ARGBType.blue( v3 ) + ARGBType.blue( v4 ) + 2 ) / 4,
+						255 );
+			}
+		}
+
+		return out;
+	}
+
+	protected void writeTile( final int level, final int column, final int row, final int[] pixels, final int w, final int h )
+	{
+		final BufferedImage bi = new BufferedImage( w, h, format.equals( "png" ) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_3BYTE_BGR );
+		bi.setRGB( 0, 0, w, h, pixels, 0, w );
+
+		final File dir = new File( new File( directory, name + "_files" ), Integer.toString( level ) );
+		dir.mkdirs();
+
+		try
+		{
+			if ( !ImageIO.write( bi, format, new File( dir, column + "_" + row + "." + format ) ) )
+				throw new IOException( "No writer for format '" + format + "'" );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to write tile " + level + "/" + column + "_" + row + ": " + e );
+			error.compareAndSet( null, e );
+		}
+	}
+
+	/**
+	 * The rows of one level that are still needed for tiles, plus the row that waits for its partner
+	 * to be downsampled into the next level.
+	 */
+	protected class Level
+	{
+		final int level, width, height, numTileRows, numTileColumns;
+
+		int[] rows = new int[ 0 ];
+		int firstRow = 0, numRows = 0; // rows [firstRow, firstRow + numRows) are in memory
+		int nextTileRow = 0;
+
+		int[] carry = null; // an even row that was not downsampled yet
+
+		public Level( final int level, final int width, final int height )
+		{
+			this.level = level;
+			this.width = width;
+			this.height = height;
+			this.numTileRows = ( height + tileSize - 1 ) / tileSize;
+			this.numTileColumns = ( width + tileSize - 1 ) / tileSize;
+		}
+
+		public void add( final int[] data, final int n ) throws InterruptedException
+		{
+			// append to the window
+			final int[] tmp = new int[ ( numRows + n ) * width ];
+			System.arraycopy( rows, 0, tmp, 0, numRows * width );
+			System.arraycopy( data, 0, tmp, numRows * width, n * width );
+			rows = tmp;
+			numRows += n;
+
+			emitTiles();
+
+			// downsample pairs of rows into the next level
+			if ( level > 0 )
+			{
+				final int[] pairs;
+				final int numPairRows;
+
+				if ( carry != null )
+				{
+					pairs = new int[ ( n + 1 ) * width ];
+					System.arraycopy( carry, 0, pairs, 0, width );
+					System.arraycopy( data, 0, pairs, width, n * width );
+					numPairRows = n + 1;
+				}
+				else
+				{
+					pairs = data;
+					numPairRows = n;
+				}
+
+				final int even = numPairRows / 2 * 2;
+
+				if ( numPairRows % 2 == 1 )
+				{
+					carry = new int[ width ];
+					System.arraycopy( pairs, even * width, carry, 0, width );
+				}
+				else
+				{
+					carry = null;
+				}
+
+				if ( even > 0 )
+					levels[ level - 1 ].add( downsample( pairs, width, even, levels[ level - 1 ].width ), even / 2 );
+			}
+		}
+
+		/**
+		 * Downsamples the last (odd) row into the next level.
+		 */
+		public void flush() throws InterruptedException
+		{
+			if ( carry != null && level > 0 )
+			{
+				final int[] row = carry;
+				carry = null;
+				levels[ level - 1 ].add( downsample( row, width, 1, levels[ level - 1 ].width ), 1 );
+			}
+		}
+
+		protected void emitTiles() throws InterruptedException
+		{
+			while ( nextTileRow < numTileRows )
+			{
+				final int r = nextTileRow;
+				final int y0 = Math.max( 0, r * tileSize - overlap );
+				final int y1 = Math.min( height, ( r + 1 ) * tileSize + overlap );
+
+				if ( firstRow + numRows < y1 )
+					return;
+
+				for ( int c = 0; c < numTileColumns; ++c )
+				{
+					final int x0 = Math.max( 0, c * tileSize - overlap );
+					final int x1 = Math.min( width, ( c + 1 ) * tileSize + overlap );
+					final int w = x1 - x0, h = y1 - y0;
+
+					final int[] pixels = new int[ w * h ];
+
+					for ( int y = 0; y < h; ++y )
+						System.arraycopy( rows, ( y0 + y - firstRow ) * width + x0, pixels, y * w, w );
+
+					final int column = c;
+
+					tilesInFlight.acquire();
+
+					encodeService.submit( () ->
+					{
+						try
+						{
+							writeTile( level, column, r, pixels, w, h );
+						}
+						finally
+						{
+							tilesInFlight.release();
+						}
+					} );
+				}
+
+				++nextTileRow;
+
+				// drop the rows that no other tile needs
+				final int keepFrom = Math.max( firstRow, ( r + 1 ) * tileSize - overlap );
+				final int drop = Math.min( numRows, keepFrom - firstRow );
+
+				if ( drop > 0 )
+				{
+					final int[] tmp = new int[ ( numRows - drop ) * width ];
+					System.arraycopy( rows, drop * width, tmp, 0, tmp.length );
+					rows = tmp;
+					firstRow += drop;
+					numRows -= drop;
+				}
+			}
+		}
+	}
+}
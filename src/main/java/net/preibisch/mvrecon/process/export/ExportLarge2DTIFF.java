@@ -65,13 +65,17 @@ public class ExportLarge2DTIFF implements ImgExport
 	public static String defaultPath = null;
 
 	final static String noCompression = "No compression";
-	final static int[] imgLib2blockSize = new int[] { 128, 1024, 1 };
+	final static int[] imgLib2blockSize = new int[] { 1024, 1024, 1 };
 
 	public static int defaultChoiceR = 0;
 	public static int defaultChoiceG = 1;
 	public static int defaultChoiceB = 2;
 	public static String defaultCompression = noCompression;
 
+	// tiles are rendered and LZW-compressed by this many threads, the queue bounds the memory
+	public static int numThreads = Threads.numThreads();
+	public static int tilesInQueuePerThread = 4;
+
 	File path;
 	int choiceR, choiceG, choiceB;
 	int numFusionGroups;
@@ -86,7 +90,7 @@ public class ExportLarge2DTIFF implements ImgExport
 	public String getDescription() { return "Large 2D-TIFF (supports 8-bit, 2D slices only)"; }
 
 	@Override
-	public int[] blocksize() { return imgLib2blockSize.clone(); } // TIFF writer writes Width * 16 blocks, so this is to maximize multi-threading efficiency
+	public int[] blocksize() { return imgLib2blockSize.clone(); } // same as the tiles, so every tile is fused by the thread that compresses it
 
 	@Override
 	public boolean finish() { return true; }
@@ -151,9 +155,9 @@ public class ExportLarge2DTIFF implements ImgExport
 				//.downsample(2)
 				.nResolutionLevels(1)
 				//.monitor(taskService) // Monitor
-				.maxTilesInQueue(60) // Number of blocks computed in advanced, default 10
+				.maxTilesInQueue(tilesInQueuePerThread * numThreads) // Number of blocks computed in advanced, default 10
 				.savePath(path.getAbsolutePath())
-				.nThreads(Threads.numThreads())
+				.nThreads(numThreads)
 				.micrometer()
 				.create(createSourceAndConverter(rgb))
 				.export();
@@ -24,17 +24,22 @@ package net.preibisch.mvrecon.process.export;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
@@ -57,15 +62,19 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Pair;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionExportInterface;
 import net.preibisch.mvrecon.fiji.plugin.resave.PluginHelper;
 import net.preibisch.mvrecon.fiji.plugin.util.GUIHelper;
 import net.preibisch.mvrecon.process.deconvolution.DeconViews;
 import net.preibisch.mvrecon.process.downsampling.lazy.LazyHalfPixelDownsample2x;
 import net.preibisch.mvrecon.process.export.ExportTools.InstantiateViewSetupBigStitcher;
+import net.preibisch.mvrecon.process.fusion.lazy.BlockClassifier;
+import net.preibisch.mvrecon.process.fusion.lazy.BlockClassifier.BlockType;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 import util.Grid;
 
@@ -102,6 +111,35 @@ public class ExportN5API implements ImgExport
 	public static int defaultBlocksizeFactorY_H5 = 4;
 	public static int defaultBlocksizeFactorZ_H5 = 4;
 
+	// isotropic chunks for OME-Zarr, so streaming viewers load similar amounts of data for every level and orientation
+	public static int defaultBlocksizeX_OME = 64;
+	public static int defaultBlocksizeY_OME = 64;
+	public static int defaultBlocksizeZ_OME = 64;
+	public static int defaultBlocksizeFactorX_OME = 2;
+	public static int defaultBlocksizeFactorY_OME = 2;
+	public static int defaultBlocksizeFactorZ_OME = 2;
+
+	public static boolean defaultOMEZarr = true;
+
+	public static int defaultCompression = CompressionTools.GZIP;
+	public static int defaultCompressionLevel = 1;
+	public static boolean defaultBenchmarkCompression = false;
+	public static int defaultBenchmarkBlocks = 20;
+
+	public static boolean defaultSharding = false;
+	public static int defaultShardSize = 4;
+
+	public static boolean defaultResume = false;
+	public static int defaultNumProcesses = 1;
+	public static int defaultProcessIndex = 0;
+
+	public static int defaultFusionThreads = Threads.numThreads();
+	public static int defaultCompressionThreads = Math.max( 1, Threads.numThreads() / 4 );
+	public static int defaultWriterThreads = 2;
+	public static int defaultQueueSize = 32;
+
+	public static final String bdvMetaDataWrittenKey = "bdvMetaDataWritten";
+
 	StorageType storageType = StorageType.values()[ defaultOption ];
 	String path = defaultPath;
 	String baseDataset = defaultBaseDataset;
@@ -125,7 +163,20 @@ public class ExportN5API implements ImgExport
 	int bsFactorY = defaultBlocksizeFactorY_N5;
 	int bsFactorZ = defaultBlocksizeFactorZ_N5;
 
-	final Compression compression = new GzipCompression( 1 );
+	int compressionLevel = defaultCompressionLevel;
+	Compression compression = CompressionTools.createCompression( defaultCompression, defaultCompressionLevel );
+	boolean benchmarkCompression = false;
+	int[] shardSize = null; // blocks per shard if sharded N5 is desired
+
+	boolean resume = false; // skip blocks that are done according to the manifests
+
+	boolean omeZarr = false; // write OME-Zarr (NGFF) multiscales metadata
+	double unitSize = 1.0; // size of one global unit
+	String unit = null; // the unit of the global coordinate system, null if unknown
+
+	final ArrayList< BlockClassifier > classifiers = new ArrayList<>(); // for the next image(s) only
+	int numProcesses = 1, processIndex = 0; // to split one export across several processes
+	int fusionThreads = defaultFusionThreads, compressionThreads = defaultCompressionThreads, writerThreads = defaultWriterThreads, queueSize = defaultQueueSize;
 	N5Writer driverVolumeWriter = null;
 
 	InstantiateViewSetupBigStitcher instantiate;
@@ -158,6 +209,33 @@ public class ExportN5API implements ImgExport
 			final String title,
 			final Group<? extends ViewId> fusionGroup)
 	{
+		return exportImages( Arrays.asList( imgInterval ), bb, downsampling, anisoF, Arrays.asList( title ), Arrays.asList( fusionGroup ) );
+	}
+
+	/**
+	 * Writes all images (e.g. the channels of one lazy 4d fusion) from the same compute blocks. Each compute block
+	 * is requested for all images right after each other, so a block that computes all channels at once is only
+	 * computed once, no matter how large the images are compared to the cache.
+	 */
+	@Override
+	public <T extends RealType<T> & NativeType<T>> boolean exportImages(
+			final List< ? extends RandomAccessibleInterval< T > > imgIntervals,
+			final Interval bb,
+			final double downsampling,
+			final double anisoF,
+			final List< String > titles,
+			final List< ? extends Group< ? extends ViewId > > fusionGroups )
+	{
+		final int numImages = imgIntervals.size();
+
+		// only valid for these images
+		final ArrayList< BlockClassifier > classifiers = new ArrayList<>();
+
+		for ( int c = 0; c < numImages; ++c )
+			classifiers.add( c < this.classifiers.size() ? this.classifiers.get( c ) : null );
+
+		this.classifiers.clear();
+
 		if ( driverVolumeWriter == null )
 		{
 			IOFunctions.println( "Creating " + storageType + " container '" + path + "' (assuming it doesn't already exist) ... " );
@@ -165,7 +243,7 @@ public class ExportN5API implements ImgExport
 			try
 			{
 				if ( storageType == StorageType.N5 )
-					driverVolumeWriter = new N5FSWriter(path);
+					driverVolumeWriter = shardSize != null ? new N5ShardedFSWriter(path) : new N5FSWriter(path);
 				else if ( storageType == StorageType.ZARR )
 					driverVolumeWriter = new N5ZarrWriter(path);
 				else if ( storageType == StorageType.HDF5 )
@@ -185,7 +263,7 @@ public class ExportN5API implements ImgExport
 			}
 		}
 
-		final T type = Views.iterable( imgInterval ).firstElement().createVariable();
+		final T type = Views.iterable( imgIntervals.get( 0 ) ).firstElement().createVariable();
 		final DataType dataType;
 
 		if ( UnsignedByteType.class.isInstance( type ) )
@@ -207,8 +285,251 @@ public class ExportN5API implements ImgExport
 		else
 			throw new RuntimeException( "dataType " + type.getClass().getSimpleName() + " not supported." );
 
-		final RandomAccessibleInterval< T > img = Views.zeroMin( imgInterval );
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList<>();
+
+		for ( final RandomAccessibleInterval< T > imgInterval : imgIntervals )
+			imgs.add( Views.zeroMin( imgInterval ) );
+
+		// only for the first image that is exported
+		if ( benchmarkCompression )
+		{
+			CompressionTools.benchmark( imgs.get( 0 ), blocksize(), defaultBenchmarkBlocks, compressionLevel, dataType, storageType );
+			benchmarkCompression = false;
+		}
+
+		//
+		// the dimensions of the multiresolution pyramid (s0 ... sN), the same for all images
+		//
+		final int numLevels = this.downsampling == null ? 1 : this.downsampling.length;
+		final long[][] dims = new long[ numLevels ][];
+
+		dims[ 0 ] = bb.dimensionsAsLongArray();
+
+		for ( int level = 1; level < numLevels; ++level )
+		{
+			dims[ level ] = new long[ dims[ level - 1 ].length ];
+
+			for ( int d = 0; d < dims[ level ].length; ++d )
+				dims[ level ][ d ] = dims[ level - 1 ][ d ] / ( this.downsampling[ level ][ d ] / this.downsampling[ level - 1 ][ d ] );
+		}
+
+		final String[][] datasets = new String[ numImages ][];
+		final BlockManifest[][] manifests = new BlockManifest[ numImages ][ numLevels ];
+
+		for ( int c = 0; c < numImages; ++c )
+		{
+			datasets[ c ] = createDatasets( titles.get( c ), fusionGroups.get( c ), bb, downsampling, anisoF, dataType, dims );
+
+			if ( datasets[ c ] == null )
+				return false;
+
+			//
+			// the manifests record which blocks of each level are written, so the export can be resumed
+			//
+			for ( int level = 0; level < numLevels; ++level )
+				manifests[ c ][ level ] = new BlockManifest( BlockManifest.manifestFile( path, datasets[ c ][ level ], storageType ), dims[ level ], blocksize(), resume );
+
+			if ( resume )
+				for ( int level = 0; level < numLevels; ++level )
+					IOFunctions.println( datasets[ c ][ level ] + ": " + manifests[ c ][ level ].numDone() + "/" + manifests[ c ][ level ].numBlocks() + " blocks already done." );
+		}
+
+		//
+		// export images
+		//
+		final int[] computeBlockSize = new int[] {
+				blocksize()[0] * computeBlocksizeFactor()[ 0 ],
+				blocksize()[1] * computeBlocksizeFactor()[ 1 ],
+				blocksize()[2] * computeBlocksizeFactor()[ 2 ] };
+
+		// build the pyramid levels in memory from each compute block if the compute blocks are aligned with the downsampling
+		final boolean buildPyramid = this.downsampling != null && PyramidBlockWriter.maxLevel( this.downsampling, computeBlockSize ) > 0;
+		final ArrayList< PyramidBlockWriter< T > > pyramids = new ArrayList<>();
+
+		for ( int c = 0; c < numImages; ++c )
+			pyramids.add( buildPyramid ? new PyramidBlockWriter<>( driverVolumeWriter, datasets[ c ], dims, this.downsampling, blocksize(), computeBlockSize, type, dataType, manifests[ c ] ) : null );
+
+		if ( buildPyramid )
+			IOFunctions.println( "Building s1 ... s" + pyramids.get( 0 ).maxLevel() + " in memory while writing s0." );
+
+		final List<long[][]> fullGrid;
+
+		if ( !buildPyramid && shardSize == null && numProcesses == 1 )
+			fullGrid = Grid.create( bb.dimensionsAsLongArray(), computeBlockSize, blocksize() );
+		else
+			fullGrid = PyramidBlockWriter.sortForLocality( Grid.create( bb.dimensionsAsLongArray(), computeBlockSize, blocksize() ), computeBlockSize );
+
+		// this process' part of the export without the compute blocks that are done for all images
+		final List<long[][]> grid = partition( fullGrid, numProcesses, processIndex ).stream().filter(
+				gridBlock -> Arrays.stream( manifests ).anyMatch( m -> !m[ 0 ].isDone( gridBlock[0], gridBlock[1] ) ) ).collect( Collectors.toList() );
+
+		IOFunctions.println( "num blocks = " + Grid.create( bb.dimensionsAsLongArray(), blocksize() ).size() + ", size = " + bsX + "x" + bsY + "x" + bsZ + ( numImages > 1 ? ", images = " + numImages : "" ) );
+		IOFunctions.println( "num compute blocks = " + fullGrid.size() + " (to compute: " + grid.size() + "), size = " + bsX*bsFactorX + "x" + bsY*bsFactorY + "x" + bsZ*bsFactorZ );
+
+		final long time = System.currentTimeMillis();
+
+		// fusion threads compute the blocks, compression and writing happen in separate threads (HDF5 is written by one thread anyway)
+		final ExecutorService ex = new ForkJoinPool( fusionThreads );
+		final BlockWritePipeline pipeline = new BlockWritePipeline(
+				driverVolumeWriter, path, compressionThreads, storageType == StorageType.HDF5 ? 1 : writerThreads, queueSize );
+
+		for ( int c = 0; c < numImages; ++c )
+		{
+			if ( pyramids.get( c ) != null )
+				pyramids.get( c ).setPipeline( pipeline );
+
+			// the blocks that are done still count towards completing their shards (sharded exports run in one process)
+			if ( shardSize != null )
+				for ( final long[][] gridBlock : fullGrid )
+					if ( manifests[ c ][ 0 ].isDone( gridBlock[0], gridBlock[1] ) )
+						pipeline.skip( datasets[ c ][ 0 ], gridBlock[1], gridBlock[2], false, null );
+		}
+
+		// the first block that failed, the manifests are still flushed so the export can be resumed
+		final AtomicReference< Throwable > failed = new AtomicReference<>();
+
+		//
+		// save full-resolution data (s0), all images of a compute block right after each other
+		//
+		ex.submit(() ->
+			grid.parallelStream().forEach(
+					gridBlock -> {
+						for ( int c = 0; c < numImages; ++c )
+						{
+							try
+							{
+								writeBlock( gridBlock, imgs.get( c ), datasets[ c ][ 0 ], manifests[ c ][ 0 ], classifiers.get( c ), pyramids.get( c ), pipeline );
+							}
+							catch (Exception e) 
+							{
+								IOFunctions.println( "Error writing block offset=" + Util.printCoordinates( gridBlock[0] ) + " of '" + datasets[ c ][ 0 ] + "' ... " );
+								e.printStackTrace();
+								failed.compareAndSet( null, e );
+							}
+						}
+					} )
+			);
+
+		try
+		{
+			ex.shutdown();
+			ex.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS);
+
+			pipeline.finish();
+		}
+		catch (InterruptedException | RuntimeException e)
+		{
+			IOFunctions.println( "Failed to write HDF5/N5/ZARR. Error: " + e );
+			e.printStackTrace();
+			return false;
+		}
+
+		//System.out.println( "Saved, e.g. view with './n5-view -i " + n5Path + " -d " + n5Dataset );
+		IOFunctions.println( "Saved full resolution, took: " + (System.currentTimeMillis() - time ) + " ms." );
+
+		for ( int c = 0; c < numImages; ++c )
+		{
+			if ( classifiers.get( c ) != null )
+				classifiers.get( c ).printStatistics();
+
+			if ( pyramids.get( c ) != null )
+				pyramids.get( c ).finish();
+		}
+
+		if ( shardSize != null )
+			((N5ShardedFSWriter)driverVolumeWriter).flush();
+
+		for ( final BlockManifest[] m : manifests )
+			for ( final BlockManifest manifest : m )
+				manifest.flush();
+
+		// the downsampled levels need all of s0 (other processes would wait for these blocks)
+		if ( failed.get() != null )
+		{
+			IOFunctions.println( "Failed to write blocks of s0, stopping (the export can be resumed). Error: " + failed.get() );
+			return false;
+		}
+
+		if ( this.downsampling != null )
+			for ( int c = 0; c < numImages; ++c )
+				if ( !saveDownsampledLevels( datasets[ c ], dims, manifests[ c ], dataType ) )
+					return false;
+
+		return true;
+	}
+
+	/**
+	 * Writes one compute block of one image, the manifest is updated by the pipeline once its blocks are written.
+	 */
+	protected < T extends RealType< T > & NativeType< T > > void writeBlock(
+			final long[][] gridBlock,
+			final RandomAccessibleInterval< T > img,
+			final String dataset,
+			final BlockManifest manifest,
+			final BlockClassifier classifier,
+			final PyramidBlockWriter< T > pyramid,
+			final BlockWritePipeline pipeline )
+	{
+		// when resuming, a compute block can be done for some of the images only
+		if ( manifest.isDone( gridBlock[0], gridBlock[1] ) )
+			return;
+
+		final Interval block =
+				Intervals.translate(
+						new FinalInterval( gridBlock[1] ), // blocksize
+						gridBlock[0] ); // block offset
+
+		final RandomAccessibleInterval< T > source;
+
+		if ( classifier != null )
+		{
+			final List< ViewId > overlapping = classifier.overlappingViews( block );
+			final BlockType blockType = classifier.classify( overlapping );
+
+			if ( blockType == BlockType.EMPTY )
+			{
+				// no view contributes, no fusion and nothing to write
+				if ( pyramid != null )
+					pyramid.emptyBlock( gridBlock[0], gridBlock[1] );
 
+				pipeline.skip( dataset, gridBlock[1], gridBlock[2], true, g -> manifest.setDone( g ) );
+				return;
+			}
+			else if ( blockType == BlockType.SINGLE_VIEW && classifier.hasSingleViewImages() )
+			{
+				source = Views.interval( classifier.< T >singleViewImage( overlapping.get( 0 ) ), block );
+			}
+			else
+			{
+				source = Views.interval( img, block );
+			}
+		}
+		else
+		{
+			source = Views.interval( img, block );
+		}
+
+		if ( pyramid == null )
+			pipeline.submit( Views.offsetInterval(source, gridBlock[0], gridBlock[1]), dataset, gridBlock[2], g -> manifest.setDone( g ) );
+		else
+			pyramid.writeBlock( Views.offsetInterval(source, gridBlock[0], gridBlock[1]), gridBlock[0], gridBlock[2] );
+	}
+
+	/**
+	 * Creates (or checks when resuming) the datasets of one image including its multiresolution pyramid and
+	 * writes the metadata.
+	 *
+	 * @return the dataset of every level, null if it failed
+	 */
+	protected String[] createDatasets(
+			final String title,
+			final Group<? extends ViewId> fusionGroup,
+			final Interval bb,
+			final double downsampling,
+			final double anisoF,
+			final DataType dataType,
+			final long[][] dims )
+	{
 		final String dataset;
 		final ViewId viewId;
 
@@ -235,35 +556,46 @@ public class ExportN5API implements ImgExport
 		//
 		// create dataset
 		//
-		if ( driverVolumeWriter.exists( dataset ) )
+		if ( driverVolumeWriter.exists( dataset ) && !resume )
 		{
 			IOFunctions.println( "Dataset '" + dataset + "' exists. STOPPING!" );
-			return false;
+			return null;
 		}
 
-		IOFunctions.println( "Creating dataset '" + dataset + "' ... " );
-
-		try
+		if ( driverVolumeWriter.exists( dataset ) )
 		{
-			driverVolumeWriter.createDataset(
-					dataset,
-					bb.dimensionsAsLongArray(),
-					blocksize(),
-					dataType,
-					compression );
+			// resuming, the dataset must be the same
+			final DatasetAttributes attributes = driverVolumeWriter.getDatasetAttributes( dataset );
 
-			driverVolumeWriter.setAttribute( dataset, "min", bb.minAsLongArray() );
+			if ( !Arrays.equals( attributes.getDimensions(), bb.dimensionsAsLongArray() ) || !Arrays.equals( attributes.getBlockSize(), blocksize() ) || attributes.getDataType() != dataType )
+			{
+				IOFunctions.println( "Dataset '" + dataset + "' exists, but has different dimensions, blocksize or type, cannot resume. STOPPING!" );
+				return null;
+			}
+
+			IOFunctions.println( "Resuming dataset '" + dataset + "' ... " );
 		}
-		catch ( Exception e )
+		else
 		{
-			IOFunctions.println( "Couldn't create " + storageType + " container '" + path + "': " + e );
-			return false;
+			IOFunctions.println( "Creating dataset '" + dataset + "' ... " );
+
+			try
+			{
+				createDataset( dataset, bb.dimensionsAsLongArray(), dataType );
+	
+				driverVolumeWriter.setAttribute( dataset, "min", bb.minAsLongArray() );
+			}
+			catch ( Exception e )
+			{
+				IOFunctions.println( "Couldn't create " + storageType + " container '" + path + "': " + e );
+				return null;
+			}
 		}
 
 		//
-		// write bdv-metadata into dataset
+		// write bdv-metadata into dataset (only once, by the first process)
 		//
-		if ( bdv )
+		if ( bdv && processIndex == 0 && driverVolumeWriter.getAttribute( dataset, bdvMetaDataWrittenKey, Boolean.class ) == null )
 		{
 			try
 			{
@@ -280,252 +612,318 @@ public class ExportN5API implements ImgExport
 						path,
 						xmlOut,
 						instantiate ) )
-					return false;
+					return null;
+
+				driverVolumeWriter.setAttribute( dataset, bdvMetaDataWrittenKey, true );
 			}
 			catch (SpimDataException | IOException e)
 			{
 				e.printStackTrace();
 				IOFunctions.println( "Failed to write metadata for '" + dataset + "': " + e );
-				return false;
+				return null;
 			}
 		}
 
 		//
-		// export image
+		// create the datasets of the multiresolution pyramid (s1 ... sN)
 		//
-		final List<long[][]> grid =
-				Grid.create(
-						bb.dimensionsAsLongArray(),
-						new int[] {
-								blocksize()[0] * computeBlocksizeFactor()[ 0 ],
-								blocksize()[1] * computeBlocksizeFactor()[ 0 ],
-								blocksize()[2] * computeBlocksizeFactor()[ 0 ]
-						},
-						blocksize() );
+		final int numLevels = dims.length;
+		final String[] datasets = new String[ numLevels ];
+
+		datasets[ 0 ] = dataset;
 
-		IOFunctions.println( "num blocks = " + Grid.create( bb.dimensionsAsLongArray(), blocksize() ).size() + ", size = " + bsX + "x" + bsY + "x" + bsZ );
-		IOFunctions.println( "num compute blocks = " + grid.size() + ", size = " + bsX*bsFactorX + "x" + bsY*bsFactorY + "x" + bsZ*bsFactorZ );
+		if ( this.downsampling != null )
+		{
+			for ( int level = 1; level < this.downsampling.length; ++level )
+			{
+				datasets[ level ] =
+						bdv ? ExportTools.createDownsampledBDVPath(dataset, level, storageType) : dataset.substring(0, dataset.length() - 3) + "/s" + level;
 
-		long time = System.currentTimeMillis();
-		final ExecutorService ex = DeconViews.createExecutorService();
+				try
+				{
+					if ( !driverVolumeWriter.exists( datasets[ level ] ) )
+						createDataset( datasets[ level ], dims[ level ], dataType );
+				}
+				catch ( Exception e )
+				{
+					IOFunctions.println( "Couldn't create downsampling level " + level + " for container '" + path + "', dataset '" + datasets[ level ] + "': " + e );
+					return null;
+				}
+			}
+		}
 
 		//
-		// save full-resolution data (s0)
+		// OME-Zarr (NGFF) multiscales metadata in the group that contains s0 ... sN
 		//
-		ex.submit(() ->
-			grid.parallelStream().forEach(
-					gridBlock -> {
-						try {
+		if ( omeZarr && processIndex == 0 )
+		{
+			final String group = dataset.substring( 0, dataset.length() - 3 );
+			final String[] levels = new String[ numLevels ];
 
-							final Interval block =
-									Intervals.translate(
-											new FinalInterval( gridBlock[1] ), // blocksize
-											gridBlock[0] ); // block offset
-	
-							final RandomAccessibleInterval< T > source = Views.interval( img, block );
-	
-							final RandomAccessibleInterval sourceGridBlock = Views.offsetInterval(source, gridBlock[0], gridBlock[1]);
-							N5Utils.saveBlock(sourceGridBlock, driverVolumeWriter, dataset, gridBlock[2]);
-						}
-						catch (Exception e) 
-						{
-							IOFunctions.println( "Error writing block offset=" + Util.printCoordinates( gridBlock[0] ) + "' ... " );
-							e.printStackTrace();
-						}
-					} )
-			);
+			for ( int level = 0; level < numLevels; ++level )
+				levels[ level ] = datasets[ level ].substring( datasets[ level ].lastIndexOf( '/' ) + 1 );
 
-		try
-		{
-			ex.shutdown();
-			ex.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS);
-		}
-		catch (InterruptedException e)
-		{
-			IOFunctions.println( "Failed to write HDF5/N5/ZARR. Error: " + e );
-			e.printStackTrace();
-			return false;
+			try
+			{
+				OMEZarrTools.writeMultiscales(
+						driverVolumeWriter,
+						group,
+						title,
+						levels,
+						this.downsampling,
+						OMEZarrTools.fusedToGlobal( bb, downsampling, anisoF ),
+						unitSize,
+						unit );
+			}
+			catch ( Exception e )
+			{
+				IOFunctions.println( "Couldn't write OME-Zarr metadata for '" + group + "': " + e );
+				return null;
+			}
 		}
 
-		//System.out.println( "Saved, e.g. view with './n5-view -i " + n5Path + " -d " + n5Dataset );
-		IOFunctions.println( "Saved full resolution, took: " + (System.currentTimeMillis() - time ) + " ms." );
-
-		//
-		// save multiresolution pyramid (s1 ... sN)
-		//
+		return datasets;
+	}
 
-		if ( this.downsampling != null )
+	/**
+	 * Saves the remaining blocks of the multiresolution pyramid (s1 ... sN) of one image, i.e. the levels that could
+	 * not be built in memory and the blocks that did not fit into the buffer, from the previous level on disk.
+	 *
+	 * @return true if successful
+	 */
+	protected boolean saveDownsampledLevels( final String[] datasets, final long[][] dims, final BlockManifest[] manifests, final DataType dataType )
+	{
+		for ( int level = 1; level < this.downsampling.length; ++level )
 		{
-			long[] previousDim = bb.dimensionsAsLongArray();
-			String previousDataset = dataset;
+			final int[] ds = new int[ this.downsampling[ 0 ].length ];
 
-			for ( int level = 1; level < this.downsampling.length; ++level )
-			{
-				final int[] ds = new int[ this.downsampling[ 0 ].length ];
+			for ( int d = 0; d < ds.length; ++d )
+				ds[ d ] = this.downsampling[ level ][ d ] / this.downsampling[ level - 1 ][ d ];
 
-				for ( int d = 0; d < ds.length; ++d )
-					ds[ d ] = this.downsampling[ level ][ d ] / this.downsampling[ level - 1 ][ d ];
+			final int l = level;
+			final String datasetDownsampling = datasets[ level ];
 
-				IOFunctions.println( "Downsampling: " + Util.printCoordinates( this.downsampling[ level ] ) + " with relative downsampling of " + Util.printCoordinates( ds ));
+			// the previous level must be complete, other processes might still work on it
+			if ( numProcesses > 1 && !manifests[ level - 1 ].waitUntilComplete( 10 * 1000, BlockManifest.defaultWaitTimeoutMillis ) )
+			{
+				IOFunctions.println( "s" + ( level - 1 ) + " of '" + datasets[ level - 1 ] + "' is incomplete, stopping (the export can be resumed)." );
+				return false;
+			}
 
-				final long[] dim = new long[ previousDim.length ];
-				for ( int d = 0; d < dim.length; ++d )
-					dim[ d ] = previousDim[ d ] / ds[ d ];
+			final List<long[][]> gridDS = partition( Grid.create(
+					dims[ level ],
+					new int[] {
+							blocksize()[0],
+							blocksize()[1],
+							blocksize()[2]
+					},
+					blocksize()), numProcesses, processIndex ).stream().filter( gridBlock -> !manifests[ l ].isDone( gridBlock[2] ) ).collect( Collectors.toList() );
 
-				final String datasetDownsampling =
-						bdv ? ExportTools.createDownsampledBDVPath(dataset, level, storageType) : dataset.substring(0, dataset.length() - 3) + "/s" + level;
+			if ( gridDS.size() == 0 )
+			{
+				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": all blocks of s" + level + " are done." );
+				continue;
+			}
 
-				try
-				{
-					driverVolumeWriter.createDataset(
-							datasetDownsampling,
-							dim, // dimensions
-							blocksize(),
-							dataType,
-							compression );
-				}
-				catch ( Exception e )
-				{
-					IOFunctions.println( "Couldn't create downsampling level " + level + " for container '" + path + "', dataset '" + datasetDownsampling + "': " + e );
-					return false;
-				}
+			IOFunctions.println( "Downsampling: " + Util.printCoordinates( this.downsampling[ level ] ) + " with relative downsampling of " + Util.printCoordinates( ds ));
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": s" + level + " num blocks=" + gridDS.size() );
 
-				final List<long[][]> gridDS = Grid.create(
-						dim,
-						new int[] {
-								blocksize()[0],
-								blocksize()[1],
-								blocksize()[2]
-						},
-						blocksize());
+			final String datasetPrev = datasets[ level - 1 ];
+			final DatasetAttributes attributesDownsampling = driverVolumeWriter.getDatasetAttributes( datasetDownsampling );
 
-				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": s" + level + " num blocks=" + gridDS.size() );
+			// the blocks that are done still count towards completing their shards
+			if ( shardSize != null )
+				for ( final long[][] gridBlock : Grid.create( dims[ level ], blocksize(), blocksize() ) )
+					if ( manifests[ l ].isDone( gridBlock[2] ) )
+						((N5ShardedFSWriter)driverVolumeWriter).markUnchanged( datasetDownsampling, attributesDownsampling, gridBlock[2] );
 
-				final String datasetPrev = previousDataset;
-				final ExecutorService e = DeconViews.createExecutorService();
+			final ExecutorService e = DeconViews.createExecutorService();
 
-				IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Loading '" + datasetPrev + "', downsampled will be written as '" + datasetDownsampling + "'." );
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Loading '" + datasetPrev + "', downsampled will be written as '" + datasetDownsampling + "'." );
 
-				time = System.currentTimeMillis();
+			final long time = System.currentTimeMillis();
+			final AtomicReference< Throwable > failed = new AtomicReference<>();
 
-				e.submit(() ->
-					gridDS.parallelStream().forEach(
-							gridBlock ->
+			e.submit(() ->
+				gridDS.parallelStream().forEach(
+						gridBlock ->
+						{
+							try
 							{
-								try
+								if ( dataType == DataType.UINT16 )
+								{
+									RandomAccessibleInterval<UnsignedShortType> downsampled = N5Utils.open(driverVolumeWriter, datasetPrev);
+
+									for ( int d = 0; d < downsampled.numDimensions(); ++d )
+										if ( ds[ d ] > 1 )
+											downsampled = LazyHalfPixelDownsample2x.init(
+												downsampled,
+												new FinalInterval( downsampled ),
+												new UnsignedShortType(),
+												blocksize(),
+												d);
+
+									final RandomAccessibleInterval<UnsignedShortType> sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
+									saveNonEmptyBlock( sourceGridBlock, driverVolumeWriter, datasetDownsampling, attributesDownsampling, gridBlock[2], manifests[ l ] );
+								}
+								else if ( dataType == DataType.UINT8 )
+								{
+									RandomAccessibleInterval<UnsignedByteType> downsampled = N5Utils.open(driverVolumeWriter, datasetPrev);
+
+									for ( int d = 0; d < downsampled.numDimensions(); ++d )
+										if ( ds[ d ] > 1 )
+											downsampled = LazyHalfPixelDownsample2x.init(
+												downsampled,
+												new FinalInterval( downsampled ),
+												new UnsignedByteType(),
+												blocksize(),
+												d);
+
+									final RandomAccessibleInterval<UnsignedByteType> sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
+									saveNonEmptyBlock( sourceGridBlock, driverVolumeWriter, datasetDownsampling, attributesDownsampling, gridBlock[2], manifests[ l ] );
+								}
+								else if ( dataType == DataType.FLOAT32 )
 								{
-									if ( dataType == DataType.UINT16 )
-									{
-										RandomAccessibleInterval<UnsignedShortType> downsampled = N5Utils.open(driverVolumeWriter, datasetPrev);
-
-										for ( int d = 0; d < downsampled.numDimensions(); ++d )
-											if ( ds[ d ] > 1 )
-												downsampled = LazyHalfPixelDownsample2x.init(
-													downsampled,
-													new FinalInterval( downsampled ),
-													new UnsignedShortType(),
-													blocksize(),
-													d);
-
-										final RandomAccessibleInterval<UnsignedShortType> sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
-										N5Utils.saveNonEmptyBlock(sourceGridBlock, driverVolumeWriter, datasetDownsampling, gridBlock[2], new UnsignedShortType());
-									}
-									else if ( dataType == DataType.UINT8 )
-									{
-										RandomAccessibleInterval<UnsignedByteType> downsampled = N5Utils.open(driverVolumeWriter, datasetPrev);
-
-										for ( int d = 0; d < downsampled.numDimensions(); ++d )
-											if ( ds[ d ] > 1 )
-												downsampled = LazyHalfPixelDownsample2x.init(
-													downsampled,
-													new FinalInterval( downsampled ),
-													new UnsignedByteType(),
-													blocksize(),
-													d);
-
-										final RandomAccessibleInterval<UnsignedByteType> sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
-										N5Utils.saveNonEmptyBlock(sourceGridBlock, driverVolumeWriter, datasetDownsampling, gridBlock[2], new UnsignedByteType());
-									}
-									else if ( dataType == DataType.FLOAT32 )
-									{
-										RandomAccessibleInterval<FloatType> downsampled = N5Utils.open(driverVolumeWriter, datasetPrev);
-
-										for ( int d = 0; d < downsampled.numDimensions(); ++d )
-											if ( ds[ d ] > 1 )
-												downsampled = LazyHalfPixelDownsample2x.init(
-													downsampled,
-													new FinalInterval( downsampled ),
-													new FloatType(),
-													blocksize(),
-													d);
-
-										final RandomAccessibleInterval<FloatType> sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
-										N5Utils.saveNonEmptyBlock(sourceGridBlock, driverVolumeWriter, datasetDownsampling, gridBlock[2], new FloatType());
-									}
-									// this can be removed because of: https://github.com/bigdataviewer/bigdataviewer-core/pull/157
-									/*
-									else if ( dataType == DataType.INT16 )
-									{
-										// Tobias: unfortunately I store as short and treat it as unsigned short in Java.
-										// The reason is, that when I wrote this, the jhdf5 library did not support unsigned short. It's terrible and should be fixed.
-										// https://github.com/bigdataviewer/bigdataviewer-core/issues/154
-										// https://imagesc.zulipchat.com/#narrow/stream/327326-BigDataViewer/topic/XML.2FHDF5.20specification
-										RandomAccessibleInterval<UnsignedShortType> downsampled =
-												Converters.convertRAI(
-														(RandomAccessibleInterval<ShortType>)(Object)N5Utils.open(driverVolumeWriter, datasetPrev),
-														(i,o)->o.set( i.getShort() ),
-														new UnsignedShortType());
-
-										for ( int d = 0; d < downsampled.numDimensions(); ++d )
-											if ( ds[ d ] > 1 )
-												downsampled = LazyHalfPixelDownsample2x.init(
-													downsampled,
-													new FinalInterval( downsampled ),
-													new UnsignedShortType(),
-													blocksize(),
-													d);
-
-										final RandomAccessibleInterval<ShortType> sourceGridBlock =
-												Converters.convertRAI( Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]), (i,o)->o.set( i.getShort() ), new ShortType() );
-										N5Utils.saveNonEmptyBlock(sourceGridBlock, driverVolumeWriter, datasetDownsampling, gridBlock[2], new ShortType());
-									}*/
-									else
-									{
-										IOFunctions.println( "Unsupported pixel type: " + dataType );
-										throw new RuntimeException("Unsupported pixel type: " + dataType );
-									}
+									RandomAccessibleInterval<FloatType> downsampled = N5Utils.open(driverVolumeWriter, datasetPrev);
+
+									for ( int d = 0; d < downsampled.numDimensions(); ++d )
+										if ( ds[ d ] > 1 )
+											downsampled = LazyHalfPixelDownsample2x.init(
+												downsampled,
+												new FinalInterval( downsampled ),
+												new FloatType(),
+												blocksize(),
+												d);
+
+									final RandomAccessibleInterval<FloatType> sourceGridBlock = Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]);
+									saveNonEmptyBlock( sourceGridBlock, driverVolumeWriter, datasetDownsampling, attributesDownsampling, gridBlock[2], manifests[ l ] );
 								}
-								catch (Exception exc) 
+								// this can be removed because of: https://github.com/bigdataviewer/bigdataviewer-core/pull/157
+								/*
+								else if ( dataType == DataType.INT16 )
 								{
-									IOFunctions.println( "Error writing block offset=" + Util.printCoordinates( gridBlock[0] ) + "' ... " + exc );
-									exc.printStackTrace();
+									// Tobias: unfortunately I store as short and treat it as unsigned short in Java.
+									// The reason is, that when I wrote this, the jhdf5 library did not support unsigned short. It's terrible and should be fixed.
+									// https://github.com/bigdataviewer/bigdataviewer-core/issues/154
+									// https://imagesc.zulipchat.com/#narrow/stream/327326-BigDataViewer/topic/XML.2FHDF5.20specification
+									RandomAccessibleInterval<UnsignedShortType> downsampled =
+											Converters.convertRAI(
+													(RandomAccessibleInterval<ShortType>)(Object)N5Utils.open(driverVolumeWriter, datasetPrev),
+													(i,o)->o.set( i.getShort() ),
+													new UnsignedShortType());
+
+									for ( int d = 0; d < downsampled.numDimensions(); ++d )
+										if ( ds[ d ] > 1 )
+											downsampled = LazyHalfPixelDownsample2x.init(
+												downsampled,
+												new FinalInterval( downsampled ),
+												new UnsignedShortType(),
+												blocksize(),
+												d);
+
+									final RandomAccessibleInterval<ShortType> sourceGridBlock =
+											Converters.convertRAI( Views.offsetInterval(downsampled, gridBlock[0], gridBlock[1]), (i,o)->o.set( i.getShort() ), new ShortType() );
+									N5Utils.saveNonEmptyBlock(sourceGridBlock, driverVolumeWriter, datasetDownsampling, gridBlock[2], new ShortType());
+								}*/
+								else
+								{
+									IOFunctions.println( "Unsupported pixel type: " + dataType );
+									throw new RuntimeException("Unsupported pixel type: " + dataType );
 								}
-							} )
-					);
+							}
+							catch (Exception exc) 
+							{
+								IOFunctions.println( "Error writing block offset=" + Util.printCoordinates( gridBlock[0] ) + "' ... " + exc );
+								exc.printStackTrace();
+								failed.compareAndSet( null, exc );
+							}
+						} )
+				);
 
-				try
-				{
-					e.shutdown();
-					e.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS);
-				}
-				catch (InterruptedException exc)
-				{
-					IOFunctions.println( "Failed to write HDF5/N5/ZARR. Error: " + exc );
-					exc.printStackTrace();
-					return false;
-				}
+			try
+			{
+				e.shutdown();
+				e.awaitTermination( Long.MAX_VALUE, TimeUnit.HOURS);
+			}
+			catch (InterruptedException exc)
+			{
+				IOFunctions.println( "Failed to write HDF5/N5/ZARR. Error: " + exc );
+				exc.printStackTrace();
+				return false;
+			}
 
-				IOFunctions.println( "Saved level s " + level + ", took: " + (System.currentTimeMillis() - time ) + " ms." );
+			if ( shardSize != null )
+				((N5ShardedFSWriter)driverVolumeWriter).flush();
 
-				// for next downsampling level
-				previousDim = dim.clone();
-				previousDataset = datasetDownsampling;
+			manifests[ level ].flush();
+
+			if ( failed.get() != null )
+			{
+				IOFunctions.println( "Failed to write blocks of s" + level + ", stopping (the export can be resumed). Error: " + failed.get() );
+				return false;
 			}
+
+			IOFunctions.println( "Saved level s " + level + ", took: " + (System.currentTimeMillis() - time ) + " ms." );
 		}
 
 		return true;
 	}
 
+	/**
+	 * @return the contiguous part of the list that is processed by this process
+	 */
+	protected static < E > List< E > partition( final List< E > list, final int numProcesses, final int processIndex )
+	{
+		if ( numProcesses == 1 )
+			return list;
+
+		return list.subList(
+				(int)( (long)list.size() * processIndex / numProcesses ),
+				(int)( (long)list.size() * ( processIndex + 1 ) / numProcesses ) );
+	}
+
+	/**
+	 * Writes a block unless it is empty (same as N5Utils.saveNonEmptyBlock()) and records it in the manifest once
+	 * it is on disk, which for a sharded dataset is when its shard is written.
+	 */
+	protected static < T extends RealType< T > & NativeType< T > > void saveNonEmptyBlock(
+			final RandomAccessibleInterval< T > source,
+			final N5Writer n5,
+			final String dataset,
+			final DatasetAttributes attributes,
+			final long[] gridPosition,
+			final BlockManifest manifest )
+	{
+		final DataBlock< ? > block = CompressionTools.createDataBlock( source, attributes.getDataType(), gridPosition );
+
+		if ( n5 instanceof N5ShardedFSWriter )
+		{
+			// empty blocks count towards completing their shard
+			if ( block == null )
+				((N5ShardedFSWriter)n5).markEmpty( dataset, attributes, gridPosition, manifest::setDone );
+			else
+				((N5ShardedFSWriter)n5).writeBlock( dataset, attributes, block, manifest::setDone );
+		}
+		else
+		{
+			if ( block != null )
+				n5.writeBlock( dataset, attributes, block );
+
+			manifest.setDone( gridPosition );
+		}
+	}
+
+	@Override
+	public void setBlockClassifier( final BlockClassifier classifier ) { this.classifiers.add( classifier ); }
+
+	protected void createDataset( final String dataset, final long[] dimensions, final DataType dataType )
+	{
+		if ( shardSize != null )
+			((N5ShardedFSWriter)driverVolumeWriter).createShardedDataset( dataset, dimensions, blocksize(), dataType, compression, shardSize );
+		else
+			driverVolumeWriter.createDataset( dataset, dimensions, blocksize(), dataType, compression );
+	}
+
 	@Override
 	public boolean queryParameters( final FusionExportInterface fusion)
 	{
@@ -697,6 +1095,28 @@ public class ExportN5API implements ImgExport
 					" (factor: "+defaultBlocksizeFactorX_N5+"x"+defaultBlocksizeFactorY_N5+"x"+defaultBlocksizeFactorZ_N5+")", GUIHelper.mediumstatusNonItalicfont, GUIHelper.neutral );
 		}
 
+		if ( storageType == StorageType.ZARR )
+			gd.addMessage(
+					"Default blocksize for OME-Zarr: "+defaultBlocksizeX_OME+"x"+defaultBlocksizeY_OME+"x"+defaultBlocksizeZ_OME+
+					" (factor: "+defaultBlocksizeFactorX_OME+"x"+defaultBlocksizeFactorY_OME+"x"+defaultBlocksizeFactorZ_OME+")", GUIHelper.mediumstatusNonItalicfont, GUIHelper.neutral );
+
+		gd.addChoice( "Compression", CompressionTools.compressions, CompressionTools.compressions[ defaultCompression ] );
+		gd.addNumericField( "Compression_level (-1 = default of the codec)", defaultCompressionLevel, 0 );
+		gd.addCheckbox( "Benchmark_all_compressions on a sample of fused blocks before saving", defaultBenchmarkCompression );
+
+		if ( storageType == StorageType.N5 && !bdv )
+		{
+			gd.addCheckbox( "Write_sharded_N5 (many blocks per file, read with N5ShardedFSReader)", defaultSharding );
+			gd.addNumericField( "Blocks_per_shard (in each dimension)", defaultShardSize, 0 );
+		}
+
+		if ( storageType == StorageType.ZARR )
+			gd.addCheckbox( "Write_OME-Zarr_metadata (NGFF multiscales with scale & translation, isotropic chunks)", defaultOMEZarr );
+
+		gd.addCheckbox( "Resume_export (skip blocks that are recorded as done in the manifest)", defaultResume );
+		gd.addNumericField( "Number_of_processes (to split one export across processes, N5/ZARR only)", defaultNumProcesses, 0 );
+		gd.addNumericField( "Process_index (0 ... number_of_processes-1)", defaultProcessIndex, 0 );
+
 		gd.addCheckbox( "Show_advanced_block_size_options (in a new dialog, current values above)", defaultAdvancedBlockSize );
 
 		gd.showDialog();
@@ -727,6 +1147,77 @@ public class ExportN5API implements ImgExport
 			this.datasetExtension = defaultDatasetExtension = gd.getNextString().trim();
 		}
 
+		final int compressionIndex = defaultCompression = gd.getNextChoiceIndex();
+		this.compressionLevel = defaultCompressionLevel = (int)Math.round( gd.getNextNumber() );
+		this.benchmarkCompression = defaultBenchmarkCompression = gd.getNextBoolean();
+
+		if ( storageType == StorageType.N5 && !bdv )
+		{
+			final boolean sharding = defaultSharding = gd.getNextBoolean();
+			final int shardSize = defaultShardSize = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+
+			this.shardSize = sharding ? new int[] { shardSize, shardSize, shardSize } : null;
+		}
+		else
+		{
+			// BigDataViewer's N5ImageLoader cannot read sharded datasets
+			this.shardSize = null;
+		}
+
+		if ( storageType == StorageType.ZARR )
+		{
+			this.omeZarr = defaultOMEZarr = gd.getNextBoolean();
+
+			if ( omeZarr && !this.datasetExtension.endsWith( "/s0" ) )
+			{
+				IOFunctions.println( "OME-Zarr requires the levels to be stored in a group, i.e. the dataset extension must end with '/s0', stopping." );
+				return false;
+			}
+
+			if ( omeZarr )
+			{
+				final Pair< Double, String > globalUnit = OMEZarrTools.globalUnit( fusion.getSpimData(), fusion.getViews() );
+				this.unitSize = globalUnit.getA();
+				this.unit = globalUnit.getB();
+
+				IOFunctions.println( "OME-Zarr: one global unit = " + unitSize + " " + ( unit == null ? "(unknown unit)" : unit ) );
+			}
+		}
+		else
+		{
+			this.omeZarr = false;
+		}
+
+		this.resume = defaultResume = gd.getNextBoolean();
+		this.numProcesses = defaultNumProcesses = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+		this.processIndex = defaultProcessIndex = (int)Math.round( gd.getNextNumber() );
+
+		if ( processIndex < 0 || processIndex >= numProcesses )
+		{
+			IOFunctions.println( "Process index must be between 0 and " + ( numProcesses - 1 ) + ", stopping." );
+			return false;
+		}
+
+		if ( numProcesses > 1 )
+		{
+			if ( storageType == StorageType.HDF5 || this.shardSize != null )
+			{
+				IOFunctions.println( "An export can only be split across processes for non-sharded N5 and ZARR, stopping." );
+				return false;
+			}
+
+			// all processes write into the same datasets
+			this.resume = true;
+		}
+
+		if ( !CompressionTools.isSupported( compressionIndex, storageType ) )
+		{
+			IOFunctions.println( "Compression '" + CompressionTools.compressions[ compressionIndex ] + "' is not supported for " + storageType + ", stopping." );
+			return false;
+		}
+
+		this.compression = CompressionTools.createCompression( compressionIndex, compressionLevel );
+
 		if ( defaultAdvancedBlockSize = gd.getNextBoolean() )
 		{
 			final GenericDialog gd2 = new GenericDialog( "Compute block sizes" );
@@ -745,6 +1236,15 @@ public class ExportN5API implements ImgExport
 					+ "For example, if you chose a blocksize of 32x32x16 for saving, and you choose factors of 4x4x2,\n"
 					+ "the compute will be performed in blocksizes of 128x128x64, which creates less tasks.", GUIHelper.smallStatusFont, GUIHelper.neutral );
 
+			gd2.addNumericField( "fusion_threads", defaultFusionThreads, 0 );
+			gd2.addNumericField( "compression_threads (N5 only)", defaultCompressionThreads, 0 );
+			gd2.addNumericField( "writer_threads", defaultWriterThreads, 0 );
+			gd2.addNumericField( "queue_size (blocks, per stage)", defaultQueueSize, 0 );
+
+			gd2.addMessage(
+					"Blocks are fused, compressed and written by separate pools of threads connected through queues,\n"
+					+ "so fusion (CPU) and writing (storage) overlap. The queue depths are reported during export.", GUIHelper.smallStatusFont, GUIHelper.neutral );
+
 			gd2.showDialog();
 			if ( gd2.wasCanceled() )
 				return false;
@@ -757,6 +1257,11 @@ public class ExportN5API implements ImgExport
 			bsFactorY = (int)Math.round( gd2.getNextNumber() );
 			bsFactorZ = (int)Math.round( gd2.getNextNumber() );
 
+			fusionThreads = defaultFusionThreads = Math.max( 1, (int)Math.round( gd2.getNextNumber() ) );
+			compressionThreads = defaultCompressionThreads = Math.max( 1, (int)Math.round( gd2.getNextNumber() ) );
+			writerThreads = defaultWriterThreads = Math.max( 1, (int)Math.round( gd2.getNextNumber() ) );
+			queueSize = defaultQueueSize = Math.max( 1, (int)Math.round( gd2.getNextNumber() ) );
+
 			if ( storageType == StorageType.HDF5 )
 			{
 				defaultBlocksizeX_H5 = bsX; defaultBlocksizeY_H5 = bsY; defaultBlocksizeZ_H5 = bsZ;
@@ -770,7 +1275,12 @@ public class ExportN5API implements ImgExport
 		}
 		else
 		{
-			if ( storageType == StorageType.HDF5 )
+			if ( omeZarr )
+			{
+				bsX = defaultBlocksizeX_OME; bsY = defaultBlocksizeY_OME; bsZ = defaultBlocksizeZ_OME;
+				bsFactorX = defaultBlocksizeFactorX_OME; bsFactorY = defaultBlocksizeFactorY_OME; bsFactorZ = defaultBlocksizeFactorZ_OME;
+			}
+			else if ( storageType == StorageType.HDF5 )
 			{
 				bsX = defaultBlocksizeX_H5; bsY = defaultBlocksizeY_H5; bsZ = defaultBlocksizeZ_H5;
 				bsFactorX = defaultBlocksizeFactorX_H5; bsFactorY = defaultBlocksizeFactorY_H5; bsFactorZ = defaultBlocksizeFactorZ_H5;
@@ -22,12 +22,15 @@
  */
 package net.preibisch.mvrecon.process.export;
 
+import java.util.List;
+
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.preibisch.mvrecon.fiji.plugin.fusion.FusionExportInterface;
+import net.preibisch.mvrecon.process.fusion.lazy.BlockClassifier;
 import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
 
 public interface ImgExport
@@ -65,7 +68,45 @@ public interface ImgExport
 			final double anisoF,
 			final String title,
 			final Group< ? extends ViewId > fusionGroup );
-	
+
+	/**
+	 * Exports several images of the same size that are computed together, e.g. the channels of one lazy 4d fusion
+	 * (Views.hyperSlice( img, 3, c )). Exporters that write in blocks should write all images from the same block
+	 * computation, by default they are exported one after the other.
+	 *
+	 * @param imgs - the images
+	 * @param bb - the bounding box used to fuse the images
+	 * @param downsampling - how much it was downsampled (or NaN if not)
+	 * @param anisoF - how much the z-dimension was scaled (or NaN if not)
+	 * @param titles - the name of each image
+	 * @param fusionGroups - which views are part of the fusion of each image
+	 * @param <T> pixel type
+	 * @return success? true or false
+	 */
+	public default < T extends RealType< T > & NativeType< T > > boolean exportImages(
+			final List< ? extends RandomAccessibleInterval< T > > imgs,
+			final Interval bb,
+			final double downsampling,
+			final double anisoF,
+			final List< String > titles,
+			final List< ? extends Group< ? extends ViewId > > fusionGroups )
+	{
+		for ( int i = 0; i < imgs.size(); ++i )
+			if ( !exportImage( imgs.get( i ), bb, downsampling, anisoF, titles.get( i ), fusionGroups.get( i ) ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Tells the exporter which views contribute to which blocks of the next image that is exported,
+	 * so it can skip empty blocks and copy single-view blocks (optional, ignored by default). Before
+	 * calling exportImages, it is called once for every image in the same order.
+	 *
+	 * @param classifier - the classifier for the next image that is exported (or null)
+	 */
+	public default void setBlockClassifier( final BlockClassifier classifier ) {}
+
 	/*
 	 * Query the necessary parameters for the fusion (new dialog can be made)
 	 * 
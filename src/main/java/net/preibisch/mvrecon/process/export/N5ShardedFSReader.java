@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Reads N5 containers where (some) datasets are sharded, i.e. many blocks are packed into one file
+ * (see {@link N5ShardedFSWriter}). Datasets without the {@link #shardSizeKey} attribute are read as usual,
+ * so it can be used wherever an {@link N5FSReader} is used, e.g. for N5Utils.open().
+ *
+ * A shard file contains the N5-serialized (compressed) blocks, followed by an index with one (offset, length)
+ * pair of little-endian uint64 per block of the shard (x fastest), like the Zarr v3 sharding codec. A missing
+ * block has offset and length 2^64-1.
+ *
+ * @author preibisch
+ */
+public class N5ShardedFSReader extends N5FSReader
+{
+	// the attribute storing the number of blocks per shard in every dimension
+	public static final String shardSizeKey = "shardSize";
+	public static final String shardExtension = ".shard";
+
+	final String basePath;
+	final ConcurrentHashMap< String, int[] > shardSizes = new ConcurrentHashMap<>();
+
+	public N5ShardedFSReader( final String basePath )
+	{
+		super( basePath );
+		this.basePath = basePath;
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition )
+	{
+		final int[] shardSize = shardSize( this, shardSizes, pathName );
+
+		if ( shardSize == null )
+			return super.readBlock( pathName, datasetAttributes, gridPosition );
+		else
+			return readShardedBlock( basePath, pathName, datasetAttributes, shardSize, gridPosition );
+	}
+
+	/**
+	 * @return the number of blocks per shard or null if the dataset is not sharded (cached)
+	 */
+	protected static int[] shardSize( final N5Reader n5, final ConcurrentHashMap< String, int[] > shardSizes, final String pathName )
+	{
+		final int[] shardSize = shardSizes.computeIfAbsent( pathName, p ->
+		{
+			final int[] s = n5.getAttribute( p, shardSizeKey, int[].class );
+			return s == null ? new int[ 0 ] : s;
+		} );
+
+		return shardSize.length == 0 ? null : shardSize;
+	}
+
+	public static long[] shardPosition( final long[] gridPosition, final int[] shardSize )
+	{
+		final long[] shardPosition = new long[ gridPosition.length ];
+
+		for ( int d = 0; d < gridPosition.length; ++d )
+			shardPosition[ d ] = gridPosition[ d ] / shardSize[ d ];
+
+		return shardPosition;
+	}
+
+	/**
+	 * @return the index of a block within its shard (x fastest)
+	 */
+	public static int indexInShard( final long[] gridPosition, final int[] shardSize )
+	{
+		int index = 0;
+
+		for ( int d = gridPosition.length - 1; d >= 0; --d )
+			index = index * shardSize[ d ] + (int)( gridPosition[ d ] % shardSize[ d ] );
+
+		return index;
+	}
+
+	public static int numBlocksPerShard( final int[] shardSize )
+	{
+		int numBlocks = 1;
+
+		for ( final int s : shardSize )
+			numBlocks *= s;
+
+		return numBlocks;
+	}
+
+	public static Path shardPath( final String basePath, final String pathName, final long[] shardPosition )
+	{
+		Path path = Paths.get( basePath, pathName );
+
+		for ( int d = 0; d < shardPosition.length - 1; ++d )
+			path = path.resolve( Long.toString( shardPosition[ d ] ) );
+
+		return path.resolve( shardPosition[ shardPosition.length - 1 ] + shardExtension );
+	}
+
+	public static DataBlock< ? > readShardedBlock(
+			final String basePath,
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final int[] shardSize,
+			final long[] gridPosition )
+	{
+		final Path path = shardPath( basePath, pathName, shardPosition( gridPosition, shardSize ) );
+
+		if ( !Files.exists( path ) )
+			return null;
+
+		try ( final RandomAccessFile file = new RandomAccessFile( path.toFile(), "r" ) )
+		{
+			final long indexOffset = file.length() - 16L * numBlocksPerShard( shardSize );
+			final byte[] entry = new byte[ 16 ];
+
+			file.seek( indexOffset + 16L * indexInShard( gridPosition, shardSize ) );
+			file.readFully( entry );
+
+			final ByteBuffer buffer = ByteBuffer.wrap( entry ).order( ByteOrder.LITTLE_ENDIAN );
+			final long offset = buffer.getLong();
+			final long length = buffer.getLong();
+
+			if ( offset == -1 )
+				return null;
+
+			final byte[] data = new byte[ (int)length ];
+			file.seek( offset );
+			file.readFully( data );
+
+			return DefaultBlockReader.readBlock( new ByteArrayInputStream( data ), datasetAttributes, gridPosition );
+		}
+		catch ( final IOException e )
+		{
+			throw new N5Exception.N5IOException( "Failed to read block " + Arrays.toString( gridPosition ) + " from shard '" + path + "'", e );
+		}
+	}
+
+	/**
+	 * @return the index of a shard file, entries are (offset, length), null if the file does not exist
+	 */
+	public static long[] readShardIndex( final Path path, final int numBlocks ) throws IOException
+	{
+		if ( !Files.exists( path ) )
+			return null;
+
+		try ( final RandomAccessFile file = new RandomAccessFile( path.toFile(), "r" ) )
+		{
+			final byte[] index = new byte[ 16 * numBlocks ];
+
+			file.seek( file.length() - index.length );
+			file.readFully( index );
+
+			final long[] entries = new long[ 2 * numBlocks ];
+			ByteBuffer.wrap( index ).order( ByteOrder.LITTLE_ENDIAN ).asLongBuffer().get( entries );
+
+			return entries;
+		}
+	}
+}
@@ -0,0 +1,476 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * An {@link N5FSWriter} that packs many blocks of a dataset into one shard file (see {@link N5ShardedFSReader}
+ * for the layout), which avoids millions of small files on parallel filesystems. Datasets created with
+ * {@link #createShardedDataset(String, long[], int[], DataType, Compression, int[])} are sharded, all others
+ * are written as usual.
+ *
+ * Blocks are compressed by the calling thread and collected in memory per shard. A shard is written once all
+ * its blocks arrived (by exactly one thread, so threads never contend on the same file), the remaining ones
+ * are written by {@link #flush()}. Blocks that are not written because they are empty or already on disk must
+ * be reported with {@link #markEmpty(String, DatasetAttributes, long[], Consumer)} and
+ * {@link #markUnchanged(String, DatasetAttributes, long[])}, otherwise their shards stay in memory until
+ * {@link #flush()}. If a shard file already exists, the new blocks are merged into it. Callers
+ * that record which blocks are done (e.g. {@link BlockManifest}) must do so in the callback that is run once
+ * the shard file is in place, not when the write call returns.
+ *
+ * Note: sharded datasets can only be read through {@link N5ShardedFSReader} (or this writer), e.g. with
+ * N5Utils.open(), not through BigDataViewer's N5ImageLoader which opens its own N5FSReader.
+ *
+ * @author preibisch
+ */
+public class N5ShardedFSWriter extends N5FSWriter
+{
+	// marks a block that is empty, i.e. removed from the shard
+	final static byte[] EMPTY = new byte[ 0 ];
+
+	final String basePath;
+	final ConcurrentHashMap< String, int[] > shardSizes = new ConcurrentHashMap<>();
+	final ConcurrentHashMap< String, Shard > openShards = new ConcurrentHashMap<>();
+
+	public N5ShardedFSWriter( final String basePath )
+	{
+		super( basePath );
+		this.basePath = basePath;
+	}
+
+	/**
+	 * Creates a dataset that stores shardSize[ 0 ] x shardSize[ 1 ] x ... blocks per file.
+	 *
+	 * @param pathName - the dataset
+	 * @param dimensions - the dimensions
+	 * @param blockSize - the blocksize
+	 * @param dataType - the data type
+	 * @param compression - the compression of each block
+	 * @param shardSize - the number of blocks per shard in every dimension
+	 */
+	public void createShardedDataset(
+			final String pathName,
+			final long[] dimensions,
+			final int[] blockSize,
+			final DataType dataType,
+			final Compression compression,
+			final int[] shardSize )
+	{
+		createDataset( pathName, dimensions, blockSize, dataType, compression );
+		setAttribute( pathName, N5ShardedFSReader.shardSizeKey, shardSize );
+		shardSizes.put( pathName, shardSize.clone() );
+	}
+
+	@Override
+	public < T > void writeBlock( final String pathName, final DatasetAttributes datasetAttributes, final DataBlock< T > dataBlock )
+	{
+		writeBlock( pathName, datasetAttributes, dataBlock, null );
+	}
+
+	/**
+	 * @param pathName - the dataset
+	 * @param datasetAttributes - the attributes of the dataset
+	 * @param dataBlock - the block
+	 * @param onWritten - called with the grid position once the block is on disk, i.e. once its shard is written (can be null)
+	 * @param <T> - the type of the block data
+	 */
+	public < T > void writeBlock( final String pathName, final DatasetAttributes datasetAttributes, final DataBlock< T > dataBlock, final Consumer< long[] > onWritten )
+	{
+		final int[] shardSize = N5ShardedFSReader.shardSize( this, shardSizes, pathName );
+
+		if ( shardSize == null )
+		{
+			super.writeBlock( pathName, datasetAttributes, dataBlock );
+
+			if ( onWritten != null )
+				onWritten.accept( dataBlock.getGridPosition() );
+
+			return;
+		}
+
+		// compress outside of any lock
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try
+		{
+			DefaultBlockWriter.writeBlock( out, datasetAttributes, dataBlock );
+		}
+		catch ( final IOException e )
+		{
+			throw new N5Exception.N5IOException( "Failed to serialize block " + Arrays.toString( dataBlock.getGridPosition() ), e );
+		}
+
+		writeEncodedBlock( pathName, datasetAttributes, dataBlock.getGridPosition(), out.toByteArray(), onWritten );
+	}
+
+	/**
+	 * Writes a block that was already serialized with {@link DefaultBlockWriter}, e.g. by a separate
+	 * compression stage. Blocks of datasets that are not sharded are written to their usual N5 block file.
+	 *
+	 * @param pathName - the dataset
+	 * @param datasetAttributes - the attributes of the dataset
+	 * @param gridPosition - the position of the block
+	 * @param data - the serialized block
+	 * @param onWritten - called with the grid position once the block is on disk, i.e. once its shard is written (can be null)
+	 */
+	public void writeEncodedBlock( final String pathName, final DatasetAttributes datasetAttributes, final long[] gridPosition, final byte[] data, final Consumer< long[] > onWritten )
+	{
+		final int[] shardSize = N5ShardedFSReader.shardSize( this, shardSizes, pathName );
+
+		if ( shardSize == null )
+		{
+			BlockWritePipeline.writeBlockFile( basePath, pathName, gridPosition, data );
+
+			if ( onWritten != null )
+				onWritten.accept( gridPosition );
+
+			return;
+		}
+
+		put( pathName, datasetAttributes, shardSize, gridPosition, data, onWritten );
+	}
+
+	/**
+	 * Records that a block is empty (all zero) and therefore not written, so its shard can be completed. A block
+	 * that exists at this position in the shard file is removed.
+	 *
+	 * @param pathName - the dataset
+	 * @param datasetAttributes - the attributes of the dataset
+	 * @param gridPosition - the position of the block
+	 * @param onWritten - called with the grid position once the shard is written (can be null)
+	 */
+	public void markEmpty( final String pathName, final DatasetAttributes datasetAttributes, final long[] gridPosition, final Consumer< long[] > onWritten )
+	{
+		final int[] shardSize = N5ShardedFSReader.shardSize( this, shardSizes, pathName );
+
+		if ( shardSize == null )
+		{
+			if ( onWritten != null )
+				onWritten.accept( gridPosition );
+
+			return;
+		}
+
+		put( pathName, datasetAttributes, shardSize, gridPosition, EMPTY, onWritten );
+	}
+
+	/**
+	 * Records that a block is already on disk and not written again (e.g. when resuming an export), so its
+	 * shard can be completed. The block is kept when the shard is written.
+	 *
+	 * @param pathName - the dataset
+	 * @param datasetAttributes - the attributes of the dataset
+	 * @param gridPosition - the position of the block
+	 */
+	public void markUnchanged( final String pathName, final DatasetAttributes datasetAttributes, final long[] gridPosition )
+	{
+		final int[] shardSize = N5ShardedFSReader.shardSize( this, shardSizes, pathName );
+
+		if ( shardSize != null )
+			put( pathName, datasetAttributes, shardSize, gridPosition, null, null );
+	}
+
+	/**
+	 * Adds a block to its shard and writes the shard if all its blocks are accounted for.
+	 *
+	 * @param data - the serialized block, EMPTY if it is empty, null if it is unchanged
+	 */
+	protected void put(
+			final String pathName,
+			final DatasetAttributes datasetAttributes,
+			final int[] shardSize,
+			final long[] gridPosition,
+			final byte[] data,
+			final Consumer< long[] > onWritten )
+	{
+		final long[] shardPosition = N5ShardedFSReader.shardPosition( gridPosition, shardSize );
+		final String key = pathName + Arrays.toString( shardPosition );
+		final int index = N5ShardedFSReader.indexInShard( gridPosition, shardSize );
+
+		while ( true )
+		{
+			final Shard shard = openShards.computeIfAbsent( key, k ->
+					new Shard( pathName, shardPosition, shardSize, numBlocksInShard( datasetAttributes, shardPosition, shardSize ) ) );
+
+			synchronized ( shard )
+			{
+				// the shard was written by another thread in the meantime, get a new one
+				if ( shard.written )
+					continue;
+
+				shard.put( index, data, gridPosition, onWritten );
+
+				if ( shard.isComplete() )
+				{
+					writeShard( shard );
+					openShards.remove( key );
+				}
+
+				return;
+			}
+		}
+	}
+
+	@Override
+	public DataBlock< ? > readBlock( final String pathName, final DatasetAttributes datasetAttributes, final long... gridPosition )
+	{
+		final int[] shardSize = N5ShardedFSReader.shardSize( this, shardSizes, pathName );
+
+		if ( shardSize == null )
+			return super.readBlock( pathName, datasetAttributes, gridPosition );
+
+		// the block might not be written yet
+		final Shard shard = openShards.get( pathName + Arrays.toString( N5ShardedFSReader.shardPosition( gridPosition, shardSize ) ) );
+
+		if ( shard != null )
+		{
+			synchronized ( shard )
+			{
+				final byte[] data = shard.blocks[ N5ShardedFSReader.indexInShard( gridPosition, shardSize ) ];
+
+				// removed
+				if ( data == EMPTY )
+					return null;
+
+				if ( data != null )
+				{
+					try
+					{
+						return DefaultBlockReader.readBlock( new ByteArrayInputStream( data ), datasetAttributes, gridPosition );
+					}
+					catch ( final IOException e )
+					{
+						throw new N5Exception.N5IOException( "Failed to read block " + Arrays.toString( gridPosition ), e );
+					}
+				}
+			}
+		}
+
+		return N5ShardedFSReader.readShardedBlock( basePath, pathName, datasetAttributes, shardSize, gridPosition );
+	}
+
+	/**
+	 * Writes all shards that are still in memory (e.g. because not all their blocks were reported).
+	 */
+	public void flush()
+	{
+		final ArrayList< String > keys = new ArrayList<>( openShards.keySet() );
+
+		for ( final String key : keys )
+		{
+			final Shard shard = openShards.get( key );
+
+			if ( shard == null )
+				continue;
+
+			synchronized ( shard )
+			{
+				if ( !shard.written )
+				{
+					writeShard( shard );
+					openShards.remove( key );
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		flush();
+		super.close();
+	}
+
+	/**
+	 * Writes the shard unless all its blocks are unchanged, then calls onWritten for its blocks.
+	 */
+	protected void writeShard( final Shard shard )
+	{
+		boolean changed = false;
+
+		for ( final byte[] block : shard.blocks )
+			changed |= block != null;
+
+		// if all blocks are unchanged, the shard file stays as it is
+		if ( changed )
+			writeShardFile( shard );
+
+		shard.written = true;
+
+		// only now the blocks are on disk
+		for ( int i = 0; i < shard.onWritten.size(); ++i )
+			shard.onWritten.get( i ).accept( shard.gridPositions.get( i ) );
+	}
+
+	/**
+	 * Writes the shard to a temporary file and moves it in place, blocks that exist in the current
+	 * shard file but not in memory are kept.
+	 */
+	protected void writeShardFile( final Shard shard )
+	{
+		final Path path = N5ShardedFSReader.shardPath( basePath, shard.pathName, shard.shardPosition );
+		final int numBlocks = shard.blocks.length;
+
+		try
+		{
+			Files.createDirectories( path.getParent() );
+
+			final long[] existing = N5ShardedFSReader.readShardIndex( path, numBlocks );
+
+			if ( existing != null )
+			{
+				try ( final RandomAccessFile file = new RandomAccessFile( path.toFile(), "r" ) )
+				{
+					for ( int i = 0; i < numBlocks; ++i )
+					{
+						if ( shard.blocks[ i ] == null && existing[ 2 * i ] != -1 )
+						{
+							shard.blocks[ i ] = new byte[ (int)existing[ 2 * i + 1 ] ];
+							file.seek( existing[ 2 * i ] );
+							file.readFully( shard.blocks[ i ] );
+						}
+					}
+				}
+			}
+
+			final ByteBuffer index = ByteBuffer.allocate( 16 * numBlocks ).order( ByteOrder.LITTLE_ENDIAN );
+			final Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+
+			try ( final OutputStream out = Files.newOutputStream( tmp ) )
+			{
+				long offset = 0;
+
+				for ( final byte[] block : shard.blocks )
+				{
+					if ( block == null || block == EMPTY )
+					{
+						index.putLong( -1 );
+						index.putLong( -1 );
+					}
+					else
+					{
+						out.write( block );
+						index.putLong( offset );
+						index.putLong( block.length );
+						offset += block.length;
+					}
+				}
+
+				out.write( index.array() );
+			}
+
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to write shard '" + path + "': " + e );
+			throw new N5Exception.N5IOException( "Failed to write shard '" + path + "'", e );
+		}
+	}
+
+	/**
+	 * @return how many blocks of the dataset fall into this shard (less at the border of the dataset)
+	 */
+	protected static int numBlocksInShard( final DatasetAttributes attributes, final long[] shardPosition, final int[] shardSize )
+	{
+		int numBlocks = 1;
+
+		for ( int d = 0; d < shardSize.length; ++d )
+		{
+			final long numGridBlocks = ( attributes.getDimensions()[ d ] + attributes.getBlockSize()[ d ] - 1 ) / attributes.getBlockSize()[ d ];
+			numBlocks *= (int)Math.min( shardSize[ d ], numGridBlocks - shardPosition[ d ] * shardSize[ d ] );
+		}
+
+		return numBlocks;
+	}
+
+	protected static class Shard
+	{
+		final String pathName;
+		final long[] shardPosition;
+		final byte[][] blocks;
+		final boolean[] received;
+		final int numBlocksInShard;
+		final ArrayList< long[] > gridPositions = new ArrayList<>();
+		final ArrayList< Consumer< long[] > > onWritten = new ArrayList<>();
+		int numBlocks = 0;
+		boolean written = false;
+
+		public Shard( final String pathName, final long[] shardPosition, final int[] shardSize, final int numBlocksInShard )
+		{
+			this.pathName = pathName;
+			this.shardPosition = shardPosition;
+			this.blocks = new byte[ N5ShardedFSReader.numBlocksPerShard( shardSize ) ][];
+			this.received = new boolean[ blocks.length ];
+			this.numBlocksInShard = numBlocksInShard;
+		}
+
+		/**
+		 * @param data - the serialized block, EMPTY if it is empty, null if it is unchanged
+		 */
+		public void put( final int index, final byte[] data, final long[] gridPosition, final Consumer< long[] > onWritten )
+		{
+			if ( !received[ index ] )
+			{
+				received[ index ] = true;
+				++numBlocks;
+			}
+
+			if ( data != null )
+				blocks[ index ] = data;
+
+			if ( onWritten != null )
+			{
+				gridPositions.add( gridPosition );
+				this.onWritten.add( onWritten );
+			}
+		}
+
+		public boolean isComplete() { return numBlocks == numBlocksInShard; }
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.sequence.BasicViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.data.sequence.VoxelDimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Pair;
+import net.imglib2.util.ValuePair;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+
+/**
+ * Writes the OME-Zarr (NGFF 0.4) multiscales metadata for a fused image and its downsampled levels, so
+ * the levels written by {@link ExportN5API} can be opened directly by OME-Zarr viewers with the correct
+ * voxel size and position.
+ *
+ * @author preibisch
+ */
+public class OMEZarrTools
+{
+	public static final String version = "0.4";
+	public static final String multiscalesKey = "multiscales";
+
+	/**
+	 * Computes the transformation from the pixels of a fused image (zero-min) to the global coordinate
+	 * system. The bounding box is the one the image was fused with, i.e. it is already scaled for anisotropy
+	 * and downsampling (see Image_Fusion), a pixel p maps to ( bb.min + p ) * ds in x/y and additionally
+	 * times the anisotropy factor in z.
+	 *
+	 * @param scaledBoundingBox - the bounding box the image was fused with (scaled for anisotropy and downsampling)
+	 * @param downsampling - the downsampling of the fusion (NaN or 1 if none)
+	 * @param anisotropy - the anisotropy factor of the fusion (NaN or 1 if none)
+	 * @return the transformation
+	 */
+	public static AffineTransform3D fusedToGlobal( final Interval scaledBoundingBox, final double downsampling, final double anisotropy )
+	{
+		final double ds = Double.isNaN( downsampling ) ? 1.0 : downsampling;
+		final double aniso = Double.isNaN( anisotropy ) ? 1.0 : anisotropy;
+		final double[] scale = new double[] { ds, ds, ds * aniso };
+
+		final AffineTransform3D t = new AffineTransform3D();
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			t.set( scale[ d ], d, d );
+			t.set( scaledBoundingBox.min( d ) * scale[ d ], d, 3 );
+		}
+
+		return t;
+	}
+
+	/**
+	 * The global coordinate system is calibrated to the smallest voxel size of the acquisition (see
+	 * DatasetCreationUtils.minResolution), thus one global unit is this voxel size.
+	 *
+	 * @param spimData - the project
+	 * @param views - the fused views
+	 * @return the size of one global unit and the OME-Zarr unit name (null if unknown, e.g. pixels)
+	 */
+	public static Pair< Double, String > globalUnit( final SpimData spimData, final Collection< ? extends ViewId > views )
+	{
+		double minResolution = Double.MAX_VALUE;
+		String unit = null;
+
+		for ( final ViewId viewId : views )
+		{
+			final BasicViewDescription< ? > vd = spimData.getSequenceDescription().getViewDescriptions().get( viewId );
+
+			if ( vd == null || !vd.isPresent() || !vd.getViewSetup().hasVoxelSize() )
+				continue;
+
+			final VoxelDimensions voxelSize = vd.getViewSetup().getVoxelSize();
+
+			for ( int d = 0; d < voxelSize.numDimensions(); ++d )
+				minResolution = Math.min( minResolution, voxelSize.dimension( d ) );
+
+			if ( unit == null )
+				unit = unitName( voxelSize.unit() );
+		}
+
+		if ( minResolution == Double.MAX_VALUE || unit == null )
+			return new ValuePair<>( 1.0, null );
+		else
+			return new ValuePair<>( minResolution, unit );
+	}
+
+	/**
+	 * @param unit - the unit of the voxel size
+	 * @return the corresponding UDUNITS-2 name required by OME-Zarr or null if unknown
+	 */
+	public static String unitName( final String unit )
+	{
+		if ( unit == null )
+			return null;
+
+		switch ( unit.trim().toLowerCase() )
+		{
+			case "um": case "µm": case "μm": case "micron": case "microns": case "micrometer": case "micrometers":
+				return "micrometer";
+			case "nm": case "nanometer": case "nanometers":
+				return "nanometer";
+			case "mm": case "millimeter": case "millimeters":
+				return "millimeter";
+			case "cm": case "centimeter": case "centimeters":
+				return "centimeter";
+			case "m": case "meter": case "meters":
+				return "meter";
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Writes the multiscales metadata into the group that contains the levels. The axes are reversed
+	 * (z, y, x) since ZARR arrays are stored in C-order. The levels are created by half-pixel averaging
+	 * (see PyramidBlockWriter), thus a pixel of a level with downsampling f is centered at (f-1)/2 in s0.
+	 *
+	 * @param n5 - the writer (ZARR)
+	 * @param group - the group that contains the levels
+	 * @param name - the name of the image
+	 * @param levels - the paths of the levels relative to the group (s0, s1, ...)
+	 * @param downsampling - the absolute downsampling factors of all levels (null if only s0)
+	 * @param fusedToGlobal - maps the pixels of s0 to global coordinates
+	 * @param unitSize - the size of one global unit in the unit
+	 * @param unit - the unit (null if unknown)
+	 */
+	public static void writeMultiscales(
+			final N5Writer n5,
+			final String group,
+			final String name,
+			final String[] levels,
+			final int[][] downsampling,
+			final AffineTransform3D fusedToGlobal,
+			final double unitSize,
+			final String unit )
+	{
+		final int n = 3;
+		final String[] axisNames = new String[] { "x", "y", "z" };
+
+		final List< Map< String, Object > > axes = new ArrayList<>();
+
+		for ( int d = n - 1; d >= 0; --d )
+		{
+			final Map< String, Object > axis = new LinkedHashMap<>();
+			axis.put( "name", axisNames[ d ] );
+			axis.put( "type", "space" );
+
+			if ( unit != null )
+				axis.put( "unit", unit );
+
+			axes.add( axis );
+		}
+
+		final List< Map< String, Object > > datasets = new ArrayList<>();
+
+		for ( int level = 0; level < levels.length; ++level )
+		{
+			final double[] scale = new double[ n ];
+			final double[] translation = new double[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final int f = downsampling == null ? 1 : downsampling[ level ][ d ];
+				final double s0Scale = fusedToGlobal.get( d, d ) * unitSize;
+
+				scale[ n - 1 - d ] = s0Scale * f;
+				translation[ n - 1 - d ] = fusedToGlobal.get( d, 3 ) * unitSize + s0Scale * ( f - 1 ) / 2.0;
+			}
+
+			final Map< String, Object > scaleTransform = new LinkedHashMap<>();
+			scaleTransform.put( "type", "scale" );
+			scaleTransform.put( "scale", scale );
+
+			final Map< String, Object > translationTransform = new LinkedHashMap<>();
+			translationTransform.put( "type", "translation" );
+			translationTransform.put( "translation", translation );
+
+			final List< Map< String, Object > > coordinateTransformations = new ArrayList<>();
+			coordinateTransformations.add( scaleTransform );
+			coordinateTransformations.add( translationTransform );
+
+			final Map< String, Object > dataset = new LinkedHashMap<>();
+			dataset.put( "path", levels[ level ] );
+			dataset.put( "coordinateTransformations", coordinateTransformations );
+
+			datasets.add( dataset );
+		}
+
+		final Map< String, Object > metadata = new LinkedHashMap<>();
+		metadata.put( "description", "fused with multiview-reconstruction, levels downsampled by half-pixel 2x averaging" );
+
+		final Map< String, Object > multiscale = new LinkedHashMap<>();
+		multiscale.put( "version", version );
+		multiscale.put( "name", name );
+		multiscale.put( "axes", axes );
+		multiscale.put( "datasets", datasets );
+		multiscale.put( "metadata", metadata );
+
+		final List< Map< String, Object > > multiscales = new ArrayList<>();
+		multiscales.add( multiscale );
+
+		n5.setAttribute( group, multiscalesKey, multiscales );
+	}
+
+	public static void main( String[] args )
+	{
+		// scale the bounding box like Image_Fusion does, s0 must start at the min of the original bounding box
+		final Interval bb = new FinalInterval( new long[] { -200, 100, 40 }, new long[] { 1000, 900, 400 } );
+		final double downsampling = 2.0;
+		final double anisotropy = 2.0;
+
+		final Interval anisoBB = FusionTools.createAnisotropicBoundingBox( bb, anisotropy ).getA();
+		final Interval scaledBB = FusionTools.createDownsampledBoundingBox( anisoBB, downsampling ).getA();
+
+		final AffineTransform3D t = fusedToGlobal( scaledBB, downsampling, anisotropy );
+
+		for ( int d = 0; d < 3; ++d )
+			if ( t.get( d, 3 ) != bb.min( d ) )
+				throw new RuntimeException( "s0 translation in dim " + d + " is " + t.get( d, 3 ) + ", but the bounding box starts at " + bb.min( d ) );
+
+		System.out.println( "s0 starts at the bounding box min: " + t );
+	}
+}
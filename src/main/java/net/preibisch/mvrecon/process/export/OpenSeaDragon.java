@@ -32,9 +32,7 @@ import java.util.List;
 
 import bdv.util.ConstantRandomAccessible;
 import fiji.util.gui.GenericDialogPlus;
-import gov.nist.isg.archiver.DirectoryArchiver;
 import gov.nist.isg.pyramidio.PartialImageReader;
-import gov.nist.isg.pyramidio.ScalablePyramidBuilder;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import net.imglib2.Cursor;
@@ -121,14 +119,12 @@ public class OpenSeaDragon implements ImgExport
 		final RandomAccessibleInterval<ARGBType> rgb =
 				Converters.mergeARGB( Views.stack( virtualR, virtualG, virtualB ) , ColorChannelOrder.RGB );
 
-		final OpenSeaDragonImgLib2 osd = new OpenSeaDragonImgLib2( rgb );
-
 		long time = System.currentTimeMillis();
 
 		try
 		{
-			ScalablePyramidBuilder spb = new ScalablePyramidBuilder(tileSize, tileOverlap, exportFormats[ format ], "dzi");
-			spb.buildPyramid(osd, this.dataset, new DirectoryArchiver( this.path ), Threads.numThreads() );
+			// renders and encodes tiles in parallel, all levels are built from the tiles in memory
+			new DeepZoomWriter( rgb, this.path, this.dataset, exportFormats[ format ], tileSize, tileOverlap, Threads.numThreads() ).write();
 		}
 		catch (IOException e)
 		{
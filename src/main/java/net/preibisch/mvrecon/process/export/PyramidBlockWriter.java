@@ -0,0 +1,589 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.process.downsampling.lazy.LazyHalfPixelDownsample2x;
+
+/**
+ * Writes a full-resolution compute block (s0) and builds the downsampled levels (s1 ... sN) of the
+ * multiresolution pyramid from it in memory, so they are written in the same pass as s0 instead of
+ * reading s0 back from disk. It uses the same half-pixel 2x averaging as {@link LazyHalfPixelDownsample2x}
+ * (including rounding to the output type after every dimension), thus the result is identical.
+ *
+ * Each compute block only covers part of a downsampled block, so level blocks are buffered until all
+ * their pixels arrived. If the buffer is full, a level block is given up and has to be computed in a
+ * second pass from the previous level on disk, see {@link #isWritten(int, long[])}. Levels above
+ * {@link #maxLevel()} (compute blocks not aligned to the downsampling) are always written in the second pass.
+ *
+ * @author preibisch
+ */
+public class PyramidBlockWriter< T extends RealType< T > & NativeType< T > >
+{
+	public static double defaultMemoryFraction = 0.1;
+
+	final N5Writer n5;
+	final String[] datasets;
+	final long[][] dimensions;
+	final int[][] relativeDownsampling;
+	final int[] blockSize;
+	final int maxLevel;
+	final T type;
+	final DataType dataType;
+	final long maxBufferedPixels;
+	final BlockManifest[] manifests;
+
+	final ArrayList< HashMap< Long, PartialBlock > > buffered = new ArrayList<>();
+	final ArrayList< Set< Long > > dropped = new ArrayList<>();
+	final ArrayList< Set< Long > > written = new ArrayList<>();
+
+	long bufferedPixels = 0;
+	BlockWritePipeline pipeline = null;
+
+	/**
+	 * @param n5 - the writer
+	 * @param datasets - the datasets of all levels (s0 ... sN), must exist
+	 * @param dimensions - the dimensions of all levels
+	 * @param downsampling - the absolute downsampling factors of all levels
+	 * @param blockSize - the blocksize of the datasets
+	 * @param computeBlockSize - the size of the compute blocks that will be passed to {@link #writeBlock(RandomAccessibleInterval, long[], long[])}
+	 * @param type - the pixel type
+	 * @param dataType - the N5 data type (UINT8, UINT16 or FLOAT32)
+	 * @param manifests - records the written blocks of every level (can be null)
+	 */
+	public PyramidBlockWriter(
+			final N5Writer n5,
+			final String[] datasets,
+			final long[][] dimensions,
+			final int[][] downsampling,
+			final int[] blockSize,
+			final int[] computeBlockSize,
+			final T type,
+			final DataType dataType,
+			final BlockManifest[] manifests )
+	{
+		this.n5 = n5;
+		this.datasets = datasets;
+		this.dimensions = dimensions;
+		this.blockSize = blockSize;
+		this.maxLevel = maxLevel( downsampling, computeBlockSize );
+		this.type = type;
+		this.dataType = dataType;
+		this.manifests = manifests;
+		this.maxBufferedPixels = Math.round( Runtime.getRuntime().maxMemory() * defaultMemoryFraction / 4 );
+
+		this.relativeDownsampling = new int[ downsampling.length ][ blockSize.length ];
+
+		for ( int level = 1; level < downsampling.length; ++level )
+			for ( int d = 0; d < blockSize.length; ++d )
+				relativeDownsampling[ level ][ d ] = downsampling[ level ][ d ] / downsampling[ level - 1 ][ d ];
+
+		for ( int level = 0; level < downsampling.length; ++level )
+		{
+			buffered.add( new HashMap<>() );
+			dropped.add( ConcurrentHashMap.newKeySet() );
+			written.add( ConcurrentHashMap.newKeySet() );
+		}
+	}
+
+	/**
+	 * @param pipeline - compresses and writes the blocks of all levels in separate threads, the manifests are
+	 * updated once a block is written (if null, blocks are written by the calling thread)
+	 */
+	public void setPipeline( final BlockWritePipeline pipeline ) { this.pipeline = pipeline; }
+
+	/**
+	 * @return the highest level that is built in memory, 0 if none
+	 */
+	public int maxLevel() { return maxLevel; }
+
+	/**
+	 * @param downsampling - the absolute downsampling factors of all levels
+	 * @param computeBlockSize - the size of the compute blocks
+	 * @return the highest level that can be built in memory, i.e. every level up to it only downsamples by 1 or 2
+	 * relative to the previous one and the compute blocks are aligned to its downsampling factors
+	 */
+	public static int maxLevel( final int[][] downsampling, final int[] computeBlockSize )
+	{
+		int maxLevel = 0;
+
+		for ( int level = 1; level < downsampling.length; ++level )
+		{
+			for ( int d = 0; d < computeBlockSize.length; ++d )
+			{
+				final int ds = downsampling[ level ][ d ] / downsampling[ level - 1 ][ d ];
+
+				if ( ( ds != 1 && ds != 2 ) || computeBlockSize[ d ] % downsampling[ level ][ d ] != 0 )
+					return maxLevel;
+			}
+
+			maxLevel = level;
+		}
+
+		return maxLevel;
+	}
+
+	/**
+	 * Sorts the compute blocks along a Z-order curve, so that the compute blocks contributing to the same
+	 * downsampled block are processed right after each other and level blocks do not stay buffered for long.
+	 *
+	 * @param grid - the compute blocks as created by {@link util.Grid#create(long[], int[], int[])}
+	 * @param computeBlockSize - the size of the compute blocks
+	 * @return a sorted copy
+	 */
+	public static List< long[][] > sortForLocality( final List< long[][] > grid, final int[] computeBlockSize )
+	{
+		final ArrayList< long[][] > sorted = new ArrayList<>( grid );
+
+		Collections.sort( sorted, ( a, b ) -> Long.compare( zOrder( a[ 0 ], computeBlockSize ), zOrder( b[ 0 ], computeBlockSize ) ) );
+
+		return sorted;
+	}
+
+	protected static long zOrder( final long[] offset, final int[] computeBlockSize )
+	{
+		final int n = offset.length;
+		final int bits = 63 / n;
+
+		long code = 0;
+
+		for ( int b = 0; b < bits; ++b )
+			for ( int d = 0; d < n; ++d )
+				code |= ( ( ( offset[ d ] / computeBlockSize[ d ] ) >> b ) & 1L ) << ( b * n + d );
+
+		return code;
+	}
+
+	/**
+	 * @param level - the level
+	 * @param gridPosition - the position of the block in the grid of this level
+	 * @return true if the block was already written (or was empty) when building the pyramid in memory
+	 */
+	public boolean isWritten( final int level, final long[] gridPosition )
+	{
+		return written.get( level ).contains( index( level, gridPosition ) );
+	}
+
+	/**
+	 * Writes a full-resolution compute block and adds it to all levels up to {@link #maxLevel()}. The
+	 * manifest of s0 is updated once the block is written.
+	 *
+	 * @param source - the compute block (zero-min)
+	 * @param offset - the offset of the compute block in s0
+	 * @param gridPosition - the position of the compute block in the grid of s0 (in blocks)
+	 */
+	public void writeBlock( final RandomAccessibleInterval< T > source, final long[] offset, final long[] gridPosition )
+	{
+		final int n = offset.length;
+		final int[] size = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			size[ d ] = (int)source.dimension( d );
+
+		final ArrayImg< T, ? > copy = new ArrayImgFactory<>( type ).create( source );
+		float[] data = new float[ (int)copy.size() ];
+
+		final Cursor< T > in = Views.flatIterable( source ).cursor();
+		final Cursor< T > out = copy.cursor();
+
+		for ( int i = 0; i < data.length; ++i )
+		{
+			final T v = in.next();
+			out.next().set( v );
+			data[ i ] = v.getRealFloat();
+		}
+
+		if ( pipeline != null )
+		{
+			pipeline.submit( copy, datasets[ 0 ], gridPosition, manifests == null ? null : g -> manifests[ 0 ].setDone( g ) );
+		}
+		else
+		{
+			N5Utils.saveBlock( copy, n5, datasets[ 0 ], gridPosition );
+
+			if ( manifests != null )
+				manifests[ 0 ].setDone( offset, Util.int2long( size ) );
+		}
+
+		addToLevels( data, offset, size );
+	}
+
+	/**
+	 * Adds a full-resolution compute block that is empty (all zero) and therefore not written to all levels
+	 * up to {@link #maxLevel()}, so the level blocks it contributes to can be completed.
+	 *
+	 * @param offset - the offset of the compute block in s0
+	 * @param dimensions - the size of the compute block
+	 */
+	public void emptyBlock( final long[] offset, final long[] dimensions )
+	{
+		if ( maxLevel > 0 )
+			addToLevels( new float[ (int)Intervals.numElements( dimensions ) ], offset, Util.long2int( dimensions ) );
+	}
+
+	protected void addToLevels( float[] data, final long[] offset, final int[] size )
+	{
+		final int n = offset.length;
+		final long[] levelOffset = offset.clone();
+		final boolean round = dataType != DataType.FLOAT32;
+
+		for ( int level = 1; level <= maxLevel; ++level )
+		{
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( relativeDownsampling[ level ][ d ] == 2 )
+				{
+					data = downsample( data, size, d, round );
+					levelOffset[ d ] /= 2;
+				}
+			}
+
+			if ( data.length == 0 )
+				return;
+
+			contribute( level, data, levelOffset, size );
+		}
+	}
+
+	/**
+	 * Prints how many level blocks were written in memory and gives up the ones that are still
+	 * buffered (which only happens if not all compute blocks were passed).
+	 */
+	public synchronized void finish()
+	{
+		for ( int level = 1; level <= maxLevel; ++level )
+		{
+			for ( final Long key : buffered.get( level ).keySet() )
+				dropped.get( level ).add( key );
+
+			buffered.get( level ).clear();
+
+			IOFunctions.println( "s" + level + ": " + written.get( level ).size() + " blocks built in memory, " +
+					dropped.get( level ).size() + " blocks left for the second pass." );
+		}
+
+		bufferedPixels = 0;
+	}
+
+	/**
+	 * Downsamples by 2 in one dimension, averaging the pixels 2p and 2p+1 (same as {@link LazyHalfPixelDownsample2x}).
+	 *
+	 * @param in - the input, flat
+	 * @param size - the size of the input, will be updated to the size of the output
+	 * @param d - the dimension
+	 * @param round - round to integers (for integer output types)
+	 * @return the output, flat
+	 */
+	protected static float[] downsample( final float[] in, final int[] size, final int d, final boolean round )
+	{
+		int inner = 1;
+		for ( int e = 0; e < d; ++e )
+			inner *= size[ e ];
+
+		int outer = 1;
+		for ( int e = d + 1; e < size.length; ++e )
+			outer *= size[ e ];
+
+		final int sizeIn = size[ d ];
+		final int sizeOut = size[ d ] / 2;
+		final float[] out = new float[ inner * sizeOut * outer ];
+
+		for ( int o = 0; o < outer; ++o )
+			for ( int p = 0; p < sizeOut; ++p )
+			{
+				final int i0 = ( o * sizeIn + 2 * p ) * inner;
+				final int i1 = i0 + inner;
+				final int j = ( o * sizeOut + p ) * inner;
+
+				for ( int i = 0; i < inner; ++i )
+				{
+					final double v = ( in[ i0 + i ] + (double)in[ i1 + i ] ) / 2.0;
+					out[ j + i ] = round ? Util.round( v ) : (float)v;
+				}
+			}
+
+		size[ d ] = sizeOut;
+
+		return out;
+	}
+
+	/**
+	 * Copies the downsampled data of a compute block into all level blocks it overlaps and writes
+	 * the ones that are complete.
+	 */
+	protected void contribute( final int level, final float[] data, final long[] offset, final int[] size )
+	{
+		final int n = offset.length;
+		final long[] dim = dimensions[ level ];
+
+		final long[] gridMin = new long[ n ];
+		final long[] gridMax = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			gridMin[ d ] = offset[ d ] / blockSize[ d ];
+			gridMax[ d ] = ( offset[ d ] + size[ d ] - 1 ) / blockSize[ d ];
+		}
+
+		final long[] g = gridMin.clone();
+
+		while ( true )
+		{
+			final long[] blockMin = new long[ n ];
+			final int[] blockDim = new int[ n ];
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			boolean complete = true;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				blockMin[ d ] = g[ d ] * blockSize[ d ];
+				blockDim[ d ] = (int)Math.min( blockSize[ d ], dim[ d ] - blockMin[ d ] );
+				min[ d ] = Math.max( offset[ d ], blockMin[ d ] );
+				max[ d ] = Math.min( offset[ d ] + size[ d ], blockMin[ d ] + blockDim[ d ] ) - 1;
+
+				if ( min[ d ] != blockMin[ d ] || max[ d ] != blockMin[ d ] + blockDim[ d ] - 1 )
+					complete = false;
+			}
+
+			final Long key = index( level, g );
+
+			if ( complete )
+			{
+				// the compute block covers the entire level block, no need to buffer it
+				final float[] blockData = new float[ numElements( blockDim ) ];
+				copy( data, size, offset, blockData, blockDim, blockMin, min, max );
+				write( level, g.clone(), key, blockData, blockDim );
+			}
+			else
+			{
+				PartialBlock done = null;
+
+				synchronized ( this )
+				{
+					if ( !dropped.get( level ).contains( key ) )
+					{
+						PartialBlock block = buffered.get( level ).get( key );
+
+						if ( block == null && bufferedPixels + numElements( blockDim ) > maxBufferedPixels )
+						{
+							dropped.get( level ).add( key );
+						}
+						else
+						{
+							if ( block == null )
+							{
+								block = new PartialBlock( blockDim );
+								buffered.get( level ).put( key, block );
+								bufferedPixels += block.data.length;
+							}
+
+							copy( data, size, offset, block.data, blockDim, blockMin, min, max );
+
+							long numPixels = 1;
+							for ( int d = 0; d < n; ++d )
+								numPixels *= max[ d ] - min[ d ] + 1;
+
+							block.missing -= numPixels;
+
+							if ( block.missing == 0 )
+							{
+								buffered.get( level ).remove( key );
+								bufferedPixels -= block.data.length;
+								done = block;
+							}
+						}
+					}
+				}
+
+				if ( done != null )
+					write( level, g.clone(), key, done.data, done.size );
+			}
+
+			// next grid position
+			int d = 0;
+			while ( d < n && ++g[ d ] > gridMax[ d ] )
+			{
+				g[ d ] = gridMin[ d ];
+				++d;
+			}
+
+			if ( d == n )
+				break;
+		}
+	}
+
+	protected void write( final int level, final long[] gridPosition, final Long key, final float[] data, final int[] size )
+	{
+		boolean empty = true;
+
+		for ( final float v : data )
+			if ( v != 0 )
+			{
+				empty = false;
+				break;
+			}
+
+		if ( empty && pipeline != null )
+		{
+			pipeline.skip( datasets[ level ], Util.int2long( size ), gridPosition, true, manifests == null ? null : g -> manifests[ level ].setDone( g ) );
+			written.get( level ).add( key );
+			return;
+		}
+
+		// same as ExportN5API.saveNonEmptyBlock(), which is used for the second pass
+		if ( !empty )
+		{
+			final long[] dim = Util.int2long( size );
+			final RandomAccessibleInterval< ? > img;
+
+			if ( dataType == DataType.UINT16 )
+			{
+				final short[] array = new short[ data.length ];
+				for ( int i = 0; i < data.length; ++i )
+					array[ i ] = (short)(int)data[ i ];
+				img = ArrayImgs.unsignedShorts( array, dim );
+			}
+			else if ( dataType == DataType.UINT8 )
+			{
+				final byte[] array = new byte[ data.length ];
+				for ( int i = 0; i < data.length; ++i )
+					array[ i ] = (byte)(int)data[ i ];
+				img = ArrayImgs.unsignedBytes( array, dim );
+			}
+			else if ( dataType == DataType.FLOAT32 )
+			{
+				img = ArrayImgs.floats( data, dim );
+			}
+			else
+			{
+				throw new RuntimeException( "Unsupported pixel type: " + dataType );
+			}
+
+			if ( pipeline != null )
+			{
+				pipeline.submit( (RandomAccessibleInterval)img, datasets[ level ], gridPosition, manifests == null ? null : g -> manifests[ level ].setDone( g ) );
+				written.get( level ).add( key );
+				return;
+			}
+
+			N5Utils.saveBlock( (RandomAccessibleInterval)img, n5, datasets[ level ], gridPosition );
+		}
+
+		written.get( level ).add( key );
+
+		if ( manifests != null )
+			manifests[ level ].setDone( gridPosition );
+	}
+
+	/**
+	 * Copies the interval [min, max] (global coordinates) from one flat array to another.
+	 */
+	protected static void copy(
+			final float[] src, final int[] srcSize, final long[] srcOffset,
+			final float[] dst, final int[] dstSize, final long[] dstOffset,
+			final long[] min, final long[] max )
+	{
+		final int n = min.length;
+		final int length = (int)( max[ 0 ] - min[ 0 ] + 1 );
+		final long[] pos = min.clone();
+
+		while ( true )
+		{
+			int srcIndex = 0, dstIndex = 0;
+
+			for ( int d = n - 1; d >= 0; --d )
+			{
+				srcIndex = srcIndex * srcSize[ d ] + (int)( pos[ d ] - srcOffset[ d ] );
+				dstIndex = dstIndex * dstSize[ d ] + (int)( pos[ d ] - dstOffset[ d ] );
+			}
+
+			System.arraycopy( src, srcIndex, dst, dstIndex, length );
+
+			int d = 1;
+			while ( d < n && ++pos[ d ] > max[ d ] )
+			{
+				pos[ d ] = min[ d ];
+				++d;
+			}
+
+			if ( d >= n )
+				break;
+		}
+	}
+
+	protected long index( final int level, final long[] gridPosition )
+	{
+		long index = 0;
+
+		for ( int d = gridPosition.length - 1; d >= 0; --d )
+			index = index * ( ( dimensions[ level ][ d ] + blockSize[ d ] - 1 ) / blockSize[ d ] ) + gridPosition[ d ];
+
+		return index;
+	}
+
+	protected static int numElements( final int[] size )
+	{
+		int numElements = 1;
+
+		for ( final int s : size )
+			numElements *= s;
+
+		return numElements;
+	}
+
+	protected static class PartialBlock
+	{
+		final float[] data;
+		final int[] size;
+		long missing;
+
+		public PartialBlock( final int[] size )
+		{
+			this.size = size;
+			this.data = new float[ numElements( size ) ];
+			this.missing = data.length;
+		}
+	}
+}
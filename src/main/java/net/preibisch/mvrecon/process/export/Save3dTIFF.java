@@ -52,9 +52,13 @@ public class Save3dTIFF implements ImgExport, Calibrateable
 	public static boolean defaultUseXMLPath = true;
 	public static String defaultPath = null;
 	public static String defaultFN = "";
+	public static boolean defaultBigTiff = false;
+	public static int defaultSlabDepth = 8;
 
 	String path, fnAddition = defaultFN;
 	boolean compress;
+	boolean bigTiff = false; // stream into a BigTIFF instead of writing an ImagePlus
+	int slabDepth = defaultSlabDepth;
 
 	String unit = "px";
 	double cal = 1.0;
@@ -104,6 +108,9 @@ public class Save3dTIFF implements ImgExport, Calibrateable
 		if ( img == null )
 			return false;
 		
+		if ( bigTiff && !compress )
+			return exportBigTiff( img, bb, downsampling, anisoF, title );
+
 		// determine min and max
 		final double[] minmax = FusionTools.minMaxApprox( null );//DisplayImage.getFusionMinMax( img, min, max );
 
@@ -132,6 +139,44 @@ public class Save3dTIFF implements ImgExport, Calibrateable
 		return success;
 	}
 
+	protected < T extends RealType< T > & NativeType< T > > boolean exportBigTiff(
+			final RandomAccessibleInterval< T > img,
+			final Interval bb,
+			final double downsampling,
+			final double anisoF,
+			final String title )
+	{
+		final String fileName = getFileName( title );
+
+		IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Streaming BigTIFF " + fileName + " (" + slabDepth + " slices at a time)" );
+
+		// same calibration as DisplayImage.setCalibration()
+		final double ds = Double.isNaN( downsampling ) ? 1.0 : downsampling;
+		final double ai = Double.isNaN( anisoF ) ? 1.0 : anisoF;
+
+		final double[] calibration, origin;
+
+		if ( bb != null )
+		{
+			calibration = new double[] { ds * cal, ds * cal, ds * ai * cal };
+			origin = new double[] { -(bb.min( 0 ) / ds) * cal, -(bb.min( 1 ) / ds) * cal, -(bb.min( 2 ) / ds) * cal };
+		}
+		else
+		{
+			calibration = new double[] { cal, cal, cal };
+			origin = null;
+		}
+
+		final boolean success = BigTiffWriter.write( img, fileName, slabDepth, calibration, origin, unit );
+
+		if ( success )
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": Saved file " + fileName );
+		else
+			IOFunctions.println( new Date( System.currentTimeMillis() ) + ": FAILED saving file " + fileName );
+
+		return success;
+	}
+
 	/*
 	 * Reimplementation from ImageJ FileSaver class. Necessary since it traverses the entire virtual stack once to collect some
 	 * slice labels, which takes forever in this case.
@@ -179,6 +224,8 @@ public class Save3dTIFF implements ImgExport, Calibrateable
 		PluginHelper.addSaveAsDirectoryField( gd, "Output_file_directory", defaultPath, 80 );
 		gd.addStringField( "Filename_addition", defaultFN );
 		gd.addCheckbox( "Lossless compression of TIFF files (ZIP)", Resave_TIFF.defaultCompress );
+		gd.addCheckbox( "Stream_uncompressed_files_as_BigTIFF (memory of one slab, read with Bio-Formats)", defaultBigTiff );
+		gd.addNumericField( "Slab_depth (z-slices fused at once)", defaultSlabDepth, 0 );
 
 		gd.showDialog();
 		if ( gd.wasCanceled() )
@@ -187,6 +234,8 @@ public class Save3dTIFF implements ImgExport, Calibrateable
 		this.path = defaultPath = gd.getNextString().trim();
 		this.fnAddition = defaultFN = gd.getNextString().trim();
 		this.compress = Resave_TIFF.defaultCompress = gd.getNextBoolean();
+		this.bigTiff = defaultBigTiff = gd.getNextBoolean();
+		this.slabDepth = defaultSlabDepth = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
 
 		return true;
 	}
@@ -218,5 +267,12 @@ public class Save3dTIFF implements ImgExport, Calibrateable
 	public double getPixelSize() { return cal; }
 
 	@Override
-	public int[] blocksize() { return new int[] { 128, 128, 1}; }
+	public int[] blocksize()
+	{
+		// one row of fusion blocks per slab
+		if ( bigTiff && !compress )
+			return new int[] { 256, 256, slabDepth };
+		else
+			return new int[] { 128, 128, 1};
+	}
 }
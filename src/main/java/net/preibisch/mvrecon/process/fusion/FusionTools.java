@@ -25,11 +25,13 @@ package net.preibisch.mvrecon.process.fusion;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -63,15 +65,20 @@ import net.imglib2.Interval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.CellLoader;
-import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
-import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.LoadedCellCacheLoader;
 import net.imglib2.cache.img.SingleCellArrayImg;
-import net.imglib2.cache.img.optional.CacheOptions.CacheType;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealFloatConverter;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
@@ -88,15 +95,20 @@ import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.ViewSetupUtils;
 import net.preibisch.mvrecon.fiji.spimdata.explorer.popup.DisplayFusedImagesPopup;
+import net.preibisch.mvrecon.process.cache.CellCacheManager;
 import net.preibisch.mvrecon.process.boundingbox.BoundingBoxMaximal;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
 import net.preibisch.mvrecon.process.export.DisplayImage;
 import net.preibisch.mvrecon.process.fusion.intensityadjust.IntensityAdjuster;
+import net.preibisch.mvrecon.process.fusion.lazy.ContentBasedCache;
 import net.preibisch.mvrecon.process.fusion.lazy.LazyFusionTools;
 import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedViewSamplersRandomAccessibleInterval;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformView;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformWeight;
+import net.preibisch.mvrecon.process.fusion.transformed.ViewSamplerRandomAccessible;
 import net.preibisch.mvrecon.process.fusion.transformed.weightcombination.CombineWeightsRandomAccessibleInterval;
 import net.preibisch.mvrecon.process.fusion.transformed.weightcombination.CombineWeightsRandomAccessibleInterval.CombineType;
 import net.preibisch.mvrecon.process.fusion.transformed.weights.ContentBasedRealRandomAccessible;
@@ -382,6 +394,38 @@ public class FusionTools
 			final Interval boundingBox, // is already downsampled
 			//final double downsampling,
 			final Map< ? extends ViewId, AffineModel1D > intensityAdjustments )
+	{
+		return fuseVirtual( imgloader, registrations, viewDescriptions, views, useBlending, useContentBased, interpolation, boundingBox, intensityAdjustments, Fusion.AVG, null );
+	}
+
+	/**
+	 * Virtually fuses views
+	 *
+	 * @param imgloader - an imgloader
+	 * @param registrations - all (updated) registrations, already containing anisotropy and downsampling
+	 * @param viewDescriptions - all viewdescriptions
+	 * @param views - which viewIds to fuse
+	 * @param useBlending - blend images when overlapping?
+	 * @param useContentBased - use content-based fusion?
+	 * @param interpolation - 1==linear, 0==nearest neighbor
+	 * @param boundingBox - the (downsampled) bounding box
+	 * @param intensityAdjustments - intensity adjustments, can be null
+	 * @param fusion - AVG (weighted average), MAX, or FIRST/CLOSEST to take only one view per pixel (blending and content-based are then ignored)
+	 * @param contentBasedCache - shares the content-based weights between calls (e.g. blocks of a lazy fusion), can be null
+	 * @return a virtually fused zeroMin RandomAccessibleInterval
+	 */
+	public static RandomAccessibleInterval< FloatType > fuseVirtual(
+			final BasicImgLoader imgloader,
+			final Map< ViewId, ? extends AffineTransform3D > registrations, // now contain the downsampling already
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final Collection< ? extends ViewId > views,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int interpolation,
+			final Interval boundingBox, // is already downsampled
+			final Map< ? extends ViewId, AffineModel1D > intensityAdjustments,
+			final Fusion fusion,
+			final ContentBasedCache contentBasedCache )
 	{
 		// go through the views and check if they are all 2-dimensional
 		final boolean is2d = is2d( views.stream().map( v -> viewDescriptions.get( v ) ).collect( Collectors.toList() ) );
@@ -447,9 +491,19 @@ public class FusionTools
 			return fused;
 		}
 
+		// only one view per pixel, no weights needed
+		final boolean singleView = fusion == Fusion.FIRST || fusion == Fusion.CLOSEST;
+
+		// the first view is the one with the lowest index
+		if ( fusion == Fusion.FIRST )
+			Collections.sort( viewIdsToProcess );
+
 		final ArrayList< RandomAccessibleInterval< FloatType > > images = new ArrayList<>();
 		final ArrayList< RandomAccessibleInterval< FloatType > > weights = new ArrayList<>();
 
+		// for 3d, image and weights of each view are sampled from one transformed coordinate
+		final ArrayList< ViewSamplerRandomAccessible< ? > > samplers = new ArrayList<>();
+
 		for ( final ViewId viewId : viewIdsToProcess )
 		{
 			final AffineTransform3D model = registrations.get( viewId ).copy();
@@ -466,58 +520,51 @@ public class FusionTools
 			// which applies for the image itself as well as the weights since they also use the smaller
 			// input image as reference
 			final double[] usedDownsampleFactors = new double[ 3 ];
-			RandomAccessibleInterval inputImg = DownsampleTools.openDownsampled( imgloader, viewId, model, usedDownsampleFactors );
+			final RandomAccessibleInterval inputImg = openInput( imgloader, viewId, model, usedDownsampleFactors, intensityAdjustments );
+
+			if ( singleView )
+			{
+				samplers.add( createViewSampler( inputImg, model, new ArrayList<>(), bb, interpolation ) );
+				continue;
+			}
 
-			if ( intensityAdjustments != null && intensityAdjustments.containsKey( viewId ) )
-				inputImg = Converters.convert(
-						convertInput( inputImg ),
-						new IntensityAdjuster( intensityAdjustments.get( viewId ) ),
-						new FloatType() );
+			// all weighting schemes (or none) in the coordinate system of the input image
+			RealRandomAccessible< FloatType > blendingWeights = null, contentBasedWeights = null;
 
-			images.add( TransformView.transformView( inputImg, model, bb, 0, interpolation ) );
+			// instantiate blending if necessary
+			if ( useBlending )
+				blendingWeights = createBlendingWeights( viewDescriptions.get( viewId ), inputImg, model );
 
-			// add all (or no) weighting schemes
-			if ( useBlending || useContentBased )
+			// instantiate content based if necessary
+			if ( useContentBased )
+				contentBasedWeights = createContentBasedWeights( viewId, viewDescriptions.get( viewId ), inputImg, usedDownsampleFactors, contentBasedCache );
+
+			if ( !is2d )
 			{
-				RandomAccessibleInterval< FloatType > transformedBlending = null, transformedContentBased = null;
+				final ArrayList< RealRandomAccessible< FloatType > > viewWeights = new ArrayList<>();
 
-				// instantiate blending if necessary
-				if ( useBlending )
-				{
-					final float[] blending = Util.getArrayFromValue( defaultBlendingRange, 3 );
-					final float[] border = Util.getArrayFromValue( defaultBlendingBorder, 3 );
+				if ( blendingWeights != null )
+					viewWeights.add( blendingWeights );
 
-					// TODO: this is wrong, since the blending is applied to the input images
-					// it must only depend on the scale factor that the input images were opened with
-					// TODO: NO, it not wrong here, the assumption is that the defaultBlendingRange should
-					// should be achieved in the output image (independent of the downsampling
+				if ( contentBasedWeights != null )
+					viewWeights.add( contentBasedWeights );
 
-					// adjust both for z-scaling (anisotropy), downsampling, and registrations itself
-					adjustBlending( viewDescriptions.get( viewId ), blending, border, model );
-	
-					//System.out.println( "Adjusted blending range: " + Util.printCoordinates( blending ) );
+				samplers.add( createViewSampler( inputImg, model, viewWeights, bb, interpolation ) );
 
-					transformedBlending = TransformWeight.transformBlending( new FinalInterval( inputImg ), border, blending, model, bb );
-				}
-	
-				// instantiate content based if necessary
-				if ( useContentBased )
-				{
-					final double[] sigma1 = Util.getArrayFromValue( defaultContentBasedSigma1, 3 );
-					final double[] sigma2 = Util.getArrayFromValue( defaultContentBasedSigma2, 3 );
+				continue;
+			}
 
-					// TODO: this is wrong, since the blending is applied to the input images
-					// it must only depend on the scale factor that the input images were opened with
-					// TODO: yes, here it is wrong ... 
+			images.add( TransformView.transformView( inputImg, model, bb, 0, interpolation ) );
 
-					// adjust both for z-scaling (anisotropy), downsampling, and registrations itself
-					adjustContentBased( viewDescriptions.get( viewId ), sigma1, sigma2, usedDownsampleFactors );
+			if ( useBlending || useContentBased )
+			{
+				RandomAccessibleInterval< FloatType > transformedBlending = null, transformedContentBased = null;
 
-					//System.out.println( "Adjusted content based sigma1=" + Util.printCoordinates( sigma1 ) + " , sigma2="+ Util.printCoordinates( sigma2 ));
+				if ( useBlending )
+					transformedBlending = TransformWeight.transformWeight( blendingWeights, model, bb );
 
-					// TODO: compute content-based only for the area around the block that is being fused
-					transformedContentBased = TransformWeight.transformContentBased( inputImg, sigma1, sigma2, LazyFusionTools.defaultBlockSize3d, ContentBasedRealRandomAccessible.defaultScale, model, bb );
-				}
+				if ( useContentBased )
+					transformedContentBased = TransformWeight.transformWeight( contentBasedWeights, model, bb );
 
 				if ( useContentBased && useBlending )
 				{
@@ -545,10 +592,135 @@ public class FusionTools
 			}
 		}
 
-		return new FusedRandomAccessibleInterval( new FinalInterval( getFusedZeroMinInterval( bb ) ), images, weights );
+		final FusedRandomAccessibleInterval fused;
+
+		if ( !is2d || singleView )
+			fused = new FusedViewSamplersRandomAccessibleInterval( new FinalInterval( getFusedZeroMinInterval( bb ) ), samplers );
+		else
+			fused = new FusedRandomAccessibleInterval( new FinalInterval( getFusedZeroMinInterval( bb ) ), images, weights );
+
+		fused.setFusion( fusion );
+
+		return fused;
 		//return new ValuePair<>( new FusedRandomAccessibleInterval( new FinalInterval( getFusedZeroMinInterval( bb ) ), images, weights ), bbTransform );
 	}
 
+	/**
+	 * Opens the (downsampled) input image of a view and applies the intensity adjustment if present.
+	 * 
+	 * @param imgloader - the imgloader
+	 * @param viewId - the view
+	 * @param model - the registration, will be modified so it maps from the (potentially smaller) opened image to the global coordinate space
+	 * @param usedDownsampleFactors - will be filled with the downsample factors used to open the image
+	 * @param intensityAdjustments - intensity adjustments, can be null
+	 * @return the input image
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static RandomAccessibleInterval openInput(
+			final BasicImgLoader imgloader,
+			final ViewId viewId,
+			final AffineTransform3D model,
+			final double[] usedDownsampleFactors,
+			final Map< ? extends ViewId, AffineModel1D > intensityAdjustments )
+	{
+		RandomAccessibleInterval inputImg = DownsampleTools.openDownsampled( imgloader, viewId, model, usedDownsampleFactors );
+
+		if ( intensityAdjustments != null && intensityAdjustments.containsKey( viewId ) )
+			inputImg = Converters.convert(
+					convertInput( inputImg ),
+					new IntensityAdjuster( intensityAdjustments.get( viewId ) ),
+					new FloatType() );
+
+		return inputImg;
+	}
+
+	/**
+	 * @param viewDescription - the view description
+	 * @param inputImg - the opened input image
+	 * @param model - the (adjusted) model returned by openInput
+	 * @return the blending weights in the coordinate system of the input image
+	 */
+	public static RealRandomAccessible< FloatType > createBlendingWeights(
+			final BasicViewDescription< ? > viewDescription,
+			final Interval inputImg,
+			final AffineTransform3D model )
+	{
+		final float[] blending = Util.getArrayFromValue( defaultBlendingRange, 3 );
+		final float[] border = Util.getArrayFromValue( defaultBlendingBorder, 3 );
+
+		// TODO: this is wrong, since the blending is applied to the input images
+		// it must only depend on the scale factor that the input images were opened with
+		// TODO: NO, it not wrong here, the assumption is that the defaultBlendingRange should
+		// should be achieved in the output image (independent of the downsampling
+
+		// adjust both for z-scaling (anisotropy), downsampling, and registrations itself
+		adjustBlending( viewDescription, blending, border, model );
+
+		//System.out.println( "Adjusted blending range: " + Util.printCoordinates( blending ) );
+
+		return TransformWeight.blending( new FinalInterval( inputImg ), border, blending );
+	}
+
+	/**
+	 * @param viewId - the view
+	 * @param viewDescription - the view description
+	 * @param inputImg - the opened input image
+	 * @param usedDownsampleFactors - the downsample factors returned by openInput
+	 * @param contentBasedCache - shares the content-based weights, can be null
+	 * @return the content-based weights in the coordinate system of the input image
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static RealRandomAccessible< FloatType > createContentBasedWeights(
+			final ViewId viewId,
+			final BasicViewDescription< ? > viewDescription,
+			final RandomAccessibleInterval inputImg,
+			final double[] usedDownsampleFactors,
+			final ContentBasedCache contentBasedCache )
+	{
+		final double[] sigma1 = Util.getArrayFromValue( defaultContentBasedSigma1, 3 );
+		final double[] sigma2 = Util.getArrayFromValue( defaultContentBasedSigma2, 3 );
+
+		// TODO: this is wrong, since the blending is applied to the input images
+		// it must only depend on the scale factor that the input images were opened with
+		// TODO: yes, here it is wrong ... 
+
+		// adjust both for z-scaling (anisotropy), downsampling, and registrations itself
+		adjustContentBased( viewDescription, sigma1, sigma2, usedDownsampleFactors );
+
+		//System.out.println( "Adjusted content based sigma1=" + Util.printCoordinates( sigma1 ) + " , sigma2="+ Util.printCoordinates( sigma2 ));
+
+		if ( contentBasedCache != null )
+			return contentBasedCache.get( viewId, inputImg, sigma1, sigma2, LazyFusionTools.defaultBlockSize3d, ContentBasedRealRandomAccessible.defaultScale );
+		else
+			return TransformWeight.contentBased( inputImg, sigma1, sigma2, LazyFusionTools.defaultBlockSize3d, ContentBasedRealRandomAccessible.defaultScale, -1 );
+	}
+
+	/**
+	 * @param inputImg - the opened input image
+	 * @param model - the (adjusted) model returned by openInput
+	 * @param weights - the weights in the coordinate system of the input image (can be empty)
+	 * @param boundingBox - the (downsampled) bounding box
+	 * @param interpolation - 1==linear, 0==nearest neighbor
+	 * @return a sampler that computes image value and weight of the view from the same transformed coordinate
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ViewSamplerRandomAccessible< ? > createViewSampler(
+			final RandomAccessibleInterval inputImg,
+			final AffineTransform3D model,
+			final List< ? extends RealRandomAccessible< FloatType > > weights,
+			final Interval boundingBox,
+			final int interpolation )
+	{
+		final ViewSamplerRandomAccessible< ? > sampler = new ViewSamplerRandomAccessible( inputImg, model, weights, boundingBox );
+
+		if ( interpolation == 0 )
+			sampler.setNearestNeighborInterpolation();
+		else
+			sampler.setLinearInterpolation();
+
+		return sampler;
+	}
+
 	@SuppressWarnings("unchecked")
 	public static < T extends RealType< T > > RandomAccessibleInterval< FloatType > convertInput( final RandomAccessibleInterval< T > img )
 	{
@@ -766,6 +938,17 @@ public class FusionTools
 		return cacheRandomAccessibleInterval( input, -1, type, cellDim );
 	}
 
+	/**
+	 * Caches a RandomAccessibleInterval in cells. All cells share the memory budget of the global
+	 * {@link CellCacheManager} (least recently used cells are released first).
+	 *
+	 * @param input - the input
+	 * @param maxCacheSize - if &gt; 0, at most this many cells of this image are kept in memory (in addition to the global budget)
+	 * @param type - the type
+	 * @param cellDim - the cell dimensions
+	 * @param <T> - type
+	 * @return the cached image (with the same min as the input)
+	 */
 	public static < T extends NativeType< T > > RandomAccessibleInterval< T > cacheRandomAccessibleInterval(
 			final RandomAccessibleInterval< T > input,
 			final long maxCacheSize,
@@ -778,15 +961,6 @@ public class FusionTools
 			in = input;
 		else
 			in = Views.zeroMin( input );
-		
-		final ReadOnlyCachedCellImgOptions options;
-
-		if ( maxCacheSize > 0 )
-			options = new ReadOnlyCachedCellImgOptions().cellDimensions( cellDim ).maxCacheSize( maxCacheSize );
-		else
-			options = new ReadOnlyCachedCellImgOptions().cellDimensions( cellDim ).cacheType( CacheType.SOFTREF );
-
-		final ReadOnlyCachedCellImgFactory factory = new ReadOnlyCachedCellImgFactory( options );
 
 		final CellLoader< T > loader = new CellLoader< T >()
 		{
@@ -808,7 +982,20 @@ public class FusionTools
 		final long[] dim = new long[ in.numDimensions() ];
 		in.dimensions( dim );
 
-		return translateIfNecessary( input, factory.create( dim, type, loader ) );
+		final CellGrid grid = new CellGrid( dim, cellDim );
+
+		// volatile accesses so the result can be wrapped as volatile (e.g. for BigDataViewer)
+		final Set< AccessFlags > accessFlags = AccessFlags.setOf( AccessFlags.VOLATILE );
+
+		final Cache< Long, Cell< ? > > cache =
+				CellCacheManager.getInstance().< Long, Cell< ? > >createCache( maxCacheSize ).withLoader(
+						LoadedCellCacheLoader.get( grid, loader, type, accessFlags ) );
+
+		// the access is created from the NativeTypeFactory of the type, so any NativeType can be cached (e.g. NumericAffineModel3D)
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessibleInterval< T > img = new CachedCellImg( grid, type, cache, ArrayDataAccessFactory.get( type, accessFlags ) );
+
+		return translateIfNecessary( input, img );
 	}
 
 	public static < T extends Type< T > > RandomAccessibleInterval< T > copyImg( final RandomAccessibleInterval< T > input, final ImgFactory< T > factory, final T type, final ExecutorService service  )
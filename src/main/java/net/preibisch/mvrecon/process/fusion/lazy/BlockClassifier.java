@@ -0,0 +1,141 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.lazy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
+import net.preibisch.legacy.io.IOFunctions;
+
+/**
+ * Classifies blocks of a fused image by how many views overlap them geometrically (using the transformed
+ * bounding boxes of the views, same as {@link LazyFusionTools#overlappingViewIds(Interval, Collection, Map, Map, int)}),
+ * so an exporter can skip empty blocks entirely and copy blocks that only one view contributes to.
+ *
+ * @author preibisch
+ */
+public class BlockClassifier
+{
+	public enum BlockType { EMPTY, SINGLE_VIEW, MULTI_VIEW }
+
+	final ArrayList< ViewId > views;
+	final HashMap< ViewId, Interval > boundingBoxes;
+	final long[] offset;
+	final Function< ViewId, RandomAccessibleInterval< ? > > singleViewImages;
+	final ConcurrentHashMap< ViewId, RandomAccessibleInterval< ? > > singleViewImageCache = new ConcurrentHashMap<>();
+
+	final AtomicLong numEmpty = new AtomicLong(), numSingle = new AtomicLong(), numMulti = new AtomicLong();
+
+	/**
+	 * @param views - the views of the fused image
+	 * @param registrations - the registrations (including downsampling and anisotropy)
+	 * @param viewDimensions - the dimensions of the views
+	 * @param boundingBox - the bounding box of the fused image
+	 * @param singleViewImages - creates the (zero-min) image of a single view in the bounding box with the same pixel type as the fused image, null if there is no copy path
+	 */
+	public BlockClassifier(
+			final Collection< ? extends ViewId > views,
+			final Map< ? extends ViewId, ? extends AffineTransform3D > registrations,
+			final Map< ? extends ViewId, ? extends Dimensions > viewDimensions,
+			final Interval boundingBox,
+			final Function< ViewId, RandomAccessibleInterval< ? > > singleViewImages )
+	{
+		this.views = new ArrayList<>( views );
+		this.boundingBoxes = new HashMap<>();
+		this.offset = boundingBox.minAsLongArray();
+		this.singleViewImages = singleViewImages;
+
+		for ( final ViewId viewId : views )
+			boundingBoxes.put(
+					viewId,
+					LazyFusionTools.transformedBoundingBox( registrations.get( viewId ), viewDimensions.get( viewId ), LazyFusionTools.defaultAffineExpansion ) );
+	}
+
+	/**
+	 * @param block - a block in zero-min coordinates of the fused image
+	 * @return the views whose bounding box overlaps the block
+	 */
+	public List< ViewId > overlappingViews( final Interval block )
+	{
+		final Interval target = Intervals.translate( block, offset );
+		final ArrayList< ViewId > overlapping = new ArrayList<>();
+
+		for ( final ViewId viewId : views )
+			if ( LazyFusionTools.overlaps( target, boundingBoxes.get( viewId ) ) )
+				overlapping.add( viewId );
+
+		return overlapping;
+	}
+
+	/**
+	 * @param overlappingViews - the result of {@link #overlappingViews(Interval)}
+	 * @return the type of block (also counted for the statistics)
+	 */
+	public BlockType classify( final List< ViewId > overlappingViews )
+	{
+		if ( overlappingViews.size() == 0 )
+		{
+			numEmpty.incrementAndGet();
+			return BlockType.EMPTY;
+		}
+		else if ( overlappingViews.size() == 1 )
+		{
+			numSingle.incrementAndGet();
+			return BlockType.SINGLE_VIEW;
+		}
+		else
+		{
+			numMulti.incrementAndGet();
+			return BlockType.MULTI_VIEW;
+		}
+	}
+
+	public boolean hasSingleViewImages() { return singleViewImages != null; }
+
+	/**
+	 * @param viewId - the view
+	 * @return the (zero-min) image of this view alone in the bounding box of the fused image, created once
+	 */
+	@SuppressWarnings( "unchecked" )
+	public < T > RandomAccessibleInterval< T > singleViewImage( final ViewId viewId )
+	{
+		return (RandomAccessibleInterval< T >)singleViewImageCache.computeIfAbsent( viewId, singleViewImages );
+	}
+
+	public void printStatistics()
+	{
+		IOFunctions.println( "Blocks: " + numEmpty.get() + " empty (skipped), " + numSingle.get() + " single-view, " + numMulti.get() + " multi-view." );
+	}
+}
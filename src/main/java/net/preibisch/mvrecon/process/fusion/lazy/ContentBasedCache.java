@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.lazy;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.mvrecon.process.fusion.transformed.TransformWeight;
+
+/**
+ * Shares the content-based weights (entropy images) of each view between all blocks and threads of a
+ * lazy fusion, so that the Gaussians are computed only once per view (at the mipmap level that it is
+ * opened with) instead of once per output block.
+ *
+ * The memory is bounded: each view gets an equal share of the budget, which is translated into
+ * a maximal number of cached blocks of its entropy image.
+ *
+ * @author Stephan Preibisch
+ */
+public class ContentBasedCache
+{
+	// by default use up to a quarter of the available memory for the weights
+	public static double defaultMemoryFraction = 0.25;
+
+	final long maxBytes;
+	final int numViews;
+
+	final ConcurrentHashMap< ViewId, RealRandomAccessible< FloatType > > cache = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxBytes - the memory budget for all cached entropy images together
+	 * @param numViews - how many views will be cached
+	 */
+	public ContentBasedCache( final long maxBytes, final int numViews )
+	{
+		this.maxBytes = maxBytes;
+		this.numViews = Math.max( 1, numViews );
+	}
+
+	/**
+	 * @param numViews - how many views will be cached
+	 */
+	public ContentBasedCache( final int numViews )
+	{
+		this( Math.round( Runtime.getRuntime().maxMemory() * defaultMemoryFraction ), numViews );
+	}
+
+	/**
+	 * Returns the content-based weights for a view in the coordinate system of its input image,
+	 * computing them if this is the first request.
+	 *
+	 * @param viewId - which view
+	 * @param inputImg - the input image as it was opened (only used the first time)
+	 * @param sigma1 - first sigma (already adjusted for the input image)
+	 * @param sigma2 - second sigma (already adjusted for the input image)
+	 * @param blocksize - blocksize for computing and caching
+	 * @param scale - scaling of the weights
+	 * @param <T> - type
+	 * @return the content-based weights
+	 */
+	public < T extends RealType< T > > RealRandomAccessible< FloatType > get(
+			final ViewId viewId,
+			final RandomAccessibleInterval< T > inputImg,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int[] blocksize,
+			final float scale )
+	{
+		return cache.computeIfAbsent(
+				viewId,
+				v -> TransformWeight.contentBased( inputImg, sigma1, sigma2, blocksize, scale, maxBlocksPerView( blocksize ) ) );
+	}
+
+	/**
+	 * @param blocksize - the blocksize of the cached image
+	 * @return how many FloatType blocks of each view fit into the memory budget (at least one)
+	 */
+	public long maxBlocksPerView( final int[] blocksize )
+	{
+		long blockBytes = 4;
+
+		for ( final int b : blocksize )
+			blockBytes *= b;
+
+		return Math.max( 1, maxBytes / numViews / blockBytes );
+	}
+
+	public int numCachedViews() { return cache.size(); }
+	public void clear() { cache.clear(); }
+}
@@ -23,6 +23,7 @@
 
 package net.preibisch.mvrecon.process.fusion.lazy;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -42,6 +43,11 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealUnsignedByteConverter;
+import net.imglib2.converter.RealUnsignedShortConverter;
+import net.imglib2.display.LinearRange;
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
@@ -53,6 +59,9 @@ import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.XmlIoSpimData2;
 import net.preibisch.mvrecon.process.deconvolution.DeconViews;
 import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.transformed.BlockFusion;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
 import net.preibisch.mvrecon.process.fusion.transformed.TransformVirtual;
 
 /**
@@ -76,6 +85,10 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 	final boolean useContentBased;
 	final int interpolation;
 	final Map< ViewId, AffineModel1D > intensityAdjustments;
+	final Fusion fusion;
+
+	// shared by all blocks and threads
+	final ContentBasedCache contentBasedCache;
 
 	/**
 	 * Creates a consumer that will fill the requested RandomAccessibleInterval single-threaded
@@ -90,6 +103,7 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 	 * @param useContentBased - use content-based fusion?
 	 * @param interpolation - 1==linear, 0==nearest neighbor
 	 * @param intensityAdjustments - intensity adjustments, can be null
+	 * @param fusion - AVG (weighted average), MAX, FIRST (lowest index view) or CLOSEST (view with the closest center)
 	 * @param globalMin - the output RAI typically sits at 0,0...0 because it usually is a CachedCellImage (but the actual interval to process in many blocks sits somewhere else)
 	 * @param type - which type to fuse
 	 */
@@ -103,10 +117,10 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 			final boolean useContentBased,
 			final int interpolation,
 			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final Fusion fusion,
 			final long[] globalMin,
 			final T type )
 	{
-		// TODO: share cache for content-based fusion if wanted
 		this.globalMin = globalMin;
 		this.type = type;
 
@@ -119,6 +133,28 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 		this.useContentBased = useContentBased;
 		this.interpolation = interpolation;
 		this.intensityAdjustments = intensityAdjustments;
+		this.fusion = fusion;
+
+		if ( useContentBased && fusion == Fusion.AVG )
+			this.contentBasedCache = new ContentBasedCache( viewIds.size() );
+		else
+			this.contentBasedCache = null;
+	}
+
+	public LazyAffineFusion(
+			final Converter<FloatType, T> converter,
+			final BasicImgLoader imgloader,
+			final Collection< ? extends ViewId > viewIds,
+			final Map< ViewId, ? extends AffineTransform3D > viewRegistrations,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int interpolation,
+			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final long[] globalMin,
+			final T type )
+	{
+		this( converter, imgloader, viewIds, viewRegistrations, viewDescriptions, useBlending, useContentBased, interpolation, intensityAdjustments, Fusion.AVG, globalMin, type );
 	}
 
 	// Note: the output RAI typically sits at 0,0...0 because it usually is a CachedCellImage
@@ -140,7 +176,9 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 						useContentBased, // use content-based
 						interpolation, // linear interpolation
 						targetBlock,
-						intensityAdjustments ); // intensity adjustments
+						intensityAdjustments, // intensity adjustments
+						fusion, // weighted average or single view
+						contentBasedCache ); // shared content-based weights
 
 		finish( fused, output, converter, type );
 	}
@@ -152,6 +190,12 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 			final Converter<FloatType, T> converter,
 			final T type )
 	{
+		if ( fused instanceof FusedRandomAccessibleInterval )
+		{
+			finishBlock( (FusedRandomAccessibleInterval)fused, output, converter, type );
+			return;
+		}
+
 		final RandomAccessibleInterval<T> converted;
 
 		if ( converter == null && type.getClass().isInstance( new FloatType() ) )
@@ -168,6 +212,142 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 			cOut.next().set( cIn.next() );
 	}
 
+	/**
+	 * Fuses the whole block at once using {@link BlockFusion}. If the output is FloatType and backed by a
+	 * float[] (e.g. the cell of a CachedCellImg), the result is written directly into it. If it is 8 or 16 bit
+	 * (converted with the min/max of a {@link RealUnsignedByteConverter} or {@link RealUnsignedShortConverter})
+	 * and backed by a byte[] or short[], the result is scaled and rounded directly into it.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	protected static final <T extends RealType<T>> void finishBlock(
+			final FusedRandomAccessibleInterval fused,
+			final RandomAccessibleInterval<T> output,
+			final Converter<FloatType, T> converter,
+			final T type )
+	{
+		final int size = (int)Views.flatIterable( output ).size();
+
+		if ( converter == null && type.getClass().isInstance( new FloatType() ) )
+		{
+			final float[] outputArray = floatStorage( output, size );
+
+			if ( outputArray != null )
+			{
+				BlockFusion.fuse( fused, outputArray );
+				return;
+			}
+		}
+
+		final float[] fusedArray = new float[ size ];
+		BlockFusion.fuse( fused, fusedArray );
+
+		if ( writeIntegerStorage( fusedArray, output, converter ) )
+			return;
+
+		final Cursor<T> cOut = Views.flatIterable( output ).cursor();
+		final FloatType tmp = new FloatType();
+
+		if ( converter == null )
+		{
+			for ( int i = 0; i < size; ++i )
+				((Cursor<FloatType>)(Object)cOut).next().set( fusedArray[ i ] );
+		}
+		else
+		{
+			for ( int i = 0; i < size; ++i )
+			{
+				tmp.set( fusedArray[ i ] );
+				converter.convert( tmp, cOut.next() );
+			}
+		}
+	}
+
+	/**
+	 * @return the float[] backing the output if it is a single-array NativeImg of the right size, otherwise null
+	 */
+	protected static float[] floatStorage( final RandomAccessibleInterval<?> output, final int size )
+	{
+		final Object array = storage( output, size );
+
+		if ( float[].class.isInstance( array ) )
+			return (float[])array;
+		else
+			return null;
+	}
+
+	/**
+	 * @return the primitive array backing the output if it is a single-array NativeImg of the right size, otherwise null
+	 */
+	protected static Object storage( final RandomAccessibleInterval<?> output, final int size )
+	{
+		if ( !NativeImg.class.isInstance( output ) )
+			return null;
+
+		final Object access = ((NativeImg<?, ?>)output).update( null );
+
+		if ( !ArrayDataAccess.class.isInstance( access ) )
+			return null;
+
+		final Object array = ((ArrayDataAccess<?>)access).getCurrentStorageArray();
+
+		if ( array != null && array.getClass().isArray() && Array.getLength( array ) == size )
+			return array;
+		else
+			return null;
+	}
+
+	/**
+	 * Scales, clamps and rounds fused values directly into the byte[] or short[] backing the output, identical
+	 * to what {@link RealUnsignedByteConverter} and {@link RealUnsignedShortConverter} would do.
+	 *
+	 * @param fused - the fused values (flat iteration order)
+	 * @param output - the output block
+	 * @param converter - the converter that defines min and max
+	 * @return true if the output was written, false if it is not backed by a matching array (or the converter is not supported)
+	 */
+	protected static boolean writeIntegerStorage(
+			final float[] fused,
+			final RandomAccessibleInterval<?> output,
+			final Converter<FloatType, ?> converter )
+	{
+		if ( !RealUnsignedShortConverter.class.isInstance( converter ) && !RealUnsignedByteConverter.class.isInstance( converter ) )
+			return false;
+
+		final Object array = storage( output, fused.length );
+
+		if ( array == null )
+			return false;
+
+		final double min = ((LinearRange)converter).getMin();
+		final double max = ((LinearRange)converter).getMax();
+
+		if ( short[].class.isInstance( array ) && RealUnsignedShortConverter.class.isInstance( converter ) )
+			BlockFusion.toUnsignedShort( fused, (short[])array, min, max );
+		else if ( byte[].class.isInstance( array ) && RealUnsignedByteConverter.class.isInstance( converter ) )
+			BlockFusion.toUnsignedByte( fused, (byte[])array, min, max );
+		else
+			return false;
+
+		return true;
+	}
+
+	public static final <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> init(
+			final Converter<FloatType, T> converter,
+			final BasicImgLoader imgloader,
+			final Collection< ? extends ViewId > viewIds,
+			final Map< ViewId, ? extends AffineTransform3D > viewRegistrations,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int interpolation,
+			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final Interval fusionInterval,
+			final T type,
+			final int[] blockSize )
+	{
+		return init( converter, imgloader, viewIds, viewRegistrations, viewDescriptions, useBlending, useContentBased, interpolation, intensityAdjustments, Fusion.AVG, fusionInterval, type, blockSize );
+	}
+
 	public static final <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> init(
 			final Converter<FloatType, T> converter,
 			final BasicImgLoader imgloader,
@@ -178,6 +358,7 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 			final boolean useContentBased,
 			final int interpolation,
 			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final Fusion fusion,
 			final Interval fusionInterval,
 			final T type,
 			final int[] blockSize )
@@ -193,6 +374,7 @@ public class LazyAffineFusion<T extends RealType<T> & NativeType<T>> implements
 						useContentBased,
 						interpolation,
 						intensityAdjustments,
+						fusion,
 						fusionInterval.minAsLongArray(),
 						type.createVariable() );
 
@@ -144,21 +144,29 @@ public class LazyFusionTools {
 		final ArrayList< ViewId > overlappingViewIds = new ArrayList<>();
 
 		for ( final ViewId viewId : allViewIds )
-		{
-			// expand to be conservative ...
-			final AffineTransform3D t = viewRegistrations.get( viewId );
-			final Dimensions dim = viewDimensions.get( viewId );
-			final RealInterval ri = t.estimateBounds( new FinalInterval( dim ) );
-			final Interval boundingBoxLocal = Intervals.largestContainedInterval( ri );
-			final Interval bounds = Intervals.expand( boundingBoxLocal, expandOverlap );
-
-			if ( overlaps( targetBlock, bounds ) )
+			if ( overlaps( targetBlock, transformedBoundingBox( viewRegistrations.get( viewId ), viewDimensions.get( viewId ), expandOverlap ) ) )
 				overlappingViewIds.add( viewId );
-		}
 
 		return overlappingViewIds;
 	}
 
+	/**
+	 * @param t - the registration of the view
+	 * @param dim - the dimensions of the view
+	 * @param expandOverlap - by how many pixels to expand the bounding box (to be conservative)
+	 * @return the (expanded) bounding box of the transformed view in output coordinates
+	 */
+	public static Interval transformedBoundingBox(
+			final AffineTransform3D t,
+			final Dimensions dim,
+			final int expandOverlap )
+	{
+		final RealInterval ri = t.estimateBounds( new FinalInterval( dim ) );
+		final Interval boundingBoxLocal = Intervals.largestContainedInterval( ri );
+
+		return Intervals.expand( boundingBoxLocal, expandOverlap );
+	}
+
 	public static boolean overlaps( final Interval interval1, final Interval interval2 )
 	{
 		final Interval intersection = Intervals.intersect( interval1, interval2 );
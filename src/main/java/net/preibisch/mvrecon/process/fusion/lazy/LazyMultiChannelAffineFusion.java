@@ -0,0 +1,447 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.lazy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import mpicbg.models.AffineModel1D;
+import mpicbg.spim.data.generic.base.Entity;
+import mpicbg.spim.data.generic.sequence.BasicImgLoader;
+import mpicbg.spim.data.generic.sequence.BasicViewDescription;
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
+import net.preibisch.mvrecon.process.fusion.transformed.BlockFusion;
+import net.preibisch.mvrecon.process.fusion.transformed.ViewSamplerRandomAccessible;
+
+/**
+ * BigStitcher Affine Fusion in blocks for several channels at once. The result is a 4d image (x,y,z,c),
+ * each block contains all channels. For every tile that overlaps a block the blending weights are computed
+ * only once and used for all channels, if the channels of that tile share the same registration and size
+ * (otherwise, or when using content-based fusion, each channel is weighted independently).
+ *
+ * Only supports 3d data.
+ *
+ * @author Stephan Preibisch
+ * @param <T> type of input and output
+ */
+public class LazyMultiChannelAffineFusion<T extends RealType<T> & NativeType<T>> implements Consumer<RandomAccessibleInterval<T>>
+{
+	final T type;
+	final long[] globalMin;
+
+	final Converter<FloatType, T> converter;
+	final BasicImgLoader imgloader;
+	final Map< ViewId, ? extends AffineTransform3D > viewRegistrations;
+	final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions;
+
+	final boolean useBlending;
+	final boolean useContentBased;
+	final int interpolation;
+	final Map< ViewId, AffineModel1D > intensityAdjustments;
+
+	final int numChannels;
+
+	// the views of each tile, tiles.get( i )[ c ] is the view of channel c (or null if missing)
+	final List< ViewId[] > tiles;
+
+	// the tile of every view, used to find the tiles that overlap a block (a tile overlaps if any of its channels
+	// does, since channels can have different registrations and sizes)
+	final Map< ViewId, ViewId[] > tileOfView;
+	final HashMap< ViewId, Dimensions > viewDimensions;
+
+	// shared by all blocks and threads
+	final ContentBasedCache contentBasedCache;
+
+	/**
+	 * Creates a consumer that will fill the requested 4d RandomAccessibleInterval (x,y,z,c) single-threaded
+	 *
+	 * @param converter - if type is FloatType, converter can be null
+	 * @param imgloader - the imgloader to fetch raw data
+	 * @param channelViewIds - which viewids to fuse for each channel (one output channel per entry)
+	 * @param viewRegistrations - the registrations (must include anisotropy and downsampling if desired)
+	 * @param viewDescriptions - the viewdescriptions
+	 * @param useBlending - blend images when overlapping?
+	 * @param useContentBased - use content-based fusion?
+	 * @param interpolation - 1==linear, 0==nearest neighbor
+	 * @param intensityAdjustments - intensity adjustments, can be null
+	 * @param globalMin - the min of the 3d fusion interval
+	 * @param type - which type to fuse
+	 */
+	public LazyMultiChannelAffineFusion(
+			final Converter<FloatType, T> converter,
+			final BasicImgLoader imgloader,
+			final List< ? extends Collection< ? extends ViewId > > channelViewIds,
+			final Map< ViewId, ? extends AffineTransform3D > viewRegistrations,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int interpolation,
+			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final long[] globalMin,
+			final T type )
+	{
+		this.globalMin = globalMin;
+		this.type = type;
+
+		this.converter = converter;
+		this.imgloader = imgloader;
+		this.viewRegistrations = viewRegistrations;
+		this.viewDescriptions = viewDescriptions;
+		this.useBlending = useBlending;
+		this.useContentBased = useContentBased;
+		this.interpolation = interpolation;
+		this.intensityAdjustments = intensityAdjustments;
+
+		this.numChannels = channelViewIds.size();
+		this.tiles = matchChannels( channelViewIds, viewDescriptions );
+
+		this.tileOfView = new HashMap<>();
+
+		for ( final ViewId[] tile : tiles )
+			for ( final ViewId viewId : tile )
+				if ( viewId != null )
+					tileOfView.put( viewId, tile );
+
+		this.viewDimensions = LazyFusionTools.assembleDimensions( tileOfView.keySet(), viewDescriptions );
+
+		if ( useContentBased )
+			this.contentBasedCache = new ContentBasedCache( channelViewIds.stream().mapToInt( c -> c.size() ).sum() );
+		else
+			this.contentBasedCache = null;
+	}
+
+	// Note: the output RAI sits at 0,0,0,0 because it is a CachedCellImage
+	// (but the actual interval to process in many blocks sits somewhere else)
+	@Override
+	public void accept( final RandomAccessibleInterval<T> output )
+	{
+		// the 3d block in world coordinates
+		final long[] min = new long[ 3 ];
+		final long[] max = new long[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = output.min( d ) + globalMin[ d ];
+			max[ d ] = output.max( d ) + globalMin[ d ];
+		}
+
+		final Interval targetBlock = new FinalInterval( min, max );
+		final Interval zeroMinBlock = new FinalInterval( Intervals.dimensionsAsLongArray( targetBlock ) );
+
+		final int size = (int)Intervals.numElements( targetBlock );
+
+		final double[][] sumI = new double[ numChannels ][ size ];
+		final double[][] sumW = new double[ numChannels ][ size ];
+
+		final ArrayList< ViewId > overlapping =
+				LazyFusionTools.overlappingViewIds(
+						targetBlock,
+						tileOfView.keySet(),
+						viewRegistrations,
+						viewDimensions,
+						LazyFusionTools.defaultAffineExpansion );
+
+		final HashSet< ViewId[] > overlappingTiles = new HashSet<>();
+
+		for ( final ViewId viewId : overlapping )
+			overlappingTiles.add( tileOfView.get( viewId ) );
+
+		// in the order of the tiles, so the result does not depend on the order of the views
+		for ( final ViewId[] tile : tiles )
+			if ( overlappingTiles.contains( tile ) )
+				accumulateTile( tile, targetBlock, zeroMinBlock, sumI, sumW );
+
+		finish( sumI, sumW, output, size );
+	}
+
+	@SuppressWarnings("rawtypes")
+	protected void accumulateTile(
+			final ViewId[] tile,
+			final Interval targetBlock,
+			final Interval zeroMinBlock,
+			final double[][] sumI,
+			final double[][] sumW )
+	{
+		final AffineTransform3D[] models = new AffineTransform3D[ numChannels ];
+		final RandomAccessibleInterval[] inputImgs = new RandomAccessibleInterval[ numChannels ];
+		final double[][] usedDownsampleFactors = new double[ numChannels ][ 3 ];
+
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			if ( tile[ c ] == null )
+				continue;
+
+			// this modifies the model so it maps from a smaller image to the global coordinate space
+			models[ c ] = viewRegistrations.get( tile[ c ] ).copy();
+			inputImgs[ c ] = FusionTools.openInput( imgloader, tile[ c ], models[ c ], usedDownsampleFactors[ c ], intensityAdjustments );
+		}
+
+		final int ref = firstPresent( tile );
+
+		if ( !useContentBased && sameGeometry( models, inputImgs, ref ) )
+		{
+			// weights are computed once for all channels
+			final List< RealRandomAccessible< FloatType > > weights;
+
+			if ( useBlending )
+				weights = Collections.singletonList( FusionTools.createBlendingWeights( viewDescriptions.get( tile[ ref ] ), inputImgs[ ref ], models[ ref ] ) );
+			else
+				weights = Collections.emptyList();
+
+			final ViewSamplerRandomAccessible< ? > weightSampler =
+					FusionTools.createViewSampler( inputImgs[ ref ], models[ ref ], weights, targetBlock, interpolation );
+
+			final ArrayList< ViewSamplerRandomAccessible< ? > > samplers = new ArrayList<>();
+
+			for ( int c = 0; c < numChannels; ++c )
+			{
+				if ( tile[ c ] == null )
+					samplers.add( null );
+				else
+					samplers.add( FusionTools.createViewSampler( inputImgs[ c ], models[ c ], Collections.emptyList(), targetBlock, interpolation ) );
+			}
+
+			BlockFusion.accumulateShared( weightSampler, samplers, zeroMinBlock, sumI, sumW );
+		}
+		else
+		{
+			for ( int c = 0; c < numChannels; ++c )
+			{
+				if ( tile[ c ] == null )
+					continue;
+
+				final ArrayList< RealRandomAccessible< FloatType > > weights = new ArrayList<>();
+
+				if ( useBlending )
+					weights.add( FusionTools.createBlendingWeights( viewDescriptions.get( tile[ c ] ), inputImgs[ c ], models[ c ] ) );
+
+				if ( useContentBased )
+					weights.add( FusionTools.createContentBasedWeights( tile[ c ], viewDescriptions.get( tile[ c ] ), inputImgs[ c ], usedDownsampleFactors[ c ], contentBasedCache ) );
+
+				BlockFusion.accumulate(
+						FusionTools.createViewSampler( inputImgs[ c ], models[ c ], weights, targetBlock, interpolation ),
+						zeroMinBlock,
+						sumI[ c ],
+						sumW[ c ] );
+			}
+		}
+	}
+
+	/**
+	 * Normalizes the sums of all channels and writes them into the 4d block (channel is the slowest dimension).
+	 * If the output is backed by a primitive array, the result is written directly into it.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void finish(
+			final double[][] sumI,
+			final double[][] sumW,
+			final RandomAccessibleInterval<T> output,
+			final int size )
+	{
+		float[] fused = null;
+
+		if ( converter == null && type.getClass().isInstance( new FloatType() ) )
+			fused = LazyAffineFusion.floatStorage( output, size * numChannels );
+
+		final boolean direct = fused != null;
+
+		if ( !direct )
+			fused = new float[ size * numChannels ];
+
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			final double[] sI = sumI[ c ];
+			final double[] sW = sumW[ c ];
+			final int offset = c * size;
+
+			for ( int k = 0; k < size; ++k )
+				fused[ offset + k ] = sW[ k ] > 0 ? (float)( sI[ k ] / sW[ k ] ) : 0;
+		}
+
+		if ( direct || LazyAffineFusion.writeIntegerStorage( fused, output, converter ) )
+			return;
+
+		final Cursor<T> cOut = Views.flatIterable( output ).cursor();
+		final FloatType tmp = new FloatType();
+
+		if ( converter == null )
+		{
+			for ( int i = 0; i < fused.length; ++i )
+				((Cursor<FloatType>)(Object)cOut).next().set( fused[ i ] );
+		}
+		else
+		{
+			for ( int i = 0; i < fused.length; ++i )
+			{
+				tmp.set( fused[ i ] );
+				converter.convert( tmp, cOut.next() );
+			}
+		}
+	}
+
+	/**
+	 * @return true if all present channels of a tile have the same (adjusted) registration and size as the reference channel
+	 */
+	@SuppressWarnings("rawtypes")
+	protected static boolean sameGeometry( final AffineTransform3D[] models, final RandomAccessibleInterval[] inputImgs, final int ref )
+	{
+		final double[] refModel = models[ ref ].getRowPackedCopy();
+		final long[] refMin = inputImgs[ ref ].minAsLongArray();
+		final long[] refDim = Intervals.dimensionsAsLongArray( inputImgs[ ref ] );
+
+		for ( int c = 0; c < models.length; ++c )
+		{
+			if ( models[ c ] == null || c == ref )
+				continue;
+
+			if ( !Arrays.equals( refModel, models[ c ].getRowPackedCopy() ) ||
+				 !Arrays.equals( refMin, inputImgs[ c ].minAsLongArray() ) ||
+				 !Arrays.equals( refDim, Intervals.dimensionsAsLongArray( inputImgs[ c ] ) ) )
+				return false;
+		}
+
+		return true;
+	}
+
+	protected static int firstPresent( final ViewId[] tile )
+	{
+		for ( int c = 0; c < tile.length; ++c )
+			if ( tile[ c ] != null )
+				return c;
+
+		throw new RuntimeException( "Tile without any view, this should not happen." );
+	}
+
+	/**
+	 * Finds the views that only differ by channel, i.e. same timepoint and same attributes except the channel.
+	 *
+	 * @param channelViewIds - the views of each channel
+	 * @param viewDescriptions - the viewdescriptions
+	 * @return all tiles, for each tile the view of every channel (or null if a channel has no view for it)
+	 */
+	public static ArrayList< ViewId[] > matchChannels(
+			final List< ? extends Collection< ? extends ViewId > > channelViewIds,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions )
+	{
+		final int numChannels = channelViewIds.size();
+		final TreeMap< String, ViewId[] > tiles = new TreeMap<>();
+
+		for ( int c = 0; c < numChannels; ++c )
+		{
+			for ( final ViewId viewId : channelViewIds.get( c ) )
+			{
+				final String key = tileKey( viewDescriptions.get( viewId ) );
+
+				final ViewId[] tile = tiles.computeIfAbsent( key, k -> new ViewId[ numChannels ] );
+
+				if ( tile[ c ] != null )
+					throw new RuntimeException( "Views " + tile[ c ] + " and " + viewId + " cannot be distinguished without the channel, cannot fuse channels jointly." );
+
+				tile[ c ] = viewId;
+			}
+		}
+
+		return new ArrayList<>( tiles.values() );
+	}
+
+	protected static String tileKey( final BasicViewDescription< ? > vd )
+	{
+		// sorted by attribute name
+		final TreeMap< String, Entity > attributes = new TreeMap<>( vd.getViewSetup().getAttributes() );
+
+		String key = "tp=" + vd.getTimePointId();
+
+		for ( final Map.Entry< String, Entity > attribute : attributes.entrySet() )
+			if ( !Channel.class.isInstance( attribute.getValue() ) )
+				key += ", " + attribute.getKey() + "=" + attribute.getValue().getId();
+
+		return key;
+	}
+
+	/**
+	 * @return a lazy 4d image (x,y,z,c) that contains the fusion of all channels, use Views.hyperSlice( img, 3, c ) to get a single channel
+	 */
+	public static final <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> init(
+			final Converter<FloatType, T> converter,
+			final BasicImgLoader imgloader,
+			final List< ? extends Collection< ? extends ViewId > > channelViewIds,
+			final Map< ViewId, ? extends AffineTransform3D > viewRegistrations,
+			final Map< ViewId, ? extends BasicViewDescription< ? > > viewDescriptions,
+			final boolean useBlending,
+			final boolean useContentBased,
+			final int interpolation,
+			final Map< ViewId, AffineModel1D > intensityAdjustments,
+			final Interval fusionInterval,
+			final T type,
+			final int[] blockSize )
+	{
+		if ( fusionInterval.numDimensions() != 3 || blockSize.length != 3 )
+			throw new RuntimeException( "LazyMultiChannelAffineFusion only supports 3d." );
+
+		final int numChannels = channelViewIds.size();
+
+		final LazyMultiChannelAffineFusion< T > lazyFusion =
+				new LazyMultiChannelAffineFusion<>(
+						converter,
+						imgloader,
+						channelViewIds,
+						viewRegistrations,
+						viewDescriptions,
+						useBlending,
+						useContentBased,
+						interpolation,
+						intensityAdjustments,
+						fusionInterval.minAsLongArray(),
+						type.createVariable() );
+
+		// all channels are in one block
+		final long[] min = new long[] { fusionInterval.min( 0 ), fusionInterval.min( 1 ), fusionInterval.min( 2 ), 0 };
+		final long[] max = new long[] { fusionInterval.max( 0 ), fusionInterval.max( 1 ), fusionInterval.max( 2 ), numChannels - 1 };
+		final int[] blockSize4d = new int[] { blockSize[ 0 ], blockSize[ 1 ], blockSize[ 2 ], numChannels };
+
+		return LazyFusionTools.initLazy( lazyFusion, new FinalInterval( min, max ), blockSize4d, type );
+	}
+}
@@ -0,0 +1,624 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import java.util.List;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
+
+/**
+ * Fuses an entire block of a {@link FusedRandomAccessibleInterval} at once instead of pixel-by-pixel.
+ * 
+ * For each view the weights and the image are sampled scanline-by-scanline into primitive float[]
+ * buffers (one view at a time, so the accessors stay monomorphic), and the weighted average is
+ * accumulated in plain array loops. Image data is only sampled where the weight is not zero and
+ * not at all if a view has no weight inside the block.
+ * 
+ * @author preibisch
+ */
+public class BlockFusion
+{
+	/**
+	 * Fuses the full interval of the {@link FusedRandomAccessibleInterval} into the target array
+	 * (flat iteration order, i.e. x is the fastest dimension).
+	 * 
+	 * @param fused - the virtual fusion construct
+	 * @param target - the output array, must have at least as many elements as the fused interval
+	 */
+	public static void fuse( final FusedRandomAccessibleInterval fused, final float[] target )
+	{
+		final Interval interval = fused.getInterval();
+		final int size = (int)Intervals.numElements( interval );
+
+		if ( target.length < size )
+			throw new RuntimeException( "Target array is too small: " + target.length + " < " + size );
+
+		final List< ? extends RandomAccessible< FloatType > > images = fused.getImages();
+		final List< ? extends RandomAccessible< FloatType > > weights = fused.getWeights();
+
+		if ( fused.getFusion() == Fusion.MAX )
+			fuseMax( images, interval, size, target );
+		else if ( fused instanceof FusedViewSamplersRandomAccessibleInterval && fused.getFusion() == Fusion.FIRST )
+			fuseFirst( ((FusedViewSamplersRandomAccessibleInterval)fused).getSamplers(), interval, size, target );
+		else if ( fused instanceof FusedViewSamplersRandomAccessibleInterval && fused.getFusion() == Fusion.CLOSEST )
+			fuseClosest( ((FusedViewSamplersRandomAccessibleInterval)fused).getSamplers(), interval, size, target );
+		else if ( fused instanceof FusedViewSamplersRandomAccessibleInterval )
+			fuseSamplers( ((FusedViewSamplersRandomAccessibleInterval)fused).getSamplers(), interval, size, target );
+		else if ( weights == null )
+			fuseSum( images, interval, size, target );
+		else
+			fuseAvg( images, weights, interval, size, target );
+	}
+
+	protected static void fuseAvg(
+			final List< ? extends RandomAccessible< FloatType > > images,
+			final List< ? extends RandomAccessible< FloatType > > weights,
+			final Interval interval,
+			final int size,
+			final float[] target )
+	{
+		final float[] i = new float[ size ];
+		final float[] w = new float[ size ];
+
+		final double[] sumI = new double[ size ];
+		final double[] sumW = new double[ size ];
+
+		for ( int j = 0; j < images.size(); ++j )
+		{
+			// no weight inside the block, no need to touch the image
+			if ( !sample( weights.get( j ), interval, w, null ) )
+				continue;
+
+			sample( images.get( j ), interval, i, w );
+
+			for ( int k = 0; k < size; ++k )
+			{
+				sumI[ k ] += i[ k ] * w[ k ];
+				sumW[ k ] += w[ k ];
+			}
+		}
+
+		normalize( sumI, sumW, target );
+	}
+
+	/**
+	 * Each view is sampled in a single pass, image value and weight are computed from the same
+	 * transformed coordinate and the image is only read where the weight is not zero. For every
+	 * scanline only the range that intersects the view is visited.
+	 */
+	protected static void fuseSamplers(
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers,
+			final Interval interval,
+			final int size,
+			final float[] target )
+	{
+		final double[] sumI = new double[ size ];
+		final double[] sumW = new double[ size ];
+
+		for ( final ViewSamplerRandomAccessible< ? > sampler : samplers )
+			accumulate( sampler, interval, sumI, sumW );
+
+		normalize( sumI, sumW, target );
+	}
+
+	/**
+	 * Every pixel takes the value of the first view (lowest index) that covers it. Views are only read
+	 * where no previous view is present, and not at all once the block is complete.
+	 */
+	protected static void fuseFirst(
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers,
+			final Interval interval,
+			final int size,
+			final float[] target )
+	{
+		final boolean[] filled = new boolean[ size ];
+		int numFilled = 0;
+
+		final int n = interval.numDimensions();
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+
+		final int sizeX = (int)interval.dimension( 0 );
+		final int numLines = size / sizeX;
+
+		final int[] range = new int[ 2 ];
+
+		for ( int k = 0; k < size; ++k )
+			target[ k ] = 0;
+
+		for ( final ViewSamplerRandomAccessible< ? > sampler : samplers )
+		{
+			if ( numFilled == size )
+				break;
+
+			final ViewSamplerRandomAccess< ? > s = sampler.sampler();
+			final long[] pos = min.clone();
+
+			for ( int line = 0; line < numLines; ++line )
+			{
+				s.setPosition( pos );
+				s.lineRange( sizeX, range );
+
+				if ( range[ 0 ] < range[ 1 ] )
+				{
+					s.move( range[ 0 ], 0 );
+
+					final int offset = line * sizeX;
+
+					for ( int x = range[ 0 ]; x < range[ 1 ]; ++x )
+					{
+						final int k = offset + x;
+
+						if ( !filled[ k ] && s.isInside() )
+						{
+							target[ k ] = s.get().get();
+							filled[ k ] = true;
+							++numFilled;
+						}
+
+						s.fwd( 0 );
+					}
+				}
+
+				nextLine( pos, min, max, n );
+			}
+		}
+	}
+
+	/**
+	 * Every pixel takes the value of the view whose center is closest. The owner of each pixel is determined
+	 * geometrically first, afterwards each view is only read where it is the owner.
+	 */
+	protected static void fuseClosest(
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers,
+			final Interval interval,
+			final int size,
+			final float[] target )
+	{
+		final int numViews = samplers.size();
+		final double[] dist = new double[ size ];
+		final int[] owner = new int[ size ];
+
+		for ( int k = 0; k < size; ++k )
+		{
+			dist[ k ] = Double.MAX_VALUE;
+			owner[ k ] = -1;
+			target[ k ] = 0;
+		}
+
+		final int n = interval.numDimensions();
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+
+		final int sizeX = (int)interval.dimension( 0 );
+		final int numLines = size / sizeX;
+
+		final int[] range = new int[ 2 ];
+		final ViewSamplerRandomAccess< ? >[] s = new ViewSamplerRandomAccess[ numViews ];
+
+		// which view is closest (no image data is read)
+		for ( int j = 0; j < numViews; ++j )
+		{
+			s[ j ] = samplers.get( j ).sampler();
+
+			final double[] center = samplers.get( j ).center();
+			final long[] pos = min.clone();
+
+			for ( int line = 0; line < numLines; ++line )
+			{
+				s[ j ].setPosition( pos );
+				s[ j ].lineRange( sizeX, range );
+
+				if ( range[ 0 ] < range[ 1 ] )
+				{
+					s[ j ].move( range[ 0 ], 0 );
+
+					// squared distance in y and z is constant along the line
+					double distYZ = 0;
+
+					for ( int d = 1; d < n; ++d )
+						distYZ += ( pos[ d ] - center[ d ] ) * ( pos[ d ] - center[ d ] );
+
+					final int offset = line * sizeX;
+
+					for ( int x = range[ 0 ]; x < range[ 1 ]; ++x )
+					{
+						if ( s[ j ].isInside() )
+						{
+							final int k = offset + x;
+							final double dx = pos[ 0 ] + x - center[ 0 ];
+							final double d = dx * dx + distYZ;
+
+							if ( d < dist[ k ] )
+							{
+								dist[ k ] = d;
+								owner[ k ] = j;
+							}
+						}
+
+						s[ j ].fwd( 0 );
+					}
+				}
+
+				nextLine( pos, min, max, n );
+			}
+		}
+
+		// read each view only where it is the closest one
+		for ( int j = 0; j < numViews; ++j )
+		{
+			final long[] pos = min.clone();
+
+			for ( int line = 0; line < numLines; ++line )
+			{
+				final int offset = line * sizeX;
+
+				// last x the sampler was positioned at in this line
+				int last = -1;
+
+				for ( int x = 0; x < sizeX; ++x )
+				{
+					if ( owner[ offset + x ] == j )
+					{
+						if ( last < 0 )
+						{
+							s[ j ].setPosition( pos );
+							s[ j ].move( x, 0 );
+						}
+						else
+						{
+							s[ j ].move( x - last, 0 );
+						}
+
+						last = x;
+
+						target[ offset + x ] = s[ j ].get().get();
+					}
+				}
+
+				nextLine( pos, min, max, n );
+			}
+		}
+	}
+
+	/**
+	 * Adds intensity*weight and weight of one view to the sums (flat iteration order of the interval).
+	 * 
+	 * @param sampler - the view
+	 * @param interval - the interval to fuse
+	 * @param sumI - sum of intensity*weight
+	 * @param sumW - sum of weights
+	 */
+	public static void accumulate(
+			final ViewSamplerRandomAccessible< ? > sampler,
+			final Interval interval,
+			final double[] sumI,
+			final double[] sumW )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+		final long[] pos = min.clone();
+
+		final int sizeX = (int)interval.dimension( 0 );
+		final int numLines = (int)( Intervals.numElements( interval ) / sizeX );
+
+		final int[] range = new int[ 2 ];
+		final ViewSamplerRandomAccess< ? > s = sampler.sampler();
+
+		for ( int line = 0; line < numLines; ++line )
+		{
+			s.setPosition( pos );
+
+			// only visit the part of the scanline that is covered by this view
+			s.lineRange( sizeX, range );
+
+			if ( range[ 0 ] < range[ 1 ] )
+			{
+				s.move( range[ 0 ], 0 );
+
+				final int offset = line * sizeX;
+
+				for ( int x = range[ 0 ]; x < range[ 1 ]; ++x )
+				{
+					final float w = s.weight();
+
+					if ( w != 0 )
+					{
+						final int k = offset + x;
+						sumI[ k ] += s.get().get() * w;
+						sumW[ k ] += w;
+					}
+
+					s.fwd( 0 );
+				}
+			}
+
+			nextLine( pos, min, max, n );
+		}
+	}
+
+	/**
+	 * Adds intensity*weight and weight of several views that share the same transformation and weights (e.g. the
+	 * channels of one tile) to the respective sums. The weight is computed only once per pixel from the weightSampler.
+	 * 
+	 * @param weightSampler - computes the weights for all views
+	 * @param samplers - the views (entries can be null), only their image values are used
+	 * @param interval - the interval to fuse
+	 * @param sumI - sum of intensity*weight for each view
+	 * @param sumW - sum of weights for each view
+	 */
+	public static void accumulateShared(
+			final ViewSamplerRandomAccessible< ? > weightSampler,
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers,
+			final Interval interval,
+			final double[][] sumI,
+			final double[][] sumW )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+		final long[] pos = min.clone();
+
+		final int sizeX = (int)interval.dimension( 0 );
+		final int numLines = (int)( Intervals.numElements( interval ) / sizeX );
+
+		final int[] range = new int[ 2 ];
+		final ViewSamplerRandomAccess< ? > ws = weightSampler.sampler();
+
+		final int numViews = samplers.size();
+		final ViewSamplerRandomAccess< ? >[] s = new ViewSamplerRandomAccess[ numViews ];
+
+		for ( int c = 0; c < numViews; ++c )
+			if ( samplers.get( c ) != null )
+				s[ c ] = samplers.get( c ).sampler();
+
+		for ( int line = 0; line < numLines; ++line )
+		{
+			ws.setPosition( pos );
+			ws.lineRange( sizeX, range );
+
+			if ( range[ 0 ] < range[ 1 ] )
+			{
+				ws.move( range[ 0 ], 0 );
+
+				for ( int c = 0; c < numViews; ++c )
+				{
+					if ( s[ c ] != null )
+					{
+						s[ c ].setPosition( pos );
+						s[ c ].move( range[ 0 ], 0 );
+					}
+				}
+
+				final int offset = line * sizeX;
+
+				for ( int x = range[ 0 ]; x < range[ 1 ]; ++x )
+				{
+					final float w = ws.weight();
+
+					if ( w != 0 )
+					{
+						final int k = offset + x;
+
+						for ( int c = 0; c < numViews; ++c )
+						{
+							if ( s[ c ] != null )
+							{
+								sumI[ c ][ k ] += s[ c ].get().get() * w;
+								sumW[ c ][ k ] += w;
+							}
+						}
+					}
+
+					ws.fwd( 0 );
+
+					for ( int c = 0; c < numViews; ++c )
+						if ( s[ c ] != null )
+							s[ c ].fwd( 0 );
+				}
+			}
+
+			nextLine( pos, min, max, n );
+		}
+	}
+
+	/**
+	 * Computes the weighted average from the sums, 0 where no weight is present.
+	 * 
+	 * @param sumI - sum of intensity*weight
+	 * @param sumW - sum of weights
+	 * @param target - the fused values
+	 */
+	public static void normalize( final double[] sumI, final double[] sumW, final float[] target )
+	{
+		for ( int k = 0; k < sumI.length; ++k )
+			target[ k ] = sumW[ k ] > 0 ? (float)( sumI[ k ] / sumW[ k ] ) : 0;
+	}
+
+	/**
+	 * Scales [min, max] to [0, 65535], clamps and rounds (same as RealUnsignedShortConverter).
+	 * 
+	 * @param fused - the fused values
+	 * @param target - the unsigned short values
+	 * @param min - intensity mapped to 0
+	 * @param max - intensity mapped to 65535
+	 */
+	public static void toUnsignedShort( final float[] fused, final short[] target, final double min, final double max )
+	{
+		// same order of operations as the converter, so values that land on .5 round the same way
+		final double range = max - min;
+
+		for ( int k = 0; k < fused.length; ++k )
+		{
+			final double v = ( fused[ k ] - min ) / range * 65535.0;
+
+			if ( v <= 0 )
+				target[ k ] = 0;
+			else if ( v >= 65535 )
+				target[ k ] = (short)65535;
+			else
+				target[ k ] = (short)(int)( v + 0.5 );
+		}
+	}
+
+	/**
+	 * Scales [min, max] to [0, 255], clamps and rounds (same as RealUnsignedByteConverter).
+	 * 
+	 * @param fused - the fused values
+	 * @param target - the unsigned byte values
+	 * @param min - intensity mapped to 0
+	 * @param max - intensity mapped to 255
+	 */
+	public static void toUnsignedByte( final float[] fused, final byte[] target, final double min, final double max )
+	{
+		final double range = max - min;
+
+		for ( int k = 0; k < fused.length; ++k )
+		{
+			final double v = ( fused[ k ] - min ) / range * 255.0;
+
+			if ( v <= 0 )
+				target[ k ] = 0;
+			else if ( v >= 255 )
+				target[ k ] = (byte)255;
+			else
+				target[ k ] = (byte)(int)( v + 0.5 );
+		}
+	}
+
+	/**
+	 * Moves a position to the start of the next scanline (dimension 0 stays at min).
+	 */
+	protected static void nextLine( final long[] pos, final long[] min, final long[] max, final int n )
+	{
+		for ( int d = 1; d < n; ++d )
+		{
+			if ( ++pos[ d ] <= max[ d ] )
+				break;
+
+			pos[ d ] = min[ d ];
+		}
+	}
+
+	protected static void fuseSum(
+			final List< ? extends RandomAccessible< FloatType > > images,
+			final Interval interval,
+			final int size,
+			final float[] target )
+	{
+		final float[] i = new float[ size ];
+		final double[] sumI = new double[ size ];
+
+		for ( int j = 0; j < images.size(); ++j )
+		{
+			sample( images.get( j ), interval, i, null );
+
+			for ( int k = 0; k < size; ++k )
+				sumI[ k ] += i[ k ];
+		}
+
+		for ( int k = 0; k < size; ++k )
+			target[ k ] = (float)sumI[ k ];
+	}
+
+	protected static void fuseMax(
+			final List< ? extends RandomAccessible< FloatType > > images,
+			final Interval interval,
+			final int size,
+			final float[] target )
+	{
+		final float[] i = new float[ size ];
+
+		for ( int k = 0; k < size; ++k )
+			target[ k ] = 0;
+
+		for ( int j = 0; j < images.size(); ++j )
+		{
+			sample( images.get( j ), interval, i, null );
+
+			for ( int k = 0; k < size; ++k )
+				target[ k ] = Math.max( target[ k ], i[ k ] );
+		}
+	}
+
+	/**
+	 * Samples a RandomAccessible scanline by scanline into a float array (flat iteration order). The
+	 * RandomAccess is positioned once per line and then only moved forward along x.
+	 * 
+	 * @param source - what to sample
+	 * @param interval - where to sample
+	 * @param target - the array to write to
+	 * @param mask - if not null, only pixels where mask != 0 are sampled, all others are set to 0
+	 * @return true if any sampled value is not zero
+	 */
+	public static boolean sample(
+			final RandomAccessible< FloatType > source,
+			final Interval interval,
+			final float[] target,
+			final float[] mask )
+	{
+		final int n = interval.numDimensions();
+		final long[] min = interval.minAsLongArray();
+		final long[] max = interval.maxAsLongArray();
+		final long[] pos = min.clone();
+
+		final int sizeX = (int)interval.dimension( 0 );
+		final int numLines = (int)( Intervals.numElements( interval ) / sizeX );
+
+		final RandomAccess< FloatType > ra = source.randomAccess( interval );
+
+		boolean nonZero = false;
+		int k = 0;
+
+		for ( int line = 0; line < numLines; ++line )
+		{
+			ra.setPosition( pos );
+
+			for ( int x = 0; x < sizeX; ++x, ++k )
+			{
+				if ( mask == null || mask[ k ] != 0 )
+				{
+					final float v = ra.get().get();
+					target[ k ] = v;
+					nonZero |= ( v != 0 );
+				}
+				else
+				{
+					target[ k ] = 0;
+				}
+
+				ra.fwd( 0 );
+			}
+
+			nextLine( pos, min, max, n );
+		}
+
+		return nonZero;
+	}
+}
@@ -34,7 +34,11 @@ import net.imglib2.type.numeric.real.FloatType;
 
 public class FusedRandomAccessibleInterval implements RandomAccessibleInterval< FloatType >
 {
-	public enum Fusion {AVG, MAX};
+	/**
+	 * AVG: weighted average, MAX: maximum intensity,
+	 * FIRST: only the first view (lowest index) that covers a pixel, CLOSEST: only the view whose center is closest to a pixel
+	 */
+	public enum Fusion {AVG, MAX, FIRST, CLOSEST};
 
 	final int n;
 
@@ -0,0 +1,216 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import java.util.List;
+
+import net.imglib2.AbstractLocalizableInt;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Weighted average of all views using {@link ViewSamplerRandomAccess}, which return image value and weight
+ * from one transformed coordinate.
+ * 
+ * @author preibisch
+ */
+public class FusedViewSamplersRandomAccess extends AbstractLocalizableInt implements RandomAccess< FloatType >
+{
+	final List< ? extends ViewSamplerRandomAccessible< ? > > samplers;
+
+	final protected int numImages;
+	final protected ViewSamplerRandomAccess< ? >[] s;
+
+	final protected FloatType value = new FloatType();
+
+	public FusedViewSamplersRandomAccess(
+			final int n,
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers )
+	{
+		super( n );
+
+		this.samplers = samplers;
+
+		this.numImages = samplers.size();
+
+		this.s = new ViewSamplerRandomAccess[ numImages ];
+
+		for ( int j = 0; j < numImages; ++j )
+			this.s[ j ] = samplers.get( j ).sampler();
+	}
+
+	@Override
+	public FloatType get()
+	{
+		double sumI = 0;
+		double sumW = 0;
+
+		for ( int j = 0; j < numImages; ++j )
+		{
+			final double weight = s[ j ].weight();
+
+			if ( weight == 0 )
+				continue;
+
+			final double intensity = s[ j ].get().get();
+
+			sumI += intensity * weight;
+			sumW += weight;
+		}
+
+		if ( sumW > 0 )
+			value.set( (float)( sumI / sumW ) );
+		else
+			value.set( 0 );
+
+		return value;
+	}
+
+	@Override
+	public FusedViewSamplersRandomAccess copy()
+	{
+		return copyRandomAccess();
+	}
+
+	@Override
+	public FusedViewSamplersRandomAccess copyRandomAccess()
+	{
+		final FusedViewSamplersRandomAccess r = new FusedViewSamplersRandomAccess( n, samplers );
+		r.setPosition( this );
+		return r;
+	}
+
+	@Override
+	public void fwd( final int d )
+	{
+		++position[ d ];
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].fwd( d );
+	}
+
+	@Override
+	public void bck( final int d )
+	{
+		--position[ d ];
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].bck( d );
+	}
+
+	@Override
+	public void move( final int distance, final int d )
+	{
+		position[ d ] += distance;
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].move( distance, d );
+	}
+
+	@Override
+	public void move( final long distance, final int d )
+	{
+		position[ d ] += distance;
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].move( distance, d );
+	}
+
+	@Override
+	public void move( final Localizable localizable )
+	{
+		for ( int d = 0; d < n; ++d )
+			position[ d ] += localizable.getIntPosition( d );
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].move( localizable );
+	}
+
+	@Override
+	public void move( final int[] distance )
+	{
+		for ( int d = 0; d < n; ++d )
+			position[ d ] += distance[ d ];
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].move( distance );
+	}
+
+	@Override
+	public void move( final long[] distance )
+	{
+		for ( int d = 0; d < n; ++d )
+			position[ d ] += distance[ d ];
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].move( distance );
+	}
+
+	@Override
+	public void setPosition( final Localizable localizable )
+	{
+		localizable.localize( position );
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].setPosition( localizable );
+	}
+
+	@Override
+	public void setPosition( final int[] pos )
+	{
+		for ( int d = 0; d < n; ++d )
+			position[ d ] = pos[ d ];
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].setPosition( pos );
+	}
+
+	@Override
+	public void setPosition( final long[] pos )
+	{
+		for ( int d = 0; d < n; ++d )
+			position[ d ] = ( int ) pos[ d ];
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].setPosition( pos );
+	}
+
+	@Override
+	public void setPosition( final int pos, final int d )
+	{
+		position[ d ] = pos;
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].setPosition( pos, d );
+	}
+
+	@Override
+	public void setPosition( final long pos, final int d )
+	{
+		position[ d ] = ( int ) pos;
+
+		for ( int j = 0; j < numImages; ++j )
+			s[ j ].setPosition( pos, d );
+	}
+}
@@ -0,0 +1,62 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import java.util.List;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * A {@link FusedRandomAccessibleInterval} where image and weight of each view are computed by a
+ * {@link ViewSamplerRandomAccessible}, i.e. with one coordinate transformation per view and pixel.
+ * 
+ * @author preibisch
+ */
+public class FusedViewSamplersRandomAccessibleInterval extends FusedRandomAccessibleInterval
+{
+	final List< ? extends ViewSamplerRandomAccessible< ? > > samplers;
+
+	public FusedViewSamplersRandomAccessibleInterval(
+			final Interval interval,
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers )
+	{
+		super( interval, samplers );
+
+		this.samplers = samplers;
+	}
+
+	public List< ? extends ViewSamplerRandomAccessible< ? > > getSamplers() { return samplers; }
+
+	@Override
+	public RandomAccess< FloatType > randomAccess()
+	{
+		if ( fusion == Fusion.AVG )
+			return new FusedViewSamplersRandomAccess( n, samplers );
+		else if ( fusion == Fusion.FIRST || fusion == Fusion.CLOSEST )
+			return new FusedViewSamplersSingleRandomAccess( n, samplers, fusion );
+		else
+			return super.randomAccess();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import java.util.List;
+
+import net.imglib2.type.numeric.real.FloatType;
+import net.preibisch.mvrecon.process.fusion.transformed.FusedRandomAccessibleInterval.Fusion;
+
+/**
+ * Takes the value of exactly one view per pixel, either the first one (lowest index) that covers it
+ * ({@link Fusion#FIRST}) or the one whose center is closest ({@link Fusion#CLOSEST}). Only the image
+ * of that view is read, no weights are computed.
+ * 
+ * @author preibisch
+ */
+public class FusedViewSamplersSingleRandomAccess extends FusedViewSamplersRandomAccess
+{
+	final Fusion fusion;
+	final double[][] centers;
+
+	public FusedViewSamplersSingleRandomAccess(
+			final int n,
+			final List< ? extends ViewSamplerRandomAccessible< ? > > samplers,
+			final Fusion fusion )
+	{
+		super( n, samplers );
+
+		this.fusion = fusion;
+		this.centers = new double[ numImages ][];
+
+		for ( int j = 0; j < numImages; ++j )
+			this.centers[ j ] = samplers.get( j ).center();
+	}
+
+	@Override
+	public FloatType get()
+	{
+		int view = -1;
+
+		if ( fusion == Fusion.FIRST )
+		{
+			for ( int j = 0; j < numImages && view < 0; ++j )
+				if ( s[ j ].isInside() )
+					view = j;
+		}
+		else
+		{
+			double minDist = Double.MAX_VALUE;
+
+			for ( int j = 0; j < numImages; ++j )
+			{
+				if ( !s[ j ].isInside() )
+					continue;
+
+				final double dist = distance( position, centers[ j ] );
+
+				if ( dist < minDist )
+				{
+					minDist = dist;
+					view = j;
+				}
+			}
+		}
+
+		if ( view >= 0 )
+			value.set( s[ view ].get().get() );
+		else
+			value.set( 0 );
+
+		return value;
+	}
+
+	/**
+	 * @return squared distance between a pixel and a view center
+	 */
+	protected static double distance( final int[] position, final double[] center )
+	{
+		double dist = 0;
+
+		for ( int d = 0; d < center.length; ++d )
+		{
+			final double diff = position[ d ] - center[ d ];
+			dist += diff * diff;
+		}
+
+		return dist;
+	}
+
+	@Override
+	public FusedViewSamplersSingleRandomAccess copy()
+	{
+		return copyRandomAccess();
+	}
+
+	@Override
+	public FusedViewSamplersSingleRandomAccess copyRandomAccess()
+	{
+		final FusedViewSamplersSingleRandomAccess r = new FusedViewSamplersSingleRandomAccess( n, samplers, fusion );
+		r.setPosition( this );
+		return r;
+	}
+}
@@ -0,0 +1,242 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Keeps track of the input (pixel) coordinate that corresponds to an integer output position
+ * under the inverse of an {@link AffineTransform3D}. Since the transform is linear, moving the
+ * output position by one pixel along dimension d always moves the input coordinate by the same
+ * vector (the d-th column of the inverse matrix), so fwd/bck/move only add precomputed deltas.
+ * A full matrix multiplication is only done when the position is set.
+ *
+ * @author preibisch
+ */
+public class InverseAffineStepper
+{
+	/*
+	 * Inverse coefficients of the transformation matrix
+	 */
+	final double i00, i01, i02, i03, i10, i11, i12, i13, i20, i21, i22, i23;
+
+	final int offsetX, offsetY, offsetZ;
+
+	/**
+	 * the current input coordinate
+	 */
+	final double[] source;
+
+	public InverseAffineStepper( final AffineTransform3D transform, final long[] offset )
+	{
+		this( transform, (int)offset[ 0 ], (int)offset[ 1 ], (int)offset[ 2 ] );
+	}
+
+	public InverseAffineStepper( final AffineTransform3D transform, final int[] offset )
+	{
+		this( transform, offset[ 0 ], offset[ 1 ], offset[ 2 ] );
+	}
+
+	public InverseAffineStepper( final AffineTransform3D transform, final int offsetX, final int offsetY, final int offsetZ )
+	{
+		final double[] imatrix = transform.inverse().getRowPackedCopy();
+
+		this.i00 = imatrix[ 0 ];
+		this.i01 = imatrix[ 1 ];
+		this.i02 = imatrix[ 2 ];
+		this.i03 = imatrix[ 3 ];
+
+		this.i10 = imatrix[ 4 ];
+		this.i11 = imatrix[ 5 ];
+		this.i12 = imatrix[ 6 ];
+		this.i13 = imatrix[ 7 ];
+
+		this.i20 = imatrix[ 8 ];
+		this.i21 = imatrix[ 9 ];
+		this.i22 = imatrix[ 10 ];
+		this.i23 = imatrix[ 11 ];
+
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.offsetZ = offsetZ;
+
+		this.source = new double[ 3 ];
+	}
+
+	/**
+	 * @return the current input coordinate (do not modify)
+	 */
+	public double[] source() { return source; }
+
+	public double getX() { return source[ 0 ]; }
+	public double getY() { return source[ 1 ]; }
+	public double getZ() { return source[ 2 ]; }
+
+	/**
+	 * Recomputes the input coordinate from scratch (full matrix multiplication).
+	 *
+	 * @param position - the output position (without the offset)
+	 */
+	public void setPosition( final int[] position )
+	{
+		final double t0 = position[ 0 ] + offsetX;
+		final double t1 = position[ 1 ] + offsetY;
+		final double t2 = position[ 2 ] + offsetZ;
+
+		source[ 0 ] = t0 * i00 + t1 * i01 + t2 * i02 + i03;
+		source[ 1 ] = t0 * i10 + t1 * i11 + t2 * i12 + i13;
+		source[ 2 ] = t0 * i20 + t1 * i21 + t2 * i22 + i23;
+	}
+
+	public void fwd( final int d )
+	{
+		if ( d == 0 )
+		{
+			source[ 0 ] += i00;
+			source[ 1 ] += i10;
+			source[ 2 ] += i20;
+		}
+		else if ( d == 1 )
+		{
+			source[ 0 ] += i01;
+			source[ 1 ] += i11;
+			source[ 2 ] += i21;
+		}
+		else
+		{
+			source[ 0 ] += i02;
+			source[ 1 ] += i12;
+			source[ 2 ] += i22;
+		}
+	}
+
+	public void bck( final int d )
+	{
+		if ( d == 0 )
+		{
+			source[ 0 ] -= i00;
+			source[ 1 ] -= i10;
+			source[ 2 ] -= i20;
+		}
+		else if ( d == 1 )
+		{
+			source[ 0 ] -= i01;
+			source[ 1 ] -= i11;
+			source[ 2 ] -= i21;
+		}
+		else
+		{
+			source[ 0 ] -= i02;
+			source[ 1 ] -= i12;
+			source[ 2 ] -= i22;
+		}
+	}
+
+	public void move( final long distance, final int d )
+	{
+		if ( d == 0 )
+		{
+			source[ 0 ] += distance * i00;
+			source[ 1 ] += distance * i10;
+			source[ 2 ] += distance * i20;
+		}
+		else if ( d == 1 )
+		{
+			source[ 0 ] += distance * i01;
+			source[ 1 ] += distance * i11;
+			source[ 2 ] += distance * i21;
+		}
+		else
+		{
+			source[ 0 ] += distance * i02;
+			source[ 1 ] += distance * i12;
+			source[ 2 ] += distance * i22;
+		}
+	}
+
+	public void move( final long dx, final long dy, final long dz )
+	{
+		source[ 0 ] += dx * i00 + dy * i01 + dz * i02;
+		source[ 1 ] += dx * i10 + dy * i11 + dz * i12;
+		source[ 2 ] += dx * i20 + dy * i21 + dz * i22;
+	}
+
+	/**
+	 * Intersects the scanline that starts at the current position and runs along x (output dimension 0)
+	 * analytically with an axis-aligned box in input coordinates, i.e. computes the range of steps
+	 * [start, end) for which the input coordinate lies within [min, max] in every dimension.
+	 *
+	 * @param length - the length of the scanline
+	 * @param minX - the minimum of the box in input coordinates (x)
+	 * @param minY - the minimum of the box in input coordinates (y)
+	 * @param minZ - the minimum of the box in input coordinates (z)
+	 * @param maxX - the maximum of the box in input coordinates (x)
+	 * @param maxY - the maximum of the box in input coordinates (y)
+	 * @param maxZ - the maximum of the box in input coordinates (z)
+	 * @param range - range[ 0 ] = start (inclusive), range[ 1 ] = end (exclusive), start &gt;= end if there is no intersection
+	 */
+	public void clipLine(
+			final int length,
+			final double minX, final double minY, final double minZ,
+			final double maxX, final double maxY, final double maxZ,
+			final int[] range )
+	{
+		range[ 0 ] = 0;
+		range[ 1 ] = length;
+
+		clip( source[ 0 ], i00, minX, maxX, range );
+		clip( source[ 1 ], i10, minY, maxY, range );
+		clip( source[ 2 ], i20, minZ, maxZ, range );
+	}
+
+	private static void clip( final double t0, final double delta, final double min, final double max, final int[] range )
+	{
+		if ( range[ 0 ] >= range[ 1 ] )
+			return;
+
+		if ( delta == 0 )
+		{
+			if ( t0 < min || t0 > max )
+				range[ 1 ] = range[ 0 ];
+
+			return;
+		}
+
+		double lo = ( min - t0 ) / delta;
+		double hi = ( max - t0 ) / delta;
+
+		if ( delta < 0 )
+		{
+			final double tmp = lo;
+			lo = hi;
+			hi = tmp;
+		}
+
+		// clamp before converting to int, the line might be (almost) parallel to the border
+		lo = Math.max( lo, range[ 0 ] );
+		hi = Math.min( hi, range[ 1 ] );
+
+		range[ 0 ] = Math.max( range[ 0 ], (int)Math.ceil( lo ) );
+		range[ 1 ] = Math.min( range[ 1 ], (int)Math.floor( hi ) + 1 );
+	}
+}
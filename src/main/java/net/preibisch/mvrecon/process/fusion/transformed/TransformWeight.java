@@ -47,6 +47,30 @@ public class TransformWeight
 			final float scale,
 			final AffineTransform3D transform,
 			final Interval boundingBox )
+	{
+		return transformWeight( contentBased( inputImg, sigma1, sigma2, blocksize, scale, -1 ), transform, boundingBox );
+	}
+
+	/**
+	 * Creates the (untransformed) content-based weights of an input image, which is always 3d (2d images are
+	 * computed in 2d and a third dimension is added).
+	 *
+	 * @param inputImg - the input image
+	 * @param sigma1 - first sigma
+	 * @param sigma2 - second sigma
+	 * @param blocksize - the blocksize for the lazy computation and for caching
+	 * @param scale - scaling of the weights
+	 * @param maxCacheSize - if &gt; 0 the entropy image is cached in a bounded cache of this many blocks, otherwise it is only virtual
+	 * @param <T> - type
+	 * @return the content-based weights in the coordinate system of the input image
+	 */
+	public static < T extends RealType< T > > RealRandomAccessible< FloatType > contentBased(
+			final RandomAccessibleInterval< T > inputImg,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int[] blocksize,
+			final float scale,
+			final long maxCacheSize )
 	{
 		if ( inputImg.dimension( 2 ) == 1 && inputImg.min( 2 ) == 0 )
 		{
@@ -66,16 +90,14 @@ public class TransformWeight
 							sigma1_2d,
 							sigma2_2d,
 							blocksize_2d,
-							scale );
+							scale,
+							maxCacheSize );
 
-			return transformWeight( RealViews.addDimension( content ), transform, boundingBox );
+			return RealViews.addDimension( content );
 		}
 		else
 		{
-			final RealRandomAccessible< FloatType > entropyRRA =
-					new ContentBasedRealRandomAccessible( inputImg, sigma1, sigma2, blocksize, scale );
-
-			return transformWeight( entropyRRA, transform, boundingBox );
+			return new ContentBasedRealRandomAccessible( inputImg, sigma1, sigma2, blocksize, scale, maxCacheSize );
 		}
 	}
 
@@ -85,6 +107,23 @@ public class TransformWeight
 			final float[] blending,
 			final AffineTransform3D transform,
 			final Interval boundingBox )
+	{
+		return transformWeight( blending( inputImgInterval, border, blending ), transform, boundingBox );
+	}
+
+	/**
+	 * Creates the (untransformed) blending weights of an input image, which is always 3d (2d images are
+	 * computed in 2d and a third dimension is added).
+	 *
+	 * @param inputImgInterval - the interval of the input image
+	 * @param border - the border (no weight)
+	 * @param blending - the blending range
+	 * @return the blending weights in the coordinate system of the input image
+	 */
+	public static RealRandomAccessible< FloatType > blending(
+			final Interval inputImgInterval,
+			final float[] border,
+			final float[] blending )
 	{
 		if ( inputImgInterval.dimension( 2 ) == 1 && inputImgInterval.min( 2 ) == 0 )
 		{
@@ -95,11 +134,11 @@ public class TransformWeight
 
 			final BlendingRealRandomAccessible blend = new BlendingRealRandomAccessible( new FinalInterval( min, max ), border2d, blending2d );
 
-			return transformWeight( RealViews.addDimension( blend ), transform, boundingBox );
+			return RealViews.addDimension( blend );
 		}
 		else
 		{
-			return transformWeight( new BlendingRealRandomAccessible( new FinalInterval( inputImgInterval ), border, blending ), transform, boundingBox );
+			return new BlendingRealRandomAccessible( new FinalInterval( inputImgInterval ), border, blending );
 		}
 	}
 
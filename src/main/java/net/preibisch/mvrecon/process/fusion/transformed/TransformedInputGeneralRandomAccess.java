@@ -51,7 +51,7 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory;
 	final AffineTransform3D transform;
 	final long[] offset;
-	final float[] s, t;
+	final InverseAffineStepper stepper;
 	final FloatType v;
 
 	final RealRandomAccess< FloatType > ir;
@@ -86,8 +86,8 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 		this.interpolatorFactory = interpolatorFactory;
 		this.transform = transform;
 		this.offset = offset;
-		this.s = new float[ n ];
-		this.t = new float[ n ];
+		this.stepper = new InverseAffineStepper( transform, offset );
+		this.stepper.setPosition( position );
 		this.v = new FloatType();
 
 		// extend input image and convert to floats
@@ -113,15 +113,8 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	@Override
 	public FloatType get()
 	{
-		// go from PSI(Decon)_image local coordinate system to world coordinate system
-		s[ 0 ] = position[ 0 ] + offsetX;
-		s[ 1 ] = position[ 1 ] + offsetY;
-		s[ 2 ] = position[ 2 ] + offsetZ;
-
-		// go from world coordinate system to local coordinate system of input image (pixel coordinates)
-		transform.applyInverse( t, s );
-
-		ir.setPosition( t );
+		// local coordinate system of input image (pixel coordinates), updated when moving
+		ir.setPosition( stepper.source() );
 		return ir.get();
 	}
 
@@ -140,22 +133,40 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	}
 
 	@Override
-	public void fwd( final int d ) { ++position[ d ]; }
+	public void fwd( final int d )
+	{
+		++position[ d ];
+		stepper.fwd( d );
+	}
 
 	@Override
-	public void bck( final int d ) { --position[ d ]; }
+	public void bck( final int d )
+	{
+		--position[ d ];
+		stepper.bck( d );
+	}
 
 	@Override
-	public void move( final int distance, final int d ) { position[ d ] += distance; }
+	public void move( final int distance, final int d )
+	{
+		position[ d ] += distance;
+		stepper.move( distance, d );
+	}
 
 	@Override
-	public void move( final long distance, final int d ) { position[ d ] += distance; }
+	public void move( final long distance, final int d )
+	{
+		position[ d ] += distance;
+		stepper.move( distance, d );
+	}
 
 	@Override
 	public void move( final Localizable localizable )
 	{
 		for ( int d = 0; d < n; ++d )
 			position[ d ] += localizable.getIntPosition( d );
+
+		stepper.move( localizable.getLongPosition( 0 ), localizable.getLongPosition( 1 ), localizable.getLongPosition( 2 ) );
 	}
 
 	@Override
@@ -163,6 +174,8 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	{
 		for ( int d = 0; d < n; ++d )
 			position[ d ] += distance[ d ];
+
+		stepper.move( distance[ 0 ], distance[ 1 ], distance[ 2 ] );
 	}
 
 	@Override
@@ -170,12 +183,15 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	{
 		for ( int d = 0; d < n; ++d )
 			position[ d ] += distance[ d ];
+
+		stepper.move( distance[ 0 ], distance[ 1 ], distance[ 2 ] );
 	}
 
 	@Override
 	public void setPosition( final Localizable localizable )
 	{
 		localizable.localize( position );
+		stepper.setPosition( position );
 	}
 
 	@Override
@@ -183,6 +199,8 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	{
 		for ( int d = 0; d < n; ++d )
 			position[ d ] = pos[ d ];
+
+		stepper.setPosition( position );
 	}
 
 	@Override
@@ -190,17 +208,21 @@ public class TransformedInputGeneralRandomAccess< T extends RealType< T > > exte
 	{
 		for ( int d = 0; d < n; ++d )
 			position[ d ] = ( int ) pos[ d ];
+
+		stepper.setPosition( position );
 	}
 
 	@Override
 	public void setPosition( final int pos, final int d )
 	{
 		position[ d ] = pos;
+		stepper.setPosition( position );
 	}
 
 	@Override
 	public void setPosition( final long pos, final int d )
 	{
 		position[ d ] = ( int ) pos;
+		stepper.setPosition( position );
 	}
 }
@@ -22,6 +22,7 @@
  */
 package net.preibisch.mvrecon.process.fusion.transformed;
 
+import net.imglib2.Localizable;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.interpolation.InterpolatorFactory;
@@ -34,12 +35,15 @@ import net.imglib2.type.numeric.real.FloatType;
  * and Linear Interpolation. It will only interpolate from the actual data (no outofbounds) to avoid artifacts at the edges
  * and return 0 outside by default (can be changed).
  * 
+ * The input coordinate is updated incrementally when moving (see {@link InverseAffineStepper}),
+ * a full transformation is only computed when setting the position.
+ * 
  * @author preibisch
  */
 public class TransformedInputRandomAccess< T extends RealType< T > > extends AbstractTransformedImgRandomAccess< T >
 {
 	final AffineTransform3D transform;
-	final double[] s, t;
+	final InverseAffineStepper stepper;
 
 	public TransformedInputRandomAccess(
 			final RandomAccessibleInterval< T > img, // from ImgLoader
@@ -53,20 +57,15 @@ public class TransformedInputRandomAccess< T extends RealType< T > > extends Abs
 		super( img, interpolatorFactory, hasMinValue, minValue, outside, offset );
 
 		this.transform = transform;
-		this.s = new double[ n ];
-		this.t = new double[ n ];
+		this.stepper = new InverseAffineStepper( transform, offset );
+		this.stepper.setPosition( position );
 	}
 
 	@Override
 	public FloatType get()
 	{
-		// go from PSI(Decon)_image local coordinate system to world coordinate system
-		s[ 0 ] = position[ 0 ] + offsetX;
-		s[ 1 ] = position[ 1 ] + offsetY;
-		s[ 2 ] = position[ 2 ] + offsetZ;
-
-		// go from world coordinate system to local coordinate system of input image (pixel coordinates)
-		transform.applyInverse( t, s );
+		// local coordinate system of input image (pixel coordinates), updated when moving
+		final double[] t = stepper.source();
 
 		// check if position t is inside of the input image (pixel coordinates)
 		if ( intersectsLinearInterpolation( t[ 0 ], t[ 1 ], t[ 2 ], imgMinX, imgMinY, imgMinZ, imgMaxX, imgMaxY, imgMaxZ ) )
@@ -95,4 +94,88 @@ public class TransformedInputRandomAccess< T extends RealType< T > > extends Abs
 		r.setPosition( this );
 		return r;
 	}
+
+	@Override
+	public void fwd( final int d )
+	{
+		++position[ d ];
+		stepper.fwd( d );
+	}
+
+	@Override
+	public void bck( final int d )
+	{
+		--position[ d ];
+		stepper.bck( d );
+	}
+
+	@Override
+	public void move( final int distance, final int d )
+	{
+		position[ d ] += distance;
+		stepper.move( distance, d );
+	}
+
+	@Override
+	public void move( final long distance, final int d )
+	{
+		position[ d ] += distance;
+		stepper.move( distance, d );
+	}
+
+	@Override
+	public void move( final Localizable localizable )
+	{
+		super.move( localizable );
+		stepper.move( localizable.getLongPosition( 0 ), localizable.getLongPosition( 1 ), localizable.getLongPosition( 2 ) );
+	}
+
+	@Override
+	public void move( final int[] distance )
+	{
+		super.move( distance );
+		stepper.move( distance[ 0 ], distance[ 1 ], distance[ 2 ] );
+	}
+
+	@Override
+	public void move( final long[] distance )
+	{
+		super.move( distance );
+		stepper.move( distance[ 0 ], distance[ 1 ], distance[ 2 ] );
+	}
+
+	@Override
+	public void setPosition( final Localizable localizable )
+	{
+		super.setPosition( localizable );
+		stepper.setPosition( position );
+	}
+
+	@Override
+	public void setPosition( final int[] pos )
+	{
+		super.setPosition( pos );
+		stepper.setPosition( position );
+	}
+
+	@Override
+	public void setPosition( final long[] pos )
+	{
+		super.setPosition( pos );
+		stepper.setPosition( position );
+	}
+
+	@Override
+	public void setPosition( final int pos, final int d )
+	{
+		position[ d ] = pos;
+		stepper.setPosition( position );
+	}
+
+	@Override
+	public void setPosition( final long pos, final int d )
+	{
+		position[ d ] = ( int ) pos;
+		stepper.setPosition( position );
+	}
 }
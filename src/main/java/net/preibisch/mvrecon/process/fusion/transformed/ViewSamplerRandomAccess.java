@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import java.util.List;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Samples image value and weight of one transformed view from the same input coordinate, i.e. the
+ * coordinate is transformed (stepped) only once per output pixel instead of once for the image and
+ * once for every weight. get() returns the image value, weight() the product of all weights (or 1
+ * inside the image if there are no weights).
+ * 
+ * @author preibisch
+ */
+public class ViewSamplerRandomAccess< T extends RealType< T > > extends TransformedInputRandomAccess< T >
+{
+	final List< ? extends RealRandomAccessible< FloatType > > weights;
+	final RealRandomAccess< FloatType >[] w;
+
+	@SuppressWarnings("unchecked")
+	public ViewSamplerRandomAccess(
+			final RandomAccessibleInterval< T > img, // from ImgLoader
+			final AffineTransform3D transform,
+			final InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory,
+			final List< ? extends RealRandomAccessible< FloatType > > weights,
+			final long[] offset )
+	{
+		super( img, transform, interpolatorFactory, false, 0.0f, new FloatType( 0 ), offset );
+
+		this.weights = weights;
+		this.w = new RealRandomAccess[ weights.size() ];
+
+		for ( int j = 0; j < w.length; ++j )
+			this.w[ j ] = weights.get( j ).realRandomAccess();
+	}
+
+	/**
+	 * @return the weight at the current position
+	 */
+	public float weight()
+	{
+		final double[] t = stepper.source();
+
+		if ( w.length == 0 )
+			return isInside() ? 1 : 0;
+
+		double weight = 1;
+
+		for ( int j = 0; j < w.length && weight != 0; ++j )
+		{
+			w[ j ].setPosition( t );
+			weight *= w[ j ].get().getRealDouble();
+		}
+
+		return (float)weight;
+	}
+
+	/**
+	 * @return true if the current position lies inside the image (no image data or weights are read)
+	 */
+	public boolean isInside()
+	{
+		final double[] t = stepper.source();
+
+		return intersectsLinearInterpolation( t[ 0 ], t[ 1 ], t[ 2 ], imgMinX, imgMinY, imgMinZ, imgMaxX, imgMaxY, imgMaxZ );
+	}
+
+	/**
+	 * Computes the range of the scanline that starts at the current position and runs along x in which this view
+	 * can have a non-zero weight. This is conservative, one pixel around the image is included (linear interpolation
+	 * of content-based weights reaches one pixel outside).
+	 *
+	 * @param length - the length of the scanline
+	 * @param range - range[ 0 ] = start (inclusive), range[ 1 ] = end (exclusive), relative to the current position
+	 */
+	public void lineRange( final int length, final int[] range )
+	{
+		stepper.clipLine(
+				length,
+				imgMinX - 1, imgMinY - 1, imgMinZ - 1,
+				imgMaxX + 1, imgMaxY + 1, imgMaxZ + 1,
+				range );
+	}
+
+	@Override
+	public ViewSamplerRandomAccess< T > copy()
+	{
+		return copyRandomAccess();
+	}
+
+	@Override
+	public ViewSamplerRandomAccess< T > copyRandomAccess()
+	{
+		final ViewSamplerRandomAccess< T > r = new ViewSamplerRandomAccess< T >(
+				img, transform, interpolatorFactory, weights, new long[] { offsetX, offsetY, offsetZ } );
+		r.setPosition( this );
+		return r;
+	}
+}
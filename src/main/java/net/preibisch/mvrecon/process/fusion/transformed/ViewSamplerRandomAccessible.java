@@ -0,0 +1,92 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.fusion.transformed;
+
+import java.util.List;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Describes one transformed view together with its weights (all defined in the coordinate system of the input image),
+ * so that image value and weight can be computed from one transformed coordinate (see {@link ViewSamplerRandomAccess}).
+ * 
+ * @author preibisch
+ */
+public class ViewSamplerRandomAccessible< T extends RealType< T > > extends AbstractTransformedImgRandomAccessible< T >
+{
+	final AffineTransform3D transform;
+	final List< ? extends RealRandomAccessible< FloatType > > weights;
+
+	/**
+	 * @param img - the input image
+	 * @param transform - the affine transformation
+	 * @param weights - the weights in the coordinate system of the input image that are multiplied, if empty the weight is 1 inside the image
+	 * @param boundingBox - the bounding box (after transformation)
+	 */
+	public ViewSamplerRandomAccessible(
+			final RandomAccessibleInterval< T > img, // from ImgLoader
+			final AffineTransform3D transform,
+			final List< ? extends RealRandomAccessible< FloatType > > weights,
+			final Interval boundingBox )
+	{
+		super( img, false, 0.0f, new FloatType( 0 ), boundingBox );
+
+		this.transform = transform;
+		this.weights = weights;
+	}
+
+	public ViewSamplerRandomAccess< T > sampler()
+	{
+		return new ViewSamplerRandomAccess< T >( img, transform, interpolatorFactory, weights, boundingBoxOffset );
+	}
+
+	/**
+	 * @return the center of the view in output coordinates (relative to the min of the bounding box)
+	 */
+	public double[] center()
+	{
+		final double[] center = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] = ( img.min( d ) + img.max( d ) ) / 2.0;
+
+		transform.apply( center, center );
+
+		for ( int d = 0; d < 3; ++d )
+			center[ d ] -= boundingBoxOffset[ d ];
+
+		return center;
+	}
+
+	@Override
+	public RandomAccess< FloatType > randomAccess()
+	{
+		return sampler();
+	}
+}
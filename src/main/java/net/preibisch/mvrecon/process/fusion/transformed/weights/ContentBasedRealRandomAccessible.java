@@ -39,6 +39,7 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 import net.preibisch.mvrecon.process.deconvolution.DeconViews;
+import net.preibisch.mvrecon.process.fusion.FusionTools;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyGauss;
 
 public class ContentBasedRealRandomAccessible implements RealRandomAccessible< FloatType >
@@ -54,6 +55,27 @@ public class ContentBasedRealRandomAccessible implements RealRandomAccessible< F
 			final double[] sigma2,
 			final int[] blocksize,
 			final float scale )
+	{
+		this( input, sigma1, sigma2, blocksize, scale, -1 );
+	}
+
+	/**
+	 * @param input - the input image
+	 * @param sigma1 - first sigma
+	 * @param sigma2 - second sigma
+	 * @param blocksize - blocksize of the lazy Gaussians (and the cache)
+	 * @param scale - scaling of the weights
+	 * @param maxCacheSize - if &gt; 0, the final entropy image is cached in blocks, keeping at most maxCacheSize blocks in memory
+	 * (the intermediate Gaussians are then only needed once per block), otherwise it is only virtual
+	 * @param <T> - type
+	 */
+	public < T extends RealType< T > >  ContentBasedRealRandomAccessible(
+			final RandomAccessibleInterval< T > input,
+			final double[] sigma1,
+			final double[] sigma2,
+			final int[] blocksize,
+			final float scale,
+			final long maxCacheSize )
 	{
 		// convert to float
 		final RandomAccessibleInterval< FloatType > inputImg =
@@ -87,11 +109,16 @@ public class ContentBasedRealRandomAccessible implements RealRandomAccessible< F
 				LazyGauss.init( Views.extendMirrorDouble( tmp ), new FinalInterval( inputImg), new FloatType(), sigma2, blocksize );
 
 		// put the weights into a "reasonable" range, since we cannot normalize the entire image [0...1]
-		this.entropy = Converters.convertRAI(
+		final RandomAccessibleInterval< FloatType > entropyVirtual = Converters.convertRAI(
 				tmp2,
 				(i,o) -> o.set( (float)/*Math.sqrt*/( i.getRealFloat() ) / scale ),
 				new FloatType() );
 
+		if ( maxCacheSize > 0 )
+			this.entropy = FusionTools.cacheRandomAccessibleInterval( entropyVirtual, maxCacheSize, new FloatType(), blocksize );
+		else
+			this.entropy = entropyVirtual;
+
 		this.entropyRRA = 
 				Views.interpolate( Views.extendZero( entropy ), new NLinearInterpolatorFactory< FloatType >() );
 	}
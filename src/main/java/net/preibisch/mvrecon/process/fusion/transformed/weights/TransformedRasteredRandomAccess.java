@@ -28,6 +28,7 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.preibisch.mvrecon.process.fusion.transformed.InverseAffineStepper;
 
 public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt implements RandomAccess< T >
 {
@@ -38,11 +39,9 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 	final T zero;
 
 	/*
-	 * Inverse coefficients of the transformation matrix
+	 * Steps the input coordinate along with the position instead of applying the inverse for every pixel
 	 */
-	final double i00, i01, i02, i03, i10, i11, i12, i13, i20, i21, i22, i23;
-
-	final float[] tmp;
+	final InverseAffineStepper stepper;
 
 	public TransformedRasteredRandomAccess(
 			final RealRandomAccessible< T > realRandomAccessible,
@@ -62,72 +61,52 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 
 		this.realRandomAccess = realRandomAccessible.realRandomAccess();
 
-		final double[] imatrix = transform.inverse().getRowPackedCopy();
-
-		this.i00 = imatrix[ 0 ];
-		this.i01 = imatrix[ 1 ];
-		this.i02 = imatrix[ 2 ];
-		this.i03 = imatrix[ 3 ];
-
-		this.i10 = imatrix[ 4 ];
-		this.i11 = imatrix[ 5 ];
-		this.i12 = imatrix[ 6 ];
-		this.i13 = imatrix[ 7 ];
-
-		this.i20 = imatrix[ 8 ];
-		this.i21 = imatrix[ 9 ];
-		this.i22 = imatrix[ 10 ];
-		this.i23 = imatrix[ 11 ];
-
-		this.tmp = new float[ n ];
+		this.stepper = new InverseAffineStepper( transform, this.offset );
+		this.stepper.setPosition( position );
 	}
 
 	@Override
 	public T get()
 	{
-		applyInverse( i00, i01, i02, i03, i10, i11, i12, i13, i20, i21, i22, i23, tmp, position, offset );
-		realRandomAccess.setPosition( tmp );
+		realRandomAccess.setPosition( stepper.source() );
 		return realRandomAccess.get();
 	}
 
-	private static final void applyInverse(
-			final double i00, final double i01, final double i02, final double i03,
-			final double i10, final double i11, final double i12, final double i13,
-			final double i20, final double i21, final double i22, final double i23,
-			final float[] source,
-			final int[] target,
-			final int[] offset )
+	@Override
+	public void fwd( final int d )
 	{
-		final double t0 = (double)( target[ 0 ] + offset[ 0 ] );
-		final double t1 = (double)( target[ 1 ] + offset[ 1 ] );
-		final double t2 = (double)( target[ 2 ] + offset[ 2 ] );
-
-		final double s0 = t0 * i00 + t1 * i01 + t2 * i02 + i03;
-		final double s1 = t0 * i10 + t1 * i11 + t2 * i12 + i13;
-		final double s2 = t0 * i20 + t1 * i21 + t2 * i22 + i23;
-
-		source[ 0 ] = (float)s0;
-		source[ 1 ] = (float)s1;
-		source[ 2 ] = (float)s2;
+		++this.position[ d ];
+		stepper.fwd( d );
 	}
 
 	@Override
-	public void fwd( final int d ) { ++this.position[ d ]; }
-
-	@Override
-	public void bck( final int d ) { --this.position[ d ]; }
+	public void bck( final int d )
+	{
+		--this.position[ d ];
+		stepper.bck( d );
+	}
 
 	@Override
-	public void move( final int distance, final int d ) { this.position[ d ] += distance; }
+	public void move( final int distance, final int d )
+	{
+		this.position[ d ] += distance;
+		stepper.move( distance, d );
+	}
 
 	@Override
-	public void move( final long distance, final int d ) { this.position[ d ] += (int)distance; }
+	public void move( final long distance, final int d )
+	{
+		this.position[ d ] += (int)distance;
+		stepper.move( distance, d );
+	}
 
 	@Override
 	public void move( final Localizable localizable )
 	{
 		for ( int d = 0; d < n; ++d )
 			this.position[ d ] += localizable.getIntPosition( d );
+
+		stepper.move( localizable.getLongPosition( 0 ), localizable.getLongPosition( 1 ), localizable.getLongPosition( 2 ) );
 	}
 
 	@Override
@@ -135,6 +114,8 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 	{
 		for ( int d = 0; d < n; ++d )
 			this.position[ d ] += distance[ d ];
+
+		stepper.move( distance[ 0 ], distance[ 1 ], distance[ 2 ] );
 	}
 
 	@Override
@@ -142,6 +123,8 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 	{
 		for ( int d = 0; d < n; ++d )
 			this.position[ d ] += (int)distance[ d ];
+
+		stepper.move( distance[ 0 ], distance[ 1 ], distance[ 2 ] );
 	}
 
 	@Override
@@ -149,6 +132,8 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 	{
 		for ( int d = 0; d < n; ++d )
 			this.position[ d ] = localizable.getIntPosition( d );
+
+		stepper.setPosition( this.position );
 	}
 
 	@Override
@@ -156,6 +141,8 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 	{
 		for ( int d = 0; d < n; ++d )
 			this.position[ d ] = position[ d ];
+
+		stepper.setPosition( this.position );
 	}
 
 	@Override
@@ -163,13 +150,23 @@ public class TransformedRasteredRandomAccess< T > extends AbstractLocalizableInt
 	{
 		for ( int d = 0; d < n; ++d )
 			this.position[ d ] = (int)position[ d ];
+
+		stepper.setPosition( this.position );
 	}
 
 	@Override
-	public void setPosition( final int position, final int d ) { this.position[ d ] = position; }
+	public void setPosition( final int position, final int d )
+	{
+		this.position[ d ] = position;
+		stepper.setPosition( this.position );
+	}
 
 	@Override
-	public void setPosition( final long position, final int d ) { this.position[ d ] = (int)position; }
+	public void setPosition( final long position, final int d )
+	{
+		this.position[ d ] = (int)position;
+		stepper.setPosition( this.position );
+	}
 
 	@Override
 	public TransformedRasteredRandomAccess< T > copy() { return new TransformedRasteredRandomAccess< T >( realRandomAccessible, zero, transform, offset ); }
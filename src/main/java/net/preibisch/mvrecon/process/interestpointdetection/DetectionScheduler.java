@@ -0,0 +1,158 @@
+/*
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import mpicbg.spim.data.sequence.ViewDescription;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.mvrecon.Threads;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.grouping.Group;
+
+/**
+ * Runs the detection of several views at once. Each view is processed by its own (lightweight) thread that
+ * hands its block-wise work to one executor shared by all views, so small views no longer leave most cores
+ * idle. How many views run concurrently is limited by a memory budget: a view only starts once its
+ * estimated memory fits into what the running views leave (a view that is larger than the budget runs alone).
+ *
+ * A view that fails does not affect the others, its result is simply missing.
+ *
+ * @author preibisch
+ */
+public class DetectionScheduler
+{
+	public static double defaultMemoryFraction = 0.5;
+	public static int defaultMaxConcurrentViews = Threads.numThreads();
+
+	final long budget;
+	final int maxConcurrentViews;
+
+	long used = 0;
+
+	/**
+	 * @param budget - the memory budget in bytes
+	 * @param maxConcurrentViews - the maximal number of views processed at once
+	 */
+	public DetectionScheduler( final long budget, final int maxConcurrentViews )
+	{
+		this.budget = Math.max( 1, budget );
+		this.maxConcurrentViews = Math.max( 1, maxConcurrentViews );
+	}
+
+	public DetectionScheduler()
+	{
+		this( Math.round( Runtime.getRuntime().maxMemory() * defaultMemoryFraction ), defaultMaxConcurrentViews );
+	}
+
+	/**
+	 * @param views - the views to process
+	 * @param memoryEstimate - the estimated memory (bytes) needed to process a view
+	 * @param detection - processes a view, may throw or return null if it failed
+	 * @param onDone - called after each view (e.g. to show progress, can be null)
+	 * @param <R> - the result type
+	 * @return the results of all views that succeeded
+	 */
+	public < R > HashMap< ViewDescription, R > process(
+			final Collection< ViewDescription > views,
+			final ToLongFunction< ViewDescription > memoryEstimate,
+			final Function< ViewDescription, R > detection,
+			final Runnable onDone )
+	{
+		final HashMap< ViewDescription, R > results = new HashMap<>();
+
+		if ( views.size() == 0 )
+			return results;
+
+		final ExecutorService viewService = Threads.createFixedExecutorService( Math.min( views.size(), maxConcurrentViews ) );
+		final List< Future< R > > futures = new ArrayList<>();
+		final List< ViewDescription > submitted = new ArrayList<>();
+
+		for ( final ViewDescription vd : views )
+		{
+			final long memory = Math.min( budget, Math.max( 0, memoryEstimate.applyAsLong( vd ) ) );
+
+			submitted.add( vd );
+			futures.add( viewService.submit( () ->
+			{
+				acquire( memory );
+
+				try
+				{
+					return detection.apply( vd );
+				}
+				finally
+				{
+					release( memory );
+
+					if ( onDone != null )
+						onDone.run();
+				}
+			} ) );
+		}
+
+		for ( int i = 0; i < futures.size(); ++i )
+		{
+			final ViewDescription vd = submitted.get( i );
+
+			try
+			{
+				final R result = futures.get( i ).get();
+
+				if ( result != null )
+					results.put( vd, result );
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				IOFunctions.println( "An error occured: " + e );
+				IOFunctions.println( "Failed to process viewId: " + Group.pvid( vd ) + ". Continuing with next one." );
+				e.printStackTrace();
+			}
+		}
+
+		viewService.shutdown();
+
+		return results;
+	}
+
+	protected synchronized void acquire( final long memory ) throws InterruptedException
+	{
+		while ( used > 0 && used + memory > budget )
+			wait();
+
+		used += memory;
+	}
+
+	protected synchronized void release( final long memory )
+	{
+		used -= memory;
+		notifyAll();
+	}
+}
@@ -30,7 +30,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.Intervals;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.fiji.spimdata.SpimData2;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
@@ -40,6 +47,7 @@ import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoints;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.ViewInterestPoints;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLib2;
+import net.preibisch.mvrecon.process.interestpointregistration.pairwise.constellation.overlap.SimpleBoundingBoxOverlap;
 
 /**
  * The type Interest point tools.
@@ -275,4 +283,82 @@ public class InterestPointTools
 		}
 	}
 
+	/**
+	 * @param ip - the interest point
+	 * @param id - the new id
+	 * @return a copy of the interest point with a new id (keeps the intensity of an {@link InterestPointValue})
+	 */
+	public static InterestPoint withId( final InterestPoint ip, final int id )
+	{
+		if ( ip instanceof InterestPointValue )
+			return new InterestPointValue( id, ip.getL(), ( (InterestPointValue)ip ).getIntensity() );
+		else
+			return new InterestPoint( id, ip.getL() );
+	}
+
+	/**
+	 * Computes for each view where it overlaps with any other present view of the same timepoint (using the current
+	 * registrations and the bounding boxes of {@link SimpleBoundingBoxOverlap}). The union of the overlaps is
+	 * represented by a list of intervals in the pixel coordinates (full resolution) of the view, intervals that are
+	 * contained in another one are removed. A view without any overlap gets an empty list.
+	 *
+	 * @param spimData - the SpimData object
+	 * @param viewIds - for which views
+	 * @return the overlapping intervals of each view (views without a size are missing)
+	 */
+	public static HashMap< ViewId, List< Interval > > overlappingIntervals( final SpimData2 spimData, final Collection< ? extends ViewId > viewIds )
+	{
+		final SimpleBoundingBoxOverlap< ViewId > overlap = new SimpleBoundingBoxOverlap<>( spimData );
+		final HashMap< ViewId, List< Interval > > intervals = new HashMap<>();
+
+		for ( final ViewId viewId : viewIds )
+		{
+			final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+
+			if ( !vd.isPresent() || !vd.getViewSetup().hasSize() )
+				continue;
+
+			final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( viewId );
+			vr.updateModel();
+
+			final AffineTransform3D globalToLocal = vr.getModel().inverse();
+			final Interval view = new FinalInterval( vd.getViewSetup().getSize() );
+			final ArrayList< Interval > overlaps = new ArrayList<>();
+
+			for ( final ViewDescription other : spimData.getSequenceDescription().getViewDescriptions().values() )
+			{
+				if ( other.equals( vd ) || !other.isPresent() || other.getTimePointId() != vd.getTimePointId() || !other.getViewSetup().hasSize() )
+					continue;
+
+				final RealInterval global = overlap.getOverlapInterval( vd, other );
+
+				if ( global == null )
+					continue;
+
+				final Interval local = Intervals.intersect( Intervals.smallestContainingInterval( globalToLocal.estimateBounds( global ) ), view );
+
+				if ( !Intervals.isEmpty( local ) )
+					overlaps.add( local );
+			}
+
+			// the union only needs the intervals that are not contained in another one
+			final ArrayList< Interval > union = new ArrayList<>();
+
+			for ( int i = 0; i < overlaps.size(); ++i )
+			{
+				boolean contained = false;
+
+				for ( int j = 0; j < overlaps.size() && !contained; ++j )
+					if ( i != j && Intervals.contains( overlaps.get( j ), overlaps.get( i ) ) && ( !Intervals.equals( overlaps.get( i ), overlaps.get( j ) ) || j < i ) )
+						contained = true;
+
+				if ( !contained )
+					union.add( overlaps.get( i ) );
+			}
+
+			intervals.put( viewId, union );
+		}
+
+		return intervals;
+	}
 }
@@ -45,6 +45,11 @@ import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLi
 
 public class Localization
 {
+	/**
+	 * how many pixels the quadratic fit may move a peak to a better integer location
+	 */
+	public static int maxNumMoves = 10;
+
 	public static ArrayList< InterestPoint > noLocalization( final ArrayList< SimplePeak > peaks, final boolean findMin, final boolean findMax, final boolean keepIntensity )
 	{
 		if ( !DoGImgLib2.silent )
@@ -84,7 +89,8 @@ public class Localization
 			final boolean keepIntensity,
 			final ExecutorService ex )
 	{
-		if ( !DoGImgLib2.silent )
+		// single-threaded localization runs per block, do not report every block
+		if ( !DoGImgLib2.silent && ex != null )
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Subpixel localization using quadratic n-dimensional fit");
 
 		final ArrayList< Point > peakList = new ArrayList<>();
@@ -101,10 +107,22 @@ public class Localization
 
 		final SubpixelLocalization<Point, FloatType> spl = new SubpixelLocalization<>( n );
 		spl.setAllowMaximaTolerance( true );
-		spl.setMaxNumMoves( 10 );
+		spl.setMaxNumMoves( maxNumMoves );
+
+		final ArrayList<RefinedPeak<Point>> refinedPeaks;
 
-		final ArrayList<RefinedPeak<Point>> refinedPeaks =
-				SubpixelLocalization.refinePeaks(
+		if ( ex == null )
+			refinedPeaks = SubpixelLocalization.refinePeaks(
+						peakList,
+						dogImg,
+						validInterval,
+						spl.getReturnInvalidPeaks(),
+						spl.getMaxNumMoves(),
+						spl.getAllowMaximaTolerance(),
+						spl.getMaximaTolerance(),
+						spl.getAllowedToMoveInDim() );
+		else
+			refinedPeaks = SubpixelLocalization.refinePeaks(
 						peakList,
 						dogImg,
 						validInterval,
@@ -23,9 +23,11 @@
 package net.preibisch.mvrecon.process.interestpointdetection.methods;
 
 import java.util.Collection;
+import java.util.Map;
 
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
 
 public class InterestPointParameters
 {
@@ -47,6 +49,9 @@ public class InterestPointParameters
 	// downsampleXY == -1 : a bit more then z-resolution
 	public int downsampleXY = 1, downsampleZ = 1;
 
+	// if not null, the downsampling in XY of each view (e.g. if it depends on the voxel size), otherwise downsampleXY
+	public Map< ViewId, Integer > downsampleXYPerView = null;
+
 	public double showProgressMin = Double.NaN;
 	public double showProgressMax = Double.NaN;
 
@@ -60,6 +65,18 @@ public class InterestPointParameters
 		this.imgloader = imgloader;
 	}
 
+	/**
+	 * @param viewId - the view
+	 * @return the downsampling in XY for this view
+	 */
+	public int downsampleXY( final ViewId viewId )
+	{
+		if ( downsampleXYPerView != null && downsampleXYPerView.containsKey( viewId ) )
+			return downsampleXYPerView.get( viewId );
+		else
+			return downsampleXY;
+	}
+
 	public boolean showProgress() { return !Double.isNaN( showProgressMin ) && !Double.isNaN( showProgressMax ); }
 
 	/**
@@ -22,24 +22,32 @@
  */
 package net.preibisch.mvrecon.process.interestpointdetection.methods.dog;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import ij.IJ;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Dimensions;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.view.Views;
 import net.preibisch.legacy.io.IOFunctions;
 import net.preibisch.mvrecon.Threads;
 import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
 import net.preibisch.mvrecon.process.downsampling.DownsampleTools;
+import net.preibisch.mvrecon.process.interestpointdetection.DetectionScheduler;
 import net.preibisch.mvrecon.process.interestpointdetection.InterestPointTools;
 
 public class DoG
@@ -119,78 +127,246 @@ public class DoG
 		return ips;
 	}
 
+	/**
+	 * Finds the interest points of all views in dog.toProcess, several views are processed at once
+	 * (see {@link DetectionScheduler}).
+	 *
+	 * @param interestPoints - the map to add the interest points to
+	 * @param dog - the parameters
+	 */
 	public static void addInterestPoints( final HashMap< ViewId, List< InterestPoint > > interestPoints, final DoGParameters dog )
+	{
+		// one executor for all views
+		final ExecutorService service = Threads.createFixedExecutorService( Threads.numThreads() );
+
+		try
+		{
+			addInterestPoints( interestPoints, dog, service );
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+
+	public static void addInterestPoints( final HashMap< ViewId, List< InterestPoint > > interestPoints, final DoGParameters dog, final ExecutorService service )
 	{
 		if ( dog.showProgress() )
 			IJ.showProgress( dog.showProgressMin );
 
-		int count = 1;
+		final AtomicInteger count = new AtomicInteger( 0 );
 
-		// TODO: special iterator that takes into account missing views
-		for ( final ViewDescription vd : dog.toProcess )
-		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				if ( !vd.isPresent() )
-					continue;
-
-				final ExecutorService service = Threads.createFixedExecutorService( Threads.numThreads() );
-
-				// TODO: downsampling is not virtual!
-				@SuppressWarnings({"rawtypes" })
-				final Pair<RandomAccessibleInterval, AffineTransform3D> input =
-						DownsampleTools.openAndDownsample(
-								dog.imgloader,
-								vd,
-								new long[] { dog.downsampleXY, dog.downsampleXY, dog.downsampleZ } );
-
-				@SuppressWarnings("unchecked")
-				List< InterestPoint > ips = DoGImgLib2.computeDoG(
-							input.getA(),
-							null, // mask
-							dog.sigma,
-							dog.threshold,
-							dog.localization,
-							dog.findMin,
-							dog.findMax,
-							dog.minIntensity,
-							dog.maxIntensity,
-							DoGImgLib2.blockSize,
-							service,
-							dog.cuda,
-							dog.deviceCUDA,
-							dog.accurateCUDA,
-							dog.percentGPUMem );
-
-				service.shutdown();
-
-				if ( dog.limitDetections )
-					ips = InterestPointTools.limitList( dog.maxDetections, dog.maxDetectionsTypeIndex, ips );
-
-				DownsampleTools.correctForDownsampling( ips, input.getB() );
-
-				interestPoints.put( vd, ips );
-			} catch ( Exception e )
-			{
-				IOFunctions.println( "An error occured (DOG): " + e );
-				IOFunctions.println( "Failed to segment angleId: "
-						+ vd.getViewSetup().getAngle().getId() + " channelId: "
-						+ vd.getViewSetup().getChannel().getId() + " illumId: "
-						+ vd.getViewSetup().getIllumination().getId()
-						+ ". Continuing with next one." );
-				e.printStackTrace();
-			}
+		// the GPU memory is managed per view
+		final DetectionScheduler scheduler =
+				dog.cuda == null ? new DetectionScheduler() : new DetectionScheduler( Long.MAX_VALUE, 1 );
 
-			if ( dog.showProgress() )
-				IJ.showProgress( dog.showProgressMin + 
-						( (double)(count++) / (double)dog.toProcess.size() ) / ( dog.showProgressMax - dog.showProgressMin ) );
-		}
+		final List< ViewDescription > present = dog.toProcess.stream().filter( vd -> vd.isPresent() ).collect( Collectors.toList() );
+
+		final HashMap< ViewDescription, List< InterestPoint > > results = scheduler.process(
+				present,
+				vd -> estimateMemory( dog, vd ),
+				vd -> findInterestPoints( dog, vd, service ),
+				() ->
+				{
+					if ( dog.showProgress() )
+						IJ.showProgress( dog.showProgressMin +
+								( (double)count.incrementAndGet() / (double)present.size() ) / ( dog.showProgressMax - dog.showProgressMin ) );
+				} );
+
+		interestPoints.putAll( results );
 
 		if ( dog.showProgress() )
 			IJ.showProgress( dog.showProgressMax );
 	}
+
+	/**
+	 * @param dog - the parameters
+	 * @param vd - the view
+	 * @param service - the ExecutorService to use
+	 * @return the interest points of the view or null if it failed
+	 */
+	protected static List< InterestPoint > findInterestPoints( final DoGParameters dog, final ViewDescription vd, final ExecutorService service )
+	{
+		// make sure not everything crashes if one file is missing
+		try
+		{
+			final int downsampleXY = dog.downsampleXY( vd );
+
+			@SuppressWarnings({"rawtypes" })
+			final Pair<RandomAccessibleInterval, AffineTransform3D> input =
+					DownsampleTools.openAndDownsample(
+							dog.imgloader,
+							vd,
+							new long[] { downsampleXY, downsampleXY, dog.downsampleZ } );
+
+			List< InterestPoint > ips;
+
+			if ( dog.overlapIntervals == null || !dog.overlapIntervals.containsKey( vd ) )
+				ips = computeDoG( dog, input.getA(), dog.minIntensity, dog.maxIntensity, service );
+			else
+				ips = computeDoGInOverlaps( dog, input.getA(), input.getB(), dog.overlapIntervals.get( vd ), service );
+
+			if ( dog.limitDetections )
+				ips = InterestPointTools.limitList( dog.maxDetections, dog.maxDetectionsTypeIndex, ips );
+
+			DownsampleTools.correctForDownsampling( ips, input.getB() );
+
+			return ips;
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "An error occured (DOG): " + e );
+			IOFunctions.println( "Failed to segment angleId: "
+					+ vd.getViewSetup().getAngle().getId() + " channelId: "
+					+ vd.getViewSetup().getChannel().getId() + " illumId: "
+					+ vd.getViewSetup().getIllumination().getId()
+					+ ". Continuing with next one." );
+			e.printStackTrace();
+
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the DoG on the entire (downsampled) input, tiled or not
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected static List< InterestPoint > computeDoG(
+			final DoGParameters dog,
+			final RandomAccessibleInterval input,
+			final double minIntensity,
+			final double maxIntensity,
+			final ExecutorService service )
+	{
+		if ( dog.tileSize != null && dog.cuda == null )
+			return TiledDoG.computeDoG(
+					input,
+					null, // mask
+					dog.sigma,
+					dog.threshold,
+					dog.localization,
+					dog.findMin,
+					dog.findMax,
+					minIntensity,
+					maxIntensity,
+					dog.tileSize,
+					service );
+		else
+			return DoGImgLib2.computeDoG(
+					input,
+					null, // mask
+					dog.sigma,
+					dog.threshold,
+					dog.localization,
+					dog.findMin,
+					dog.findMax,
+					minIntensity,
+					maxIntensity,
+					DoGImgLib2.blockSize,
+					service,
+					dog.cuda,
+					dog.deviceCUDA,
+					dog.accurateCUDA,
+					dog.percentGPUMem );
+	}
+
+	/**
+	 * Runs the DoG only on the parts of the view that overlap with other views (plus a halo so the DoG is the same as for the
+	 * entire image). Points are only kept within the overlap and only once if overlaps intersect.
+	 *
+	 * @param dog - the parameters
+	 * @param input - the (downsampled) input
+	 * @param downsampling - maps the downsampled input to full resolution
+	 * @param overlaps - the overlapping intervals (full resolution pixel coordinates)
+	 * @param service - the ExecutorService to use
+	 * @return the interest points in the overlapping parts of the view (downsampled coordinates)
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	protected static List< InterestPoint > computeDoGInOverlaps(
+			final DoGParameters dog,
+			final RandomAccessibleInterval input,
+			final AffineTransform3D downsampling,
+			final List< Interval > overlaps,
+			final ExecutorService service )
+	{
+		final ArrayList< InterestPoint > ips = new ArrayList<>();
+
+		if ( overlaps.size() == 0 )
+		{
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): View does not overlap with any other view, skipping." );
+			return ips;
+		}
+
+		// normalize all parts identically, so the threshold means the same everywhere
+		final float[] minmax = DoGImgLib2.normalizationRange( input, null, dog.minIntensity, dog.maxIntensity, service );
+
+		// the DoG kernel, the 3x3x3 neighborhood and the quadratic fit
+		final long halo = DoGImgLib2.radiusDoG( dog.sigma ) + TiledDoG.localizationHalo() + 1;
+		final AffineTransform3D toDownsampled = downsampling.inverse();
+		final ArrayList< Interval > cores = new ArrayList<>();
+
+		long numPixels = 0;
+
+		for ( final Interval overlap : overlaps )
+		{
+			final Interval core = Intervals.intersect( Intervals.smallestContainingInterval( toDownsampled.estimateBounds( overlap ) ), input );
+
+			if ( Intervals.isEmpty( core ) || cores.stream().anyMatch( c -> Intervals.contains( c, core ) ) )
+				continue;
+
+			numPixels += Intervals.numElements( core );
+
+			final RandomAccessibleInterval part = Views.interval( input, Intervals.intersect( Intervals.expand( core, halo ), input ) );
+
+			for ( final InterestPoint ip : computeDoG( dog, part, minmax[ 0 ], minmax[ 1 ], service ) )
+				if ( contains( core, ip ) && !cores.stream().anyMatch( c -> contains( c, ip ) ) )
+					ips.add( InterestPointTools.withId( ip, ips.size() ) );
+
+			cores.add( core );
+		}
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Detected in overlapping parts only (" +
+				Math.round( 100.0 * numPixels / Intervals.numElements( input ) ) + "% of the view or less): " + ips.size() + " points." );
+
+		return ips;
+	}
+
+	protected static boolean contains( final Interval interval, final InterestPoint ip )
+	{
+		for ( int d = 0; d < interval.numDimensions(); ++d )
+		{
+			final long p = Math.round( ip.getL()[ d ] );
+
+			if ( p < interval.min( d ) || p > interval.max( d ) )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the estimated memory to detect interest points in a view: the downsampled copy of the input and the
+	 * cached DoG (float), or the tiles that are processed at once
+	 */
+	protected static long estimateMemory( final DoGParameters dog, final ViewDescription vd )
+	{
+		Dimensions size = vd.getViewSetup().getSize();
+
+		if ( size == null )
+			size = dog.imgloader.getSetupImgLoader( vd.getViewSetupId() ).getImageSize( vd.getTimePointId() );
+
+		final int downsampleXY = Math.max( 1, dog.downsampleXY( vd ) );
+		final int downsampleZ = Math.max( 1, dog.downsampleZ );
+
+		long numPixels = 1;
+
+		for ( int d = 0; d < size.numDimensions(); ++d )
+			numPixels *= Math.max( 1, size.dimension( d ) / ( d < 2 ? downsampleXY : downsampleZ ) );
+
+		// tiles: the Gaussians are never held for the entire view, the input is only read
+		if ( dog.tileSize != null && dog.cuda == null )
+			return Math.min( numPixels * 4, TiledDoG.estimateMemoryPerTile( dog.tileSize, dog.sigma ) * Threads.numThreads() );
+
+		return numPixels * 8;
+	}
 }
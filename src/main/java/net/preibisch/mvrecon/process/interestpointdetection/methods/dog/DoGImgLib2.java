@@ -29,7 +29,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -79,7 +78,7 @@ import net.preibisch.mvrecon.process.cuda.CUDASeparableConvolutionFunctions.OutO
 import net.preibisch.mvrecon.process.fusion.FusionTools;
 import net.preibisch.mvrecon.process.fusion.ImagePortion;
 import net.preibisch.mvrecon.process.interestpointdetection.Localization;
-import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyGauss;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyDoG;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyWeightedGauss;
 import util.ImgLib2Tools;
 import util.Lazy;
@@ -182,25 +181,9 @@ public class DoGImgLib2
 		else
 			minInitialPeakValue = (float)threshold/3.0f;
 
-		final float min, max;
-
-		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
-		{
-			final float[] minmax;
-			
-			if ( mask == null )
-				minmax = FusionTools.minMax( input, service );
-			else
-				minmax = minMax( input, mask, service );
-
-			min = minmax[ 0 ];
-			max = minmax[ 1 ];
-		}
-		else
-		{
-			min = (float)minIntensity;
-			max = (float)maxIntensity;
-		}
+		final float[] minmax = normalizationRange( input, mask, minIntensity, maxIntensity, service );
+		final float min = minmax[ 0 ];
+		final float max = minmax[ 1 ];
 
 		if ( !silent )
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + min + ", max intensity = " + max );
@@ -208,24 +191,14 @@ public class DoGImgLib2
 		// normalize image
 		final RandomAccessibleInterval< FloatType > inputFloat = ImgLib2Tools.normalizeVirtual( input, min, max );
 
-		final float k = LaPlaceFunctions.computeK( 4 );
-		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight(k);
-		final int steps = 3;
-		
+		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight( LaPlaceFunctions.computeK( 4 ) );
+
 		//
 		// Compute the Sigmas for the gaussian convolution
 		//
-		final double[] sigma1 = new double[ input.numDimensions() ];
-		final double[] sigma2 = new double[ input.numDimensions() ];
-		
-		for ( int d = 0; d < input.numDimensions(); ++d )
-		{
-			final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, initialSigma );
-			final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, 0.5f );
-			
-			sigma1[ d ] = sigmaStepsDiffX[0];
-			sigma2[ d ] = sigmaStepsDiffX[1];
-		}
+		final double[][] sigmas = computeSigmas( input.numDimensions(), initialSigma );
+		final double[] sigma1 = sigmas[ 0 ];
+		final double[] sigma2 = sigmas[ 1 ];
 
 		if ( !silent )
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing DoG with (sigma=" + initialSigma + ", " +
@@ -236,39 +209,42 @@ public class DoGImgLib2
 
 		final RandomAccessibleInterval< FloatType > gauss1, gauss2;
 		final RandomAccessibleInterval< FloatType > maskFloat;
+		final RandomAccessibleInterval< FloatType > dog;
 
-		if ( mask == null )
+		if ( mask == null && cuda == null )
 		{
 			maskFloat = null;
 
-			if ( cuda == null )
-			{
-				gauss1 = LazyGauss.init( Views.extendMirrorDouble( inputFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma1, blockSize );
-				gauss2 = LazyGauss.init( Views.extendMirrorDouble( inputFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma2, blockSize );
-			}
-			else
+			// both Gaussians are computed per block from one copy of the input, only the DoG is cached
+			dog = LazyDoG.init( Views.extendMirrorDouble( inputFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma1, sigma2, K_MIN1_INV, blockSize );
+		}
+		else
+		{
+			if ( mask == null )
 			{
+				maskFloat = null;
+
 				// TODO: untested
 				gauss1 = computeGaussCUDA( inputFloat, sigma1, cuda, cudaDevice, accurateCUDA, percentGPUMem );
 				gauss2 = computeGaussCUDA( inputFloat, sigma2, cuda, cudaDevice, accurateCUDA, percentGPUMem );
 			}
-		}
-		else
-		{
-			maskFloat = Converters.convertRAI( mask, (i,o) -> o.set( i.getRealFloat() ), new FloatType());//ImgLib2Tools.convertVirtual( mask );
+			else
+			{
+				maskFloat = Converters.convertRAI( mask, (i,o) -> o.set( i.getRealFloat() ), new FloatType());//ImgLib2Tools.convertVirtual( mask );
 
-			gauss1 = LazyWeightedGauss.init( Views.extendMirrorSingle( inputFloat ), Views.extendZero( maskFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma1, blockSize );
-			gauss2 = LazyWeightedGauss.init( Views.extendMirrorSingle( inputFloat ), Views.extendZero( maskFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma2, blockSize );
-		}
+				gauss1 = LazyWeightedGauss.init( Views.extendMirrorSingle( inputFloat ), Views.extendZero( maskFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma1, blockSize );
+				gauss2 = LazyWeightedGauss.init( Views.extendMirrorSingle( inputFloat ), Views.extendZero( maskFloat ), new FinalInterval( inputFloat ), new FloatType(), sigma2, blockSize );
+			}
 
-		final RandomAccessibleInterval< FloatType > dog = Converters.convert(gauss2, gauss1, new BiConverter<FloatType, FloatType, FloatType>()
-		{
-			@Override
-			public void convert( final FloatType inputA, final FloatType inputB, final FloatType output)
+			dog = Converters.convert(gauss2, gauss1, new BiConverter<FloatType, FloatType, FloatType>()
 			{
-				output.setReal( ( inputA.getRealDouble() - inputB.getRealDouble() ) * K_MIN1_INV );	
-			}
-		}, new FloatType() );
+				@Override
+				public void convert( final FloatType inputA, final FloatType inputB, final FloatType output)
+				{
+					output.setReal( ( inputA.getRealDouble() - inputB.getRealDouble() ) * K_MIN1_INV );	
+				}
+			}, new FloatType() );
+		}
 
 		//avoid double-caching for weighted gauss (i.e. mask != null)
 		//final RandomAccessibleInterval< FloatType > dogCached = (mask == null) ? FusionTools.cacheRandomAccessibleInterval( dog, new FloatType(), blockSize ) : dog;
@@ -277,7 +253,7 @@ public class DoGImgLib2
 		if ( !silent )
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Detecting peaks." );
 
-		final ArrayList< SimplePeak > peaks = findPeaks( dogCached, maskFloat, minInitialPeakValue, service );
+		final ArrayList< SimplePeak > peaks = PeakFinder.findPeaks( dogCached, maskFloat, minInitialPeakValue, blockSize, service );
 
 		if ( !silent )
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + peaks.size() + " initial peaks (before refinement)." );
@@ -329,6 +305,62 @@ public class DoGImgLib2
 		return finalPeaks;
 	}
 
+	/**
+	 * @param n - the number of dimensions
+	 * @param sigma - the sigma of the DoG detection
+	 * @return the sigmas of the two Gaussian convolutions (sigma1, sigma2) for each dimension
+	 */
+	public static double[][] computeSigmas( final int n, final double sigma )
+	{
+		final float k = LaPlaceFunctions.computeK( 4 );
+		final int steps = 3;
+
+		final double[] sigma1 = new double[ n ];
+		final double[] sigma2 = new double[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final float[] sigmaStepsX = LaPlaceFunctions.computeSigma( steps, k, (float)sigma );
+			final float[] sigmaStepsDiffX = LaPlaceFunctions.computeSigmaDiff( sigmaStepsX, 0.5f );
+
+			sigma1[ d ] = sigmaStepsDiffX[0];
+			sigma2[ d ] = sigmaStepsDiffX[1];
+		}
+
+		return new double[][] { sigma1, sigma2 };
+	}
+
+	/**
+	 * @return the min and max intensity used for normalizing the input to 0...1, looked up (within the mask if provided)
+	 * if minIntensity or maxIntensity are not set
+	 */
+	public static < T extends RealType< T > > float[] normalizationRange(
+			final RandomAccessibleInterval< T > input,
+			final RandomAccessibleInterval< T > mask,
+			final double minIntensity,
+			final double maxIntensity,
+			final ExecutorService service )
+	{
+		if ( Double.isNaN( minIntensity ) || Double.isNaN( maxIntensity ) || Double.isInfinite( minIntensity ) || Double.isInfinite( maxIntensity ) || minIntensity == maxIntensity )
+		{
+			if ( mask == null )
+				return FusionTools.minMax( input, service );
+			else
+				return minMax( input, mask, service );
+		}
+		else
+		{
+			return new float[] { (float)minIntensity, (float)maxIntensity };
+		}
+	}
+
+	/**
+	 * @param laPlace - the DoG image
+	 * @param laPlaceMask - the mask or null
+	 * @param minValue - the minimal absolute DoG value of a peak
+	 * @param service - the ExecutorService to use, null to run single-threaded (e.g. within a block that is processed by a thread already)
+	 * @return all DoG peaks of the image, except the outermost pixels
+	 */
 	public static ArrayList<SimplePeak> findPeaks( final RandomAccessibleInterval< FloatType > laPlace, final RandomAccessibleInterval< FloatType > laPlaceMask, final float minValue, final ExecutorService service )
 	{
 		final Interval interval = Intervals.expand( laPlace, -1 );
@@ -348,7 +380,18 @@ public class DoGImgLib2
 			numPixels *= source.dimension( d );
 
 		final int numDimensions = source.numDimensions();
-		final Vector< ImagePortion > portions = FusionTools.divideIntoPortions( numPixels );
+		final Vector< ImagePortion > portions;
+
+		if ( service == null )
+		{
+			portions = new Vector<>();
+			portions.add( new ImagePortion( 0, numPixels ) );
+		}
+		else
+		{
+			portions = FusionTools.divideIntoPortions( numPixels );
+		}
+
 		final ArrayList< Callable< ArrayList< SimplePeak > > > tasks = new ArrayList<>();
 
 		for ( final ImagePortion portion : portions )
@@ -444,10 +487,13 @@ public class DoGImgLib2
 
 		try
 		{
-			for ( final Future< ArrayList< SimplePeak > > future : service.invokeAll( tasks ) )
-				dogPeaks.addAll( future.get() );
+			if ( service == null )
+				dogPeaks.addAll( tasks.get( 0 ).call() );
+			else
+				for ( final Future< ArrayList< SimplePeak > > future : service.invokeAll( tasks ) )
+					dogPeaks.addAll( future.get() );
 		}
-		catch ( InterruptedException | ExecutionException e )
+		catch ( Exception e )
 		{
 			e.printStackTrace();
 		}
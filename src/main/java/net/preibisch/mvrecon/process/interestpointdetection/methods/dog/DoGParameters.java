@@ -23,11 +23,16 @@
 package net.preibisch.mvrecon.process.interestpointdetection.methods.dog;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Interval;
 import net.preibisch.mvrecon.process.cuda.CUDADevice;
 import net.preibisch.mvrecon.process.cuda.CUDASeparableConvolution;
+import net.preibisch.mvrecon.process.interestpointdetection.InterestPointTools;
 import net.preibisch.mvrecon.process.interestpointdetection.methods.InterestPointParameters;
 
 public class DoGParameters extends InterestPointParameters
@@ -48,6 +53,18 @@ public class DoGParameters extends InterestPointParameters
 	public CUDASeparableConvolution cuda = null;
 	public boolean accurateCUDA = false;
 
+	/**
+	 * if not null, the views are processed tile by tile (bounded memory, CPU only), see {@link TiledDoG}
+	 */
+	public int[] tileSize = null;
+
+	/**
+	 * if not null, only the parts of the views that overlap with other views are processed: the union of the intervals
+	 * (full resolution pixel coordinates) of each view, see {@link InterestPointTools#overlappingIntervals}; views without
+	 * an entry are processed entirely
+	 */
+	public Map< ViewId, List< Interval > > overlapIntervals = null;
+
 	public DoGParameters() { super(); }
 
 	public DoGParameters(
@@ -0,0 +1,285 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointdetection.methods.dog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.legacy.segmentation.SimplePeak;
+import util.Grid;
+
+/**
+ * Finds the peaks of a DoG image block by block (aligned with the cells of the lazily computed DoG). Each block
+ * (plus a one pixel border) is copied into a float[] once, the 3x3x...x3 neighborhood is then compared using
+ * precomputed index offsets, rejecting pixels below the threshold before looking at any neighbor.
+ *
+ * Finds the same peaks as {@link DoGImgLib2#findPeaks}, but grouped by block.
+ *
+ * @author preibisch
+ */
+public class PeakFinder
+{
+	/**
+	 * @param laPlace - the DoG image
+	 * @param laPlaceMask - the mask or null (a peak needs itself and its entire neighborhood &gt; 0)
+	 * @param minValue - the minimal absolute DoG value of a peak
+	 * @param blockSize - the size of the blocks (ideally the cell size of laPlace)
+	 * @param service - the ExecutorService to use (one task per block), null to run single-threaded
+	 * @return all DoG peaks of the image, except the outermost pixels
+	 */
+	public static ArrayList< SimplePeak > findPeaks(
+			final RandomAccessibleInterval< FloatType > laPlace,
+			final RandomAccessibleInterval< FloatType > laPlaceMask,
+			final float minValue,
+			final int[] blockSize,
+			final ExecutorService service )
+	{
+		final int n = laPlace.numDimensions();
+		final Interval interval = Intervals.expand( laPlace, -1 );
+		final ArrayList< SimplePeak > peaks = new ArrayList<>();
+
+		if ( Intervals.isEmpty( interval ) )
+			return peaks;
+
+		final int[] cellSize = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			cellSize[ d ] = blockSize[ Math.min( d, blockSize.length - 1 ) ];
+
+		final ArrayList< Callable< ArrayList< SimplePeak > > > tasks = new ArrayList<>();
+
+		// the grid is aligned with the cells of the DoG, the outermost pixels are not tested
+		for ( final long[][] cell : Grid.create( laPlace.dimensionsAsLongArray(), cellSize ) )
+		{
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = laPlace.min( d ) + cell[ 0 ][ d ];
+				max[ d ] = min[ d ] + cell[ 1 ][ d ] - 1;
+			}
+
+			final Interval block = Intervals.intersect( new FinalInterval( min, max ), interval );
+
+			if ( !Intervals.isEmpty( block ) )
+				tasks.add( () -> findPeaks( laPlace, laPlaceMask, minValue, block ) );
+		}
+
+		try
+		{
+			if ( service == null )
+				for ( final Callable< ArrayList< SimplePeak > > task : tasks )
+					peaks.addAll( task.call() );
+			else
+				for ( final Future< ArrayList< SimplePeak > > future : service.invokeAll( tasks ) )
+					peaks.addAll( future.get() );
+		}
+		catch ( Exception e )
+		{
+			IOFunctions.println( "Failed to find peaks: " + e );
+			e.printStackTrace();
+		}
+
+		return peaks;
+	}
+
+	/**
+	 * @param laPlace - the DoG image
+	 * @param laPlaceMask - the mask or null
+	 * @param minValue - the minimal absolute DoG value of a peak
+	 * @param block - the pixels to test (laPlace must be defined one pixel beyond)
+	 * @return the peaks within the block
+	 */
+	public static ArrayList< SimplePeak > findPeaks(
+			final RandomAccessibleInterval< FloatType > laPlace,
+			final RandomAccessibleInterval< FloatType > laPlaceMask,
+			final float minValue,
+			final Interval block )
+	{
+		final int n = block.numDimensions();
+		final Interval expanded = Intervals.expand( block, 1 );
+
+		final int[] size = new int[ n ];
+		final int[] stride = new int[ n ];
+
+		int numPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			size[ d ] = (int)expanded.dimension( d );
+			stride[ d ] = numPixels;
+			numPixels *= size[ d ];
+		}
+
+		// read the block (and mask) once
+		final float[] dog = copy( laPlace, expanded, numPixels );
+		final float[] mask = laPlaceMask == null ? null : copy( laPlaceMask, expanded, numPixels );
+
+		final int[] offsets = neighborOffsets( stride );
+
+		final ArrayList< SimplePeak > peaks = new ArrayList<>();
+		final int[] pos = new int[ n ]; // position within the expanded block, dimension 0 is iterated in the inner loop
+		final int[] location = new int[ n ];
+
+		for ( int d = 1; d < n; ++d )
+			pos[ d ] = 1;
+
+		final int lengthX = (int)block.dimension( 0 );
+
+		while ( true )
+		{
+			int lineStart = 1;
+
+			for ( int d = 1; d < n; ++d )
+				lineStart += pos[ d ] * stride[ d ];
+
+			for ( int x = 0, i = lineStart; x < lengthX; ++x, ++i )
+			{
+				final float value = dog[ i ];
+
+				// it can never be a desired peak as it is too low
+				if ( Math.abs( value ) < minValue )
+					continue;
+
+				// it can never be a desired peak if it or any pixel of the 3x3..3 neighborhood is outside the mask
+				if ( mask != null && !inside( mask, i, offsets ) )
+					continue;
+
+				boolean isMin = true;
+				boolean isMax = true;
+
+				for ( int k = 0; k < offsets.length && ( isMin || isMax ); ++k )
+				{
+					final float neighbor = dog[ i + offsets[ k ] ];
+
+					isMin &= ( neighbor >= value );
+					isMax &= ( neighbor <= value );
+				}
+
+				if ( !isMin && !isMax )
+					continue;
+
+				location[ 0 ] = (int)block.min( 0 ) + x;
+
+				for ( int d = 1; d < n; ++d )
+					location[ d ] = (int)expanded.min( d ) + pos[ d ];
+
+				// this mixup is intended, a minimum in the 2nd derivation is a maxima in image space and vice versa
+				if ( isMin )
+					peaks.add( new SimplePeak( location, Math.abs( value ), false, true ) );
+				else
+					peaks.add( new SimplePeak( location, Math.abs( value ), true, false ) );
+			}
+
+			// next line
+			int d = 1;
+
+			for ( ; d < n; ++d )
+			{
+				if ( ++pos[ d ] < size[ d ] - 1 )
+					break;
+
+				pos[ d ] = 1;
+			}
+
+			if ( d >= n )
+				break;
+		}
+
+		return peaks;
+	}
+
+	protected static boolean inside( final float[] mask, final int i, final int[] offsets )
+	{
+		if ( mask[ i ] <= 0 )
+			return false;
+
+		for ( final int offset : offsets )
+			if ( mask[ i + offset ] <= 0 )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * @param stride - the strides of the image
+	 * @return the index offsets of the 3^n-1 neighbors
+	 */
+	public static int[] neighborOffsets( final int[] stride )
+	{
+		final int n = stride.length;
+		final List< Integer > offsets = new ArrayList<>();
+		final int[] pos = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+			pos[ d ] = -1;
+
+		while ( true )
+		{
+			int offset = 0;
+			for ( int d = 0; d < n; ++d )
+				offset += pos[ d ] * stride[ d ];
+
+			if ( offset != 0 )
+				offsets.add( offset );
+
+			int d = 0;
+
+			for ( ; d < n; ++d )
+			{
+				if ( ++pos[ d ] <= 1 )
+					break;
+
+				pos[ d ] = -1;
+			}
+
+			if ( d >= n )
+				break;
+		}
+
+		return offsets.stream().mapToInt( Integer::intValue ).toArray();
+	}
+
+	protected static float[] copy( final RandomAccessibleInterval< FloatType > img, final Interval interval, final int numPixels )
+	{
+		final float[] data = new float[ numPixels ];
+		final Cursor< FloatType > cursor = Views.flatIterable( Views.interval( img, interval ) ).cursor();
+
+		for ( int i = 0; i < numPixels; ++i )
+			data[ i ] = cursor.next().get();
+
+		return data;
+	}
+}
@@ -0,0 +1,306 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointdetection.methods.dog;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import net.preibisch.legacy.io.IOFunctions;
+import net.preibisch.legacy.registration.bead.laplace.LaPlaceFunctions;
+import net.preibisch.legacy.segmentation.SimplePeak;
+import net.preibisch.mvrecon.fiji.spimdata.interestpoints.InterestPoint;
+import net.preibisch.mvrecon.process.interestpointdetection.InterestPointTools;
+import net.preibisch.mvrecon.process.interestpointdetection.Localization;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyDoG;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss.LazyWeightedGauss;
+import util.Grid;
+import util.ImgLib2Tools;
+
+/**
+ * Difference-of-Gaussian detection that processes a view in independent tiles instead of setting up
+ * (cached) Gaussian convolutions of the entire view. Each tile computes both Gaussians and the DoG only
+ * for its core plus a halo (so the peak neighborhood and the quadratic fit see the same values as for
+ * the entire image), finds and localizes the peaks and keeps those whose integer position lies in the
+ * core. Every peak is therefore reported by exactly one tile and the memory is bounded by the tile size.
+ *
+ * Tiles are processed by the threads of the ExecutorService, {@link #computeDoGTile} is self-contained
+ * so tiles can also be distributed over several processes. The results are handed to a sink tile by tile.
+ *
+ * @author preibisch
+ */
+public class TiledDoG
+{
+	public static int[] defaultTileSize = new int[] { 256, 256, 128 };
+
+	/**
+	 * @return how far the quadratic localization may look beyond the core (peaks can move up to maxNumMoves, the fit needs their neighbors)
+	 */
+	public static int localizationHalo()
+	{
+		return Localization.maxNumMoves + 1;
+	}
+
+	public static < T extends RealType< T > > ArrayList< InterestPoint > computeDoG(
+			final RandomAccessibleInterval< T > input,
+			final RandomAccessibleInterval< T > mask,
+			final double sigma,
+			final double threshold,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final int[] tileSize,
+			final ExecutorService service )
+	{
+		final ArrayList< InterestPoint > points = new ArrayList<>();
+
+		computeDoG( input, mask, sigma, threshold, localization, findMin, findMax, minIntensity, maxIntensity, tileSize, service, ips -> points.addAll( ips ) );
+
+		return points;
+	}
+
+	/**
+	 * Computes the DoG detections tile by tile, the interest points of each tile are handed to the sink as soon as the tile is done.
+	 * The ids of the interest points are unique across all tiles.
+	 *
+	 * @param input - the image
+	 * @param mask - a mask (&gt; 0 is inside) or null
+	 * @param sigma - sigma for the DoG detection
+	 * @param threshold - threshold for the DoG detection
+	 * @param localization - 0 = no subpixel localization, 1 = quadratic fit, 2 = gaussian mask localization
+	 * @param findMin - find intensity minima
+	 * @param findMax - find intensity maxima
+	 * @param minIntensity - the min intensity for normalization to 0...1, if Double.NaN the value will be looked up
+	 * @param maxIntensity - the max intensity for normalization to 0...1, if Double.NaN the value will be looked up
+	 * @param tileSize - the size of the tile cores
+	 * @param service - the ExecutorService to use, each tile is one task
+	 * @param sink - receives the interest points of each tile (calls are not concurrent)
+	 * @return the number of interest points
+	 */
+	public static < T extends RealType< T > > long computeDoG(
+			final RandomAccessibleInterval< T > input,
+			final RandomAccessibleInterval< T > mask,
+			final double sigma,
+			final double threshold,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax,
+			final double minIntensity,
+			final double maxIntensity,
+			final int[] tileSize,
+			final ExecutorService service,
+			final Consumer< List< InterestPoint > > sink )
+	{
+		final float minPeakValue = (float)threshold;
+		final float minInitialPeakValue = ( localization == 0 ) ? minPeakValue : (float)threshold/3.0f;
+
+		final float[] minmax = DoGImgLib2.normalizationRange( input, mask, minIntensity, maxIntensity, service );
+
+		if ( !DoGImgLib2.silent )
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): min intensity = " + minmax[ 0 ] + ", max intensity = " + minmax[ 1 ] );
+
+		final RandomAccessibleInterval< FloatType > inputFloat = ImgLib2Tools.normalizeVirtual( input, minmax[ 0 ], minmax[ 1 ] );
+		final RandomAccessibleInterval< FloatType > maskFloat =
+				mask == null ? null : Converters.convertRAI( mask, (i,o) -> o.set( i.getRealFloat() ), new FloatType() );
+
+		final double[][] sigmas = DoGImgLib2.computeSigmas( input.numDimensions(), sigma );
+		final List< long[][] > grid = Grid.create( input.dimensionsAsLongArray(), tileSize );
+
+		if ( !DoGImgLib2.silent )
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): computing tiled DoG with (sigma=" + sigma + ", " +
+				"threshold=" + minPeakValue + ", sigma1=" + Util.printCoordinates( sigmas[ 0 ] ) + ", sigma2=" + Util.printCoordinates( sigmas[ 1 ] ) +
+				", tiles=" + grid.size() + ", tilesize=" + Util.printCoordinates( tileSize ) + ")" );
+
+		final AtomicInteger id = new AtomicInteger( 0 );
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+
+		for ( final long[][] tile : grid )
+		{
+			tasks.add( () ->
+			{
+				final long[] min = new long[ tile[ 0 ].length ];
+				final long[] max = new long[ tile[ 0 ].length ];
+
+				for ( int d = 0; d < min.length; ++d )
+				{
+					min[ d ] = input.min( d ) + tile[ 0 ][ d ];
+					max[ d ] = min[ d ] + tile[ 1 ][ d ] - 1;
+				}
+
+				final ArrayList< InterestPoint > points = computeDoGTile(
+						inputFloat, maskFloat, new FinalInterval( min, max ),
+						sigma, sigmas[ 0 ], sigmas[ 1 ], minInitialPeakValue, minPeakValue, localization, findMin, findMax );
+
+				if ( points.size() > 0 )
+				{
+					final ArrayList< InterestPoint > renumbered = new ArrayList<>( points.size() );
+
+					for ( final InterestPoint ip : points )
+						renumbered.add( InterestPointTools.withId( ip, id.getAndIncrement() ) );
+
+					synchronized ( sink )
+					{
+						sink.accept( renumbered );
+					}
+				}
+
+				return null;
+			});
+		}
+
+		try
+		{
+			for ( final Future< Void > future : service.invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( Exception e )
+		{
+			throw new RuntimeException( "Failed to compute tiled DoG: " + e, e );
+		}
+
+		if ( !DoGImgLib2.silent )
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Found " + id.get() + " final peaks." );
+
+		return id.get();
+	}
+
+	/**
+	 * Computes the DoG detections of a single tile (single-threaded), only peaks whose integer position lies
+	 * within the core are returned (the ids start at 0 for every tile).
+	 *
+	 * @param inputFloat - the entire normalized image
+	 * @param maskFloat - the entire mask or null
+	 * @param core - the core of the tile (global coordinates)
+	 * @param sigma - sigma for the DoG detection
+	 * @param sigma1 - the sigmas of the first Gaussian (see {@link DoGImgLib2#computeSigmas(int, double)})
+	 * @param sigma2 - the sigmas of the second Gaussian
+	 * @param minInitialPeakValue - the minimal absolute DoG value of a peak before localization
+	 * @param minPeakValue - the minimal absolute DoG value of a peak after localization
+	 * @param localization - 0 = no subpixel localization, 1 = quadratic fit, 2 = gaussian mask localization
+	 * @param findMin - find intensity minima
+	 * @param findMax - find intensity maxima
+	 * @return the interest points of this tile
+	 */
+	public static ArrayList< InterestPoint > computeDoGTile(
+			final RandomAccessibleInterval< FloatType > inputFloat,
+			final RandomAccessibleInterval< FloatType > maskFloat,
+			final Interval core,
+			final double sigma,
+			final double[] sigma1,
+			final double[] sigma2,
+			final float minInitialPeakValue,
+			final float minPeakValue,
+			final int localization,
+			final boolean findMin,
+			final boolean findMax )
+	{
+		// the DoG is needed for the core, the 3x3x3 neighborhood of the peaks and the quadratic fit
+		final Interval dogInterval = Intervals.intersect( Intervals.expand( core, localization == 1 ? localizationHalo() : 1 ), inputFloat );
+		final long[] dogMin = dogInterval.minAsLongArray();
+
+		final float K_MIN1_INV = LaPlaceFunctions.computeKWeight( LaPlaceFunctions.computeK( 4 ) );
+		final ArrayImg< FloatType, FloatArray > dogImg = ArrayImgs.floats( dogInterval.dimensionsAsLongArray() );
+
+		// the input (including what the kernels need beyond the tile) is read lazily
+		if ( maskFloat == null )
+		{
+			new LazyDoG<>( dogMin, Views.extendMirrorDouble( inputFloat ), new FloatType(), sigma1, sigma2, K_MIN1_INV ).accept( dogImg );
+		}
+		else
+		{
+			final ArrayImg< FloatType, FloatArray > gauss1 = ArrayImgs.floats( dogInterval.dimensionsAsLongArray() );
+
+			new LazyWeightedGauss<>( dogMin, Views.extendMirrorSingle( inputFloat ), Views.extendZero( maskFloat ), dogInterval, new FloatType(), sigma1 ).accept( gauss1 );
+			new LazyWeightedGauss<>( dogMin, Views.extendMirrorSingle( inputFloat ), Views.extendZero( maskFloat ), dogInterval, new FloatType(), sigma2 ).accept( dogImg );
+
+			// the DoG replaces the second Gaussian
+			final Cursor< FloatType > c1 = gauss1.cursor();
+			final Cursor< FloatType > c2 = dogImg.cursor();
+
+			while ( c2.hasNext() )
+			{
+				final FloatType v2 = c2.next();
+				v2.set( ( v2.get() - c1.next().get() ) * K_MIN1_INV );
+			}
+		}
+
+		final RandomAccessibleInterval< FloatType > dog = Views.translate( dogImg, dogMin );
+
+		// the outermost pixels of the image are skipped, i.e. it finds exactly the peaks within the core (and the image)
+		final Interval peakInterval = Intervals.intersect( core, Intervals.expand( inputFloat, -1 ) );
+
+		final ArrayList< SimplePeak > peaks;
+
+		if ( Intervals.isEmpty( peakInterval ) )
+			peaks = new ArrayList<>();
+		else
+			peaks = PeakFinder.findPeaks( dog, maskFloat, minInitialPeakValue, peakInterval );
+
+		if ( localization == 0 )
+			return Localization.noLocalization( peaks, findMin, findMax, true );
+		else if ( localization == 1 )
+			return Localization.computeQuadraticLocalization( peaks, Views.extendMirrorDouble( dog ), dog, findMin, findMax, minPeakValue, true, null );
+		else
+			return Localization.computeGaussLocalization( peaks, null, sigma, findMin, findMax, minPeakValue, true );
+	}
+
+	/**
+	 * @param tileSize - the size of the tile cores
+	 * @param sigma - sigma for the DoG detection
+	 * @return the estimated memory (bytes) for processing one tile: the copy of the input, the Gaussians and the DoG
+	 * of core+halo (float)
+	 */
+	public static long estimateMemoryPerTile( final int[] tileSize, final double sigma )
+	{
+		final double[][] sigmas = DoGImgLib2.computeSigmas( tileSize.length, sigma );
+		final int[] kernelSize = Gauss3.halfkernelsizes( sigmas[ 1 ] );
+
+		long numPixels = 1;
+
+		for ( int d = 0; d < tileSize.length; ++d )
+			numPixels *= tileSize[ d ] + 2 * ( localizationHalo() + kernelSize[ d ] );
+
+		return numPixels * 4 * 4;
+	}
+}
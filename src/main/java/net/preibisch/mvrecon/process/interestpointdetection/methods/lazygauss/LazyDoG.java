@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss;
+
+import java.util.function.Consumer;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.preibisch.mvrecon.process.interestpointdetection.methods.dog.DoGImgLib2;
+import util.Lazy;
+
+/**
+ * Lazy Difference-of-Gaussian: computes both Gaussians of a block from a single copy of the input
+ * and only keeps the difference. The second Gaussian is computed incrementally from the first one
+ * (gauss(I,sigma2) = gauss(gauss(I,sigma1),sqrt(sigma2^2-sigma1^2))), so the input is read once per block
+ * and only one cache is needed (instead of two cached Gaussians that are subtracted).
+ *
+ * @author preibisch
+ * @param <T> type of input and output
+ */
+public class LazyDoG<T extends RealType<T> & NativeType<T>> implements Consumer<RandomAccessibleInterval<T>>
+{
+	final T type;
+	final private double[] sigma1, sigmaInc;
+	final private double weight;
+	final long[] globalMin;
+	final private RandomAccessible<T> source;
+	final private boolean recursive1, recursiveInc;
+
+	/**
+	 * @param min - the min of the processing interval
+	 * @param source - the (extended) input
+	 * @param type - the type of the output
+	 * @param sigma1 - the smaller sigma
+	 * @param sigma2 - the larger sigma
+	 * @param weight - the difference ( gauss2 - gauss1 ) is multiplied by this weight
+	 */
+	public LazyDoG(
+			final long[] min,
+			final RandomAccessible<T> source,
+			final T type,
+			final double[] sigma1,
+			final double[] sigma2,
+			final double weight )
+	{
+		this.source = source;
+		this.globalMin = min;
+		this.type = type;
+		this.sigma1 = sigma1;
+		this.weight = weight;
+
+		this.sigmaInc = new double[ sigma1.length ];
+
+		for ( int d = 0; d < sigma1.length; ++d )
+			this.sigmaInc[ d ] = Math.sqrt( sigma2[ d ] * sigma2[ d ] - sigma1[ d ] * sigma1[ d ] );
+
+		this.recursive1 = RecursiveGauss.useRecursive( this.sigma1 );
+		this.recursiveInc = RecursiveGauss.useRecursive( this.sigmaInc );
+	}
+
+	// Note: the output RAI typically sits at 0,0...0 because it usually is a CachedCellImage
+	// (but the actual interval to process in many blocks sits somewhere else)
+	@Override
+	public void accept( final RandomAccessibleInterval<T> output )
+	{
+		final int n = output.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = globalMin[ d ] + output.min( d );
+			max[ d ] = min[ d ] + output.dimension( d ) - 1;
+		}
+
+		final Interval block = new FinalInterval( min, max );
+		final Interval gauss1Interval = Intervals.expand( block, halo( sigmaInc, recursiveInc ) );
+		final Interval inputInterval = Intervals.expand( gauss1Interval, halo( sigma1, recursive1 ) );
+
+		// read the input once
+		final RandomAccessibleInterval< T > input = create( inputInterval );
+		DoGImgLib2.copy( source, input );
+
+		final RandomAccessibleInterval< T > gauss1 = create( gauss1Interval );
+		final RandomAccessibleInterval< T > gauss2 = create( block );
+
+		gauss( sigma1, input, gauss1, recursive1 );
+		gauss( sigmaInc, gauss1, gauss2, recursiveInc );
+
+		final Cursor< T > g1 = Views.flatIterable( Views.interval( gauss1, block ) ).cursor();
+		final Cursor< T > g2 = Views.flatIterable( gauss2 ).cursor();
+		final Cursor< T > o = Views.flatIterable( output ).cursor();
+
+		while ( o.hasNext() )
+			o.next().setReal( ( g2.next().getRealDouble() - g1.next().getRealDouble() ) * weight );
+	}
+
+	protected RandomAccessibleInterval< T > create( final Interval interval )
+	{
+		return Views.translate( new ArrayImgFactory<>( type ).create( interval ), interval.minAsLongArray() );
+	}
+
+	protected static < T extends RealType< T > > void gauss(
+			final double[] sigma,
+			final RandomAccessible< T > source,
+			final RandomAccessibleInterval< T > target,
+			final boolean recursive )
+	{
+		if ( recursive )
+		{
+			RecursiveGauss.gauss( sigma, source, target );
+		}
+		else
+		{
+			try
+			{
+				Gauss3.gauss( sigma, source, target, 1 );
+			}
+			catch ( final IncompatibleTypeException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+	}
+
+	/**
+	 * @return how many pixels the Gaussian convolution reads beyond the target on each side
+	 */
+	protected static long[] halo( final double[] sigma, final boolean recursive )
+	{
+		final long[] halo = new long[ sigma.length ];
+
+		if ( recursive )
+		{
+			for ( int d = 0; d < sigma.length; ++d )
+				halo[ d ] = RecursiveGauss.halo( sigma[ d ] );
+		}
+		else
+		{
+			final int[] halfkernelsizes = Gauss3.halfkernelsizes( sigma );
+
+			for ( int d = 0; d < sigma.length; ++d )
+				halo[ d ] = halfkernelsizes[ d ] - 1;
+		}
+
+		return halo;
+	}
+
+	public static final <T extends RealType<T> & NativeType<T>> RandomAccessibleInterval<T> init(
+			final RandomAccessible< T > input,
+			final Interval processingInterval,
+			final T type,
+			final double[] sigma1,
+			final double[] sigma2,
+			final double weight,
+			final int[] blockSize )
+	{
+		final long[] min = processingInterval.minAsLongArray();
+
+		final LazyDoG< T > lazyDoG =
+				new LazyDoG<>(
+						min,
+						input,
+						type.createVariable(),
+						sigma1,
+						sigma2,
+						weight );
+
+		final RandomAccessibleInterval<T> dog =
+				Views.translate(
+						Lazy.process(
+								processingInterval,
+								blockSize,
+								type.createVariable(),
+								AccessFlags.setOf(),
+								lazyDoG ),
+						min );
+
+		return dog;
+	}
+}
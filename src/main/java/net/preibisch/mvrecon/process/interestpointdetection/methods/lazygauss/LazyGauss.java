@@ -57,6 +57,7 @@ public class LazyGauss<T extends RealType<T> & NativeType<T>> implements Consume
 	final private double[] sigmas;
 	final long[] globalMin;
 	final private RandomAccessible<T> source;
+	final private boolean recursive;
 
 	public LazyGauss(
 			final long[] min,
@@ -68,6 +69,7 @@ public class LazyGauss<T extends RealType<T> & NativeType<T>> implements Consume
 		this.globalMin = min;
 		this.type = type;
 		this.sigmas = sigmas;
+		this.recursive = RecursiveGauss.useRecursive( sigmas );
 	}
 
 	// Note: the output RAI typically sits at 0,0...0 because it usually is a CachedCellImage
@@ -77,7 +79,11 @@ public class LazyGauss<T extends RealType<T> & NativeType<T>> implements Consume
 	{
 		try
 		{
-			Gauss3.gauss(sigmas, source, Views.translate( output, globalMin ), 1 );
+			// the cost of the recursive filter does not depend on sigma
+			if ( recursive )
+				RecursiveGauss.gauss( sigmas, source, Views.translate( output, globalMin ) );
+			else
+				Gauss3.gauss(sigmas, source, Views.translate( output, globalMin ), 1 );
 		}
 		catch (final IncompatibleTypeException e)
 		{
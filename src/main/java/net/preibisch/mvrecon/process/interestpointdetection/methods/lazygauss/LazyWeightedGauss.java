@@ -61,6 +61,7 @@ public class LazyWeightedGauss<T extends RealType<T> & NativeType<T>> implements
 	final private double[] sigmas;
 	final long[] globalMin;
 	final private RandomAccessible<T> source, weight, weightedSource;
+	final private boolean recursive;
 
 	public Interval processingInterval;
 
@@ -78,6 +79,7 @@ public class LazyWeightedGauss<T extends RealType<T> & NativeType<T>> implements
 		this.globalMin = min;
 		this.type = type;
 		this.sigmas = sigmas;
+		this.recursive = RecursiveGauss.useRecursive( sigmas );
 	}
 
 	// Note: the output RAI typically sits at 0,0...0 because it usually is a CachedCellImage
@@ -96,8 +98,16 @@ public class LazyWeightedGauss<T extends RealType<T> & NativeType<T>> implements
 			final RandomAccessibleInterval< T > sourceTmp = Views.translate( new ArrayImgFactory<>(type).create( output ), min );
 			final RandomAccessibleInterval< T > weightTmp = Views.translate( new ArrayImgFactory<>(type).create( output ), min );
 
-			Gauss3.gauss(sigmas, weightedSource, sourceTmp, 1 );
-			Gauss3.gauss(sigmas, weight, weightTmp, 1 );
+			if ( recursive )
+			{
+				RecursiveGauss.gauss( sigmas, weightedSource, sourceTmp );
+				RecursiveGauss.gauss( sigmas, weight, weightTmp );
+			}
+			else
+			{
+				Gauss3.gauss(sigmas, weightedSource, sourceTmp, 1 );
+				Gauss3.gauss(sigmas, weight, weightTmp, 1 );
+			}
 
 			/*
 			final ExecutorService service = Executors.newFixedThreadPool( 1 );
@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * Software for the reconstruction of multi-view microscopic acquisitions
+ * like Selective Plane Illumination Microscopy (SPIM) Data.
+ * %%
+ * Copyright (C) 2012 - 2023 Multiview Reconstruction developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package net.preibisch.mvrecon.process.interestpointdetection.methods.lazygauss;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Recursive (IIR) Gaussian convolution after Young and van Vliet (Signal Processing 44, 1995). Each dimension is
+ * filtered by a causal and an anti-causal third-order recursive filter, so the cost per pixel does not depend on sigma
+ * (a truncated FIR kernel costs 6*sigma+1 multiplications per pixel and dimension). It is less accurate than
+ * {@link net.imglib2.algorithm.gauss3.Gauss3} for small sigmas, which is why {@link #useRecursive(double[])} only
+ * selects it for large ones.
+ *
+ * Like Gauss3 it reads the source beyond the target interval (a halo of about 3*sigma) and processes one dimension
+ * after the other, keeping only the halo that the remaining dimensions still need.
+ *
+ * @author preibisch
+ */
+public class RecursiveGauss
+{
+	/**
+	 * the recursive filter is used if the largest sigma is at least this large
+	 */
+	public static double minSigmaRecursive = 5.0;
+
+	/**
+	 * below this sigma the approximation of Young and van Vliet is not accurate
+	 */
+	public static double minSigmaAccurate = 1.0;
+
+	/**
+	 * @param sigma - the sigmas per dimension
+	 * @return true if the recursive filter should be used instead of Gauss3
+	 */
+	public static boolean useRecursive( final double[] sigma )
+	{
+		double max = 0;
+
+		for ( final double s : sigma )
+		{
+			if ( s > 0 && s < minSigmaAccurate )
+				return false;
+
+			max = Math.max( max, s );
+		}
+
+		return max >= minSigmaRecursive;
+	}
+
+	/**
+	 * @param sigma - the sigma
+	 * @return how many pixels the filter reads beyond the target on each side
+	 */
+	public static int halo( final double sigma )
+	{
+		return sigma > 0 ? (int)Math.ceil( 3 * sigma ) + 1 : 0;
+	}
+
+	/**
+	 * Convolves the source with a Gaussian (single-threaded) and writes the result into the target interval.
+	 *
+	 * @param sigma - the sigmas per dimension (0 means no convolution in that dimension)
+	 * @param source - the source, must be defined on the target interval expanded by {@link #halo(double)}
+	 * @param target - the target interval
+	 * @param <S> - source type
+	 * @param <T> - target type
+	 */
+	public static < S extends RealType< S >, T extends RealType< T > > void gauss(
+			final double[] sigma,
+			final RandomAccessible< S > source,
+			final RandomAccessibleInterval< T > target )
+	{
+		final int n = target.numDimensions();
+
+		final int[] halo = new int[ n ];
+		final int[] core = new int[ n ];
+		final int[] size = new int[ n ]; // size of the buffer: dimension 0 is filtered first and only its core is kept
+		final int[] stride = new int[ n ];
+		final double[][] coefficients = new double[ n ][];
+
+		int maxLength = 0;
+		long numPixels = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			halo[ d ] = halo( sigma[ d ] );
+			core[ d ] = (int)target.dimension( d );
+			size[ d ] = d == 0 ? core[ d ] : core[ d ] + 2 * halo[ d ];
+			stride[ d ] = (int)numPixels;
+			coefficients[ d ] = sigma[ d ] > 0 ? coefficients( sigma[ d ] ) : null;
+
+			maxLength = Math.max( maxLength, core[ d ] + 2 * halo[ d ] );
+			numPixels *= size[ d ];
+		}
+
+		if ( numPixels > Integer.MAX_VALUE )
+			throw new RuntimeException( "Block too large for recursive Gaussian convolution: " + numPixels + " pixels." );
+
+		final float[] buffer = new float[ (int)numPixels ];
+		final double[] line = new double[ maxLength ];
+		final int[] pos = new int[ n ];
+		final int[] from = new int[ n ];
+		final int[] to = new int[ n ];
+
+		// dimension 0: read the lines from the source, keep their core
+		final RandomAccess< S > ra = source.randomAccess();
+		final int length0 = core[ 0 ] + 2 * halo[ 0 ];
+
+		for ( int d = 1; d < n; ++d )
+			to[ d ] = size[ d ];
+
+		do
+		{
+			ra.setPosition( target.min( 0 ) - halo[ 0 ], 0 );
+			int index = 0;
+
+			for ( int d = 1; d < n; ++d )
+			{
+				ra.setPosition( target.min( d ) - halo[ d ] + pos[ d ], d );
+				index += pos[ d ] * stride[ d ];
+			}
+
+			for ( int i = 0; i < length0; ++i )
+			{
+				line[ i ] = ra.get().getRealDouble();
+				ra.fwd( 0 );
+			}
+
+			if ( coefficients[ 0 ] != null )
+				filter( line, length0, coefficients[ 0 ] );
+
+			for ( int i = 0; i < core[ 0 ]; ++i )
+				buffer[ index + i ] = (float)line[ halo[ 0 ] + i ];
+		}
+		while ( next( pos, from, to, 0 ) );
+
+		// all other dimensions: filter the lines within the buffer in place, only the core of the dimensions
+		// that were processed already and the full halo of the remaining ones
+		for ( int d = 1; d < n; ++d )
+		{
+			if ( coefficients[ d ] == null )
+				continue;
+
+			for ( int e = 0; e < n; ++e )
+			{
+				if ( e == 0 )
+				{
+					from[ e ] = 0;
+					to[ e ] = core[ e ];
+				}
+				else if ( e < d )
+				{
+					from[ e ] = halo[ e ];
+					to[ e ] = halo[ e ] + core[ e ];
+				}
+				else
+				{
+					from[ e ] = 0;
+					to[ e ] = e == d ? 1 : size[ e ];
+				}
+
+				pos[ e ] = from[ e ];
+			}
+
+			final int length = size[ d ];
+
+			do
+			{
+				int index = 0;
+
+				for ( int e = 0; e < n; ++e )
+					index += pos[ e ] * stride[ e ];
+
+				for ( int i = 0, j = index; i < length; ++i, j += stride[ d ] )
+					line[ i ] = buffer[ j ];
+
+				filter( line, length, coefficients[ d ] );
+
+				for ( int i = halo[ d ], j = index + halo[ d ] * stride[ d ]; i < halo[ d ] + core[ d ]; ++i, j += stride[ d ] )
+					buffer[ j ] = (float)line[ i ];
+			}
+			while ( next( pos, from, to, d ) );
+		}
+
+		// copy the core to the target
+		final Cursor< T > cursor = Views.flatIterable( target ).localizingCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+
+			int index = (int)( cursor.getLongPosition( 0 ) - target.min( 0 ) );
+
+			for ( int d = 1; d < n; ++d )
+				index += ( cursor.getLongPosition( d ) - target.min( d ) + halo[ d ] ) * stride[ d ];
+
+			cursor.get().setReal( buffer[ index ] );
+		}
+	}
+
+	/**
+	 * @param sigma - the sigma
+	 * @return the normalized coefficients { B, b1/b0, b2/b0, b3/b0 } of the recursive filter
+	 */
+	public static double[] coefficients( final double sigma )
+	{
+		final double q;
+
+		if ( sigma >= 2.5 )
+			q = 0.98711 * sigma - 0.96330;
+		else
+			q = 3.97156 - 4.14554 * Math.sqrt( 1.0 - 0.26891 * sigma );
+
+		final double q2 = q * q;
+		final double q3 = q2 * q;
+
+		final double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		final double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		final double b2 = -( 1.4281 * q2 + 1.26661 * q3 );
+		final double b3 = 0.422205 * q3;
+
+		return new double[] { 1.0 - ( b1 + b2 + b3 ) / b0, b1 / b0, b2 / b0, b3 / b0 };
+	}
+
+	/**
+	 * Filters a line in place, causal and anti-causal pass. The filter starts in the steady state of the
+	 * first (last) value, which the halo makes irrelevant for the core.
+	 *
+	 * @param line - the line
+	 * @param length - the length of the line
+	 * @param c - the coefficients, see {@link #coefficients(double)}
+	 */
+	public static void filter( final double[] line, final int length, final double[] c )
+	{
+		final double B = c[ 0 ], a1 = c[ 1 ], a2 = c[ 2 ], a3 = c[ 3 ];
+
+		double w1 = line[ 0 ], w2 = w1, w3 = w1;
+
+		for ( int i = 0; i < length; ++i )
+		{
+			final double w0 = B * line[ i ] + a1 * w1 + a2 * w2 + a3 * w3;
+			line[ i ] = w0;
+			w3 = w2;
+			w2 = w1;
+			w1 = w0;
+		}
+
+		w1 = w2 = w3 = line[ length - 1 ];
+
+		for ( int i = length - 1; i >= 0; --i )
+		{
+			final double w0 = B * line[ i ] + a1 * w1 + a2 * w2 + a3 * w3;
+			line[ i ] = w0;
+			w3 = w2;
+			w2 = w1;
+			w1 = w0;
+		}
+	}
+
+	/**
+	 * moves to the next position (odometer over all dimensions except skip), returns false when done
+	 */
+	private static boolean next( final int[] pos, final int[] from, final int[] to, final int skip )
+	{
+		for ( int d = 0; d < pos.length; ++d )
+		{
+			if ( d == skip )
+				continue;
+
+			if ( ++pos[ d ] < to[ d ] )
+				return true;
+
+			pos[ d ] = from[ d ];
+		}
+
+		return false;
+	}
+}
@@ -54,7 +54,6 @@ import net.imglib2.cache.Cache;
 import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.cache.img.CellLoader;
 import net.imglib2.cache.img.LoadedCellCacheLoader;
-import net.imglib2.cache.ref.SoftRefLoaderCache;
 import net.imglib2.img.basictypeaccess.AccessFlags;
 import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
 import net.imglib2.img.cell.Cell;
@@ -67,6 +66,7 @@ import net.imglib2.type.numeric.integer.GenericShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.preibisch.mvrecon.process.cache.CellCacheManager;
 
 /**
  * Convenience methods to create lazy evaluated cached cell images with ops or consumers.
@@ -135,7 +135,7 @@ public class Lazy {
 
 		@SuppressWarnings({"unchecked", "rawtypes"})
 		final Cache<Long, Cell<?>> cache =
-				new SoftRefLoaderCache().withLoader(LoadedCellCacheLoader.get(grid, loader, type, accessFlags));
+				CellCacheManager.getInstance().<Long, Cell<?>>createCache().withLoader(LoadedCellCacheLoader.get(grid, loader, type, accessFlags));
 
 		return createImg(grid, cache, type, accessFlags);
 	}